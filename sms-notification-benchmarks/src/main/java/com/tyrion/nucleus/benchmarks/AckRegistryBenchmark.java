@@ -0,0 +1,108 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.tyrion.nucleus.profile.NucleusSmsAckRegistry;
+import com.tyrion.nucleus.profile.NucleusSmsCodeAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The alarm code registry behind {@code NucleusSmsAckManager.registerAlarms} and {@code acknowledgeAlarm}, with
+ * notification threads registering codes while the poller acknowledges them.
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -jar sms-notification-benchmarks/target/benchmarks.jar AckRegistryBenchmark
+ * </pre>
+ * The ack manager itself needs a gateway to acknowledge alarms with; everything it does before that is here. The
+ * registry is held at the default limit of outstanding codes, so registering also evicts the oldest code, as it would
+ * during an alarm flood. With four digit codes that limit is every possible code, so each new code is one just freed.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AckRegistryBenchmark {
+
+    /**
+     * Codes recently registered, for the acknowledging threads to reply to. A power of two.
+     */
+    private static final int RECENT = 4096;
+
+    private final List<String> numbers = Arrays.asList("15551234567", "15557654321");
+    private final List<AlarmEvent> events = Stubs.alarmEvents(1);
+
+    private final AtomicReferenceArray<String> recent = new AtomicReferenceArray<String>(RECENT);
+    private final AtomicLong registered = new AtomicLong(0);
+
+    @Param({"6", "4"})
+    private int codeLength;
+
+    private NucleusSmsAckRegistry registry;
+
+    @Setup
+    public void setUp() {
+        registry = new NucleusSmsAckRegistry(60, TimeUnit.MINUTES, 10000, null, null,
+                new NucleusSmsCodeAllocator(NucleusSmsCodeAllocator.DIGITS, codeLength));
+    }
+
+    @Benchmark
+    @Group("registerAndAcknowledge")
+    @GroupThreads(4)
+    public NucleusSmsAckRegistry.Entry register() {
+        NucleusSmsAckRegistry.Entry entry = registry.register(null, "operator", numbers, events);
+        recent.set((int) (registered.getAndIncrement() & (RECENT - 1)), entry.getCode());
+        return entry;
+    }
+
+    @Benchmark
+    @Group("registerAndAcknowledge")
+    @GroupThreads(1)
+    public boolean acknowledge() {
+        String code = recent.get(ThreadLocalRandom.current().nextInt(RECENT));
+        if (code == null) {
+            return false;
+        }
+
+        // What acknowledgeAlarm does before handing the events to the alarm manager.
+        NucleusSmsAckRegistry.Entry entry = registry.get(code);
+        return entry != null && entry.getNumbers().contains("15557654321") && registry.acknowledge(entry);
+    }
+
+    /**
+     * Replies to codes that aren't outstanding, such as duplicates and typos, which the poller only has to look up.
+     */
+    @Benchmark
+    @Group("registerAndMiss")
+    @GroupThreads(4)
+    public NucleusSmsAckRegistry.Entry registerWhileMissing() {
+        return registry.register(null, "operator", numbers, events);
+    }
+
+    @Benchmark
+    @Group("registerAndMiss")
+    @GroupThreads(1)
+    public NucleusSmsAckRegistry.Entry miss() {
+        return registry.get("not-a-code");
+    }
+
+}
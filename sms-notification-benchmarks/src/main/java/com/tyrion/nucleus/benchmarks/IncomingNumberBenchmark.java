@@ -0,0 +1,120 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Collections2;
+import com.inductiveautomation.ignition.common.user.ContactInfo;
+import com.inductiveautomation.ignition.common.user.ContactType;
+import com.inductiveautomation.ignition.common.user.User;
+import com.tyrion.nucleus.profile.NucleusSmsAckRegistry;
+import com.tyrion.nucleus.profile.NucleusSmsPhoneNumbers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking that a reply came from a number its alarm code was sent to: the old {@code incomingNumberBelongsToUser},
+ * which filtered the user's contact info on every reply, against the numbers the registry now normalizes when the code
+ * is registered, with and without normalizing the reply's number, and for a code shared by 100 users.
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -jar sms-notification-benchmarks/target/benchmarks.jar IncomingNumberBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncomingNumberBenchmark {
+
+    /**
+     * SMS numbers on the user; the reply comes from the last.
+     */
+    @Param({"1", "4"})
+    public int numberCount;
+
+    private final NucleusSmsPhoneNumbers phoneNumbers = new NucleusSmsPhoneNumbers("1", "");
+
+    private User user;
+    private NucleusSmsAckRegistry.Entry entry;
+    private NucleusSmsAckRegistry.Entry sharedEntry;
+    private String incomingNumber;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<String> numbers = new ArrayList<String>();
+        List<String> resolved = new ArrayList<String>();
+        for (int i = 0; i < numberCount; i++) {
+            numbers.add(String.format("555%07d", i));
+            resolved.add(String.format("1555%07d", i));
+        }
+
+        user = Stubs.user("operator", numbers);
+        incomingNumber = resolved.get(resolved.size() - 1);
+
+        NucleusSmsAckRegistry registry = new NucleusSmsAckRegistry(60, TimeUnit.MINUTES, 10, null);
+        entry = registry.register(null, "operator", resolved, Stubs.alarmEvents(1));
+
+        List<NucleusSmsAckRegistry.Recipient> recipients = new ArrayList<NucleusSmsAckRegistry.Recipient>();
+        for (int i = 0; i < 99; i++) {
+            recipients.add(new NucleusSmsAckRegistry.Recipient(
+                    null, "operator" + i, Collections.singletonList(String.format("1666%07d", i))));
+        }
+        recipients.add(new NucleusSmsAckRegistry.Recipient(null, "operator", resolved));
+        sharedEntry = registry.register(recipients, Stubs.alarmEvents(1));
+    }
+
+    @Benchmark
+    public boolean contactInfoFiltered() {
+        return incomingNumberBelongsToUser(incomingNumber, user);
+    }
+
+    @Benchmark
+    public boolean registeredNumbers() {
+        return entry.getRecipient(incomingNumber) != null;
+    }
+
+    @Benchmark
+    public boolean normalizedRegisteredNumbers() {
+        return entry.getRecipient(phoneNumbers.normalize(incomingNumber)) != null;
+    }
+
+    @Benchmark
+    public boolean sharedCodeNumbers() {
+        return sharedEntry.getRecipient(incomingNumber) != null;
+    }
+
+    private static boolean incomingNumberBelongsToUser(final String incomingNumber, User user) {
+        return !Collections2.filter(
+                user.getContactInfo(),
+                new Predicate<ContactInfo>() {
+                    public boolean apply(ContactInfo contactInfo) {
+                        boolean smsContact = ContactType.SMS.getContactType().equals(contactInfo.getContactType());
+                        return smsContact && fixPhoneNumber(contactInfo.getValue()).equals(incomingNumber);
+                    }
+                }).isEmpty();
+    }
+
+    private static String fixPhoneNumber(String phoneNumber) {
+        if (!phoneNumber.startsWith("1")) {
+            return "1" + phoneNumber;
+        }
+
+        return phoneNumber;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.google.gson.stream.JsonWriter;
+import com.tyrion.nucleus.profile.NucleusSmsJsonCodec;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old org.json handling of Nucleus request and response bodies with {@link NucleusSmsJsonCodec}.
+ * <p>
+ * Allocation is what matters here, so run with the GC profiler:
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -jar sms-notification-benchmarks/target/benchmarks.jar JsonCodecBenchmark -prof gc
+ * </pre>
+ * and compare {@code gc.alloc.rate.norm} (bytes per operation).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    private final List<String> numbers = Arrays.asList("15551234567", "15557654321");
+    private final String message = "Alarm High Temperature on Tank 12 is Active with value 98.4.\n" +
+            "To acknowledge, reply '123456'.";
+
+    private final NucleusSmsJsonCodec.PayloadWriter payloadWriter = new NucleusSmsJsonCodec.PayloadWriter();
+
+    @State(Scope.Benchmark)
+    public static class AckBuffer {
+
+        /**
+         * Replies in the acknowledgement buffer; large values model the backlog after an outage.
+         */
+        @Param({"1", "100", "5000"})
+        public int bufferSize;
+
+        private byte[] bytes;
+
+        @Setup
+        public void setUp() {
+            StringBuilder json = new StringBuilder("{\"success\":true,\"messages\":[");
+            for (int i = 0; i < bufferSize; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append("{\"number\":\"1555")
+                        .append(String.format("%07d", i))
+                        .append("\",\"message\":\"")
+                        .append(String.format("%06d", i % 1000000))
+                        .append("\",\"timestamp\":")
+                        .append(1500000000000L + i)
+                        .append('}');
+            }
+            json.append("]}");
+
+            bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+    }
+
+    @Benchmark
+    public void readAckBufferOrgJson(AckBuffer ackBuffer, Blackhole blackhole) throws Exception {
+        String body = IOUtils.toString(new ByteArrayInputStream(ackBuffer.bytes), "UTF-8");
+        JSONObject json = new JSONObject(body);
+        JSONArray messages = json.getJSONArray("messages");
+
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject message = messages.getJSONObject(i);
+            blackhole.consume(message.getString("number"));
+            blackhole.consume(message.getString("message").trim());
+            blackhole.consume(message.getLong("timestamp"));
+        }
+    }
+
+    @Benchmark
+    public int readAckBufferStreaming(AckBuffer ackBuffer, final Blackhole blackhole) throws Exception {
+        return NucleusSmsJsonCodec.readMessages(new ByteArrayInputStream(ackBuffer.bytes),
+                new NucleusSmsJsonCodec.MessageHandler() {
+                    @Override
+                    public void message(String number, String message, long timestamp) {
+                        blackhole.consume(number);
+                        blackhole.consume(message.trim());
+                        blackhole.consume(timestamp);
+                    }
+                });
+    }
+
+    @Benchmark
+    public byte[] writeSmsOrgJson() throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("message", message);
+        json.put("numbers", numbers);
+        json.put("ackCode", "123456");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeSmsStreaming() throws Exception {
+        JsonWriter writer = payloadWriter.begin();
+        writer.beginObject();
+        writer.name("message").value(message);
+        writer.name("numbers").beginArray();
+        for (String number : numbers) {
+            writer.value(number);
+        }
+        writer.endArray();
+        writer.name("ackCode").value("123456");
+        writer.endObject();
+        return payloadWriter.finish(writer);
+    }
+
+}
@@ -0,0 +1,338 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.inductiveautomation.ignition.alarming.notification.AlarmNotificationProfileRecord;
+import com.inductiveautomation.ignition.alarming.notification.NotificationContext;
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.inductiveautomation.ignition.common.config.Property;
+import com.inductiveautomation.ignition.common.i18n.LocalizedString;
+import com.inductiveautomation.ignition.common.user.User;
+import com.inductiveautomation.ignition.gateway.localdb.persistence.EnumField;
+import com.inductiveautomation.ignition.gateway.localdb.persistence.IntField;
+import com.inductiveautomation.ignition.gateway.model.GatewayContext;
+import com.tyrion.nucleus.profile.NucleusSmsAckRouter;
+import com.tyrion.nucleus.profile.NucleusSmsHistogram;
+import com.tyrion.nucleus.profile.NucleusSmsNotificationProfile;
+import com.tyrion.nucleus.profile.NucleusSmsNotificationProfileSettings;
+import com.tyrion.nucleus.profile.NucleusSmsProperties;
+import simpleorm.dataset.SFieldMeta;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives notifications through a {@link NucleusSmsNotificationProfile} sending to a {@link NucleusSimulator}, and
+ * reports throughput, latencies and how long recipients' replies took to acknowledge their alarms.
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -Dnotifications=10000 -DmodemThroughput=6000 -cp sms-notification-benchmarks/target/benchmarks.jar \
+ *     com.tyrion.nucleus.benchmarks.LoadTest
+ * </pre>
+ * Options, as system properties:
+ * <ul>
+ * <li>{@code notifications} (5000), {@code users} (50), {@code eventsPerNotification} (1),
+ * {@code usersPerAlarm} (1): how many users in a row are notified about the same alarms</li>
+ * <li>{@code latency} and {@code latencyJitter} in ms (20, 10), {@code errorRate} (0.01), {@code failureRate} (0.01),
+ * {@code modemThroughput} in SMS per minute (0 for no limit), {@code replyRate} (0.5), {@code replyDelay} and
+ * {@code replyJitter} in ms (2000, 3000)</li>
+ * <li>{@code dispatchThreads} (4), {@code maxBatchSize} (10), {@code batchWindow} in ms (50), {@code sendRetries} (2),
+ * {@code fanOutWindow} in ms (0), {@code endpoints} (1): how many simulators to send through</li>
+ * <li>{@code stormThreshold} in notifications per minute (0 for off)</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    private static final String PROFILE_NAME = "LoadTest";
+
+    private final NucleusSmsHistogram notificationLatency = new NucleusSmsHistogram();
+    private final NucleusSmsHistogram ackRoundTrip = new NucleusSmsHistogram();
+
+    private final Map<NotificationContext, Long> submittedAt = new ConcurrentHashMap<NotificationContext, Long>();
+    private final Map<UUID, Long> alarmSentAt = new ConcurrentHashMap<UUID, Long>();
+
+    private final AtomicLong done = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong acknowledged = new AtomicLong(0);
+
+    private CountDownLatch finished;
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int notifications = Integer.getInteger("notifications", 5000);
+        int users = Integer.getInteger("users", 50);
+        int eventsPerNotification = Integer.getInteger("eventsPerNotification", 1);
+        int usersPerAlarm = Math.max(1, Integer.getInteger("usersPerAlarm", 1));
+        double replyRate = doubleProperty("replyRate", 0.5);
+        long replyDelay = Long.getLong("replyDelay", 2000);
+        long replyJitter = Long.getLong("replyJitter", 3000);
+
+        List<NucleusSimulator> simulators = new ArrayList<NucleusSimulator>();
+        for (int i = 0; i < Math.max(1, Integer.getInteger("endpoints", 1)); i++) {
+            simulators.add(NucleusSimulator.builder()
+                    .latency(Long.getLong("latency", 20), Long.getLong("latencyJitter", 10))
+                    .errorRate(doubleProperty("errorRate", 0.01))
+                    .failureRate(doubleProperty("failureRate", 0.01))
+                    .modemThroughput(Integer.getInteger("modemThroughput", 0))
+                    .replies(replyRate, replyDelay, replyJitter)
+                    .build()
+                    .start());
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        File dataDir = Files.createTempDirectory("nucleus-load-test").toFile();
+
+        GatewayContext context = Stubs.gatewayContext(scheduler, dataDir, new Outcomes());
+        NucleusSmsAckRouter ackRouter = new NucleusSmsAckRouter(context);
+
+        NucleusSmsNotificationProfile profile = null;
+        try {
+            profile = new NucleusSmsNotificationProfile(
+                    context, new ProfileRecord(), new Settings(simulators), ackRouter);
+            profile.onStartup();
+
+            List<User> recipients = new ArrayList<User>(users);
+            for (int i = 0; i < users; i++) {
+                recipients.add(Stubs.user("operator" + i, Collections.singletonList(String.format("1555%07d", i))));
+            }
+
+            Map<Property<?>, Object> properties = new HashMap<Property<?>, Object>();
+            properties.put(NucleusSmsProperties.MESSAGE,
+                    "Alarm '{name}' at '{displayPath}' transitioned to {eventState}.");
+            properties.put(NucleusSmsProperties.THROTTLED_MESSAGE, "{alarmEvents.Count} alarm events have occurred.");
+            properties.put(NucleusSmsProperties.TEST_MODE, false);
+
+            System.out.println(String.format(
+                    "Sending %d notification(s) to %d user(s) through %d simulated endpoint(s)...",
+                    notifications, users, simulators.size()));
+
+            finished = new CountDownLatch(notifications);
+            long start = System.nanoTime();
+
+            List<AlarmEvent> events = null;
+            for (int i = 0; i < notifications; i++) {
+                if (i % usersPerAlarm == 0) {
+                    events = Stubs.alarmEvents(eventsPerNotification);
+                }
+                NotificationContext notification = Stubs.notificationContext(
+                        recipients.get(i % users), events, properties, new Outcomes());
+
+                long now = System.nanoTime();
+                submittedAt.put(notification, now);
+                for (AlarmEvent event : events) {
+                    alarmSentAt.put(event.getId(), now);
+                }
+
+                profile.sendNotification(notification);
+            }
+
+            if (!finished.await(30, TimeUnit.MINUTES)) {
+                System.out.println("Timed out waiting for notifications to finish.");
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // Give recipients time to reply, and the poller time to pick the replies up.
+            long replyWindow = replyRate > 0 ? replyDelay + replyJitter + 2000 : 0;
+            Thread.sleep(replyWindow);
+
+            report(notifications, elapsed, simulators);
+        } finally {
+            if (profile != null) {
+                profile.onShutdown();
+            }
+            ackRouter.shutdown();
+            scheduler.shutdownNow();
+            for (NucleusSimulator simulator : simulators) {
+                simulator.stop();
+            }
+        }
+    }
+
+    private void report(int notifications, long elapsedNanos, List<NucleusSimulator> simulators) throws Exception {
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("Notifications:   %d done, %d failed in %.1f s (%.0f/s)",
+                done.get(), failed.get(), seconds, notifications / seconds));
+        print("Notification latency (ms)", notificationLatency.getSnapshot());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.tyrion.nucleus:type=NucleusSmsNotificationProfile,name="
+                + ObjectName.quote(PROFILE_NAME));
+        print("Send latency (ms)", (CompositeData) server.getAttribute(name, "SendLatencyMillis"));
+        print("Send batch size", (CompositeData) server.getAttribute(name, "SendBatchSize"));
+        print("Fan-out users", (CompositeData) server.getAttribute(name, "FanOutGroupSize"));
+        print("Poll latency (ms)", (CompositeData) server.getAttribute(name, "PollLatencyMillis"));
+        print("Expression (us)", (CompositeData) server.getAttribute(name, "ExpressionRenderMicros"));
+        System.out.println(String.format("Retried SMS:     %s", server.getAttribute(name, "RetriedSms")));
+
+        System.out.println(String.format("Acknowledged:    %d alarm(s)", acknowledged.get()));
+        print("Ack round trip (ms)", ackRoundTrip.getSnapshot());
+
+        for (NucleusSimulator simulator : simulators) {
+            System.out.println(String.format(
+                    "%s: %d request(s), %d error(s), %d SMS sent, %d refused, %d read(s), %d repl(ies)",
+                    simulator.getUrl(), simulator.getRequestCount(), simulator.getErrorCount(),
+                    simulator.getSmsSentCount(), simulator.getSmsFailedCount(), simulator.getReadCount(),
+                    simulator.getRepliesReadCount()));
+        }
+    }
+
+    private static void print(String label, NucleusSmsHistogram.Snapshot snapshot) {
+        System.out.println(String.format("%-26s n=%d mean=%.1f p50=%d p95=%d p99=%d max=%d",
+                label + ":", snapshot.getCount(), snapshot.getMean(),
+                snapshot.getP50(), snapshot.getP95(), snapshot.getP99(), snapshot.getMax()));
+    }
+
+    private static void print(String label, CompositeData snapshot) {
+        System.out.println(String.format("%-26s n=%d mean=%.1f p50=%d p95=%d p99=%d max=%d",
+                label + ":", snapshot.get("count"), snapshot.get("mean"),
+                snapshot.get("p50"), snapshot.get("p95"), snapshot.get("p99"), snapshot.get("max")));
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private class Outcomes implements Stubs.Outcomes {
+
+        @Override
+        public void done(NotificationContext notification) {
+            finish(notification);
+            done.incrementAndGet();
+        }
+
+        @Override
+        public void failed(NotificationContext notification, LocalizedString message) {
+            finish(notification);
+            failed.incrementAndGet();
+        }
+
+        @Override
+        public void acknowledged(Collection<UUID> alarmEventIds) {
+            long now = System.nanoTime();
+
+            for (UUID id : alarmEventIds) {
+                Long sentAt = alarmSentAt.remove(id);
+                if (sentAt != null) {
+                    ackRoundTrip.record(TimeUnit.NANOSECONDS.toMillis(now - sentAt));
+                    acknowledged.incrementAndGet();
+                }
+            }
+        }
+
+        private void finish(NotificationContext notification) {
+            Long start = submittedAt.remove(notification);
+            if (start != null) {
+                notificationLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                finished.countDown();
+            }
+        }
+
+    }
+
+    private static class ProfileRecord extends AlarmNotificationProfileRecord {
+
+        @Override
+        public String getName() {
+            return PROFILE_NAME;
+        }
+
+    }
+
+    /**
+     * The profile's settings: the defaults a new profile gets, read from each field's metadata, except where the load
+     * test sets a value or offers an option. Not backed by the internal database.
+     */
+    private static class Settings extends NucleusSmsNotificationProfileSettings {
+
+        private final Map<SFieldMeta, Object> values = new HashMap<SFieldMeta, Object>();
+
+        private Settings(List<NucleusSimulator> simulators) {
+            StringBuilder additional = new StringBuilder();
+            for (NucleusSimulator simulator : simulators.subList(1, simulators.size())) {
+                additional.append(simulator.getUrl()).append('\n');
+            }
+
+            values.put(Id, 1L);
+            values.put(HostURL, simulators.get(0).getUrl());
+            values.put(Endpoints, additional.toString());
+            // Codes only have to last as long as the run.
+            values.put(PersistAckCodes, false);
+
+            option(DispatchThreads, "dispatchThreads");
+            option(BatchWindow, "batchWindow");
+            option(FanOutWindow, "fanOutWindow");
+            option(SendRetries, "sendRetries");
+            option(StormThreshold, "stormThreshold");
+            // A new profile sends one SMS per request, but batching is a large part of what's being measured.
+            values.put(MaxBatchSize, Integer.getInteger("maxBatchSize", 10));
+        }
+
+        /**
+         * Take {@code field} from the system property {@code property}, if it's set.
+         */
+        private void option(IntField field, String property) {
+            Integer value = Integer.getInteger(property);
+            if (value != null) {
+                values.put(field, value);
+            }
+        }
+
+        private Object get(SFieldMeta field) {
+            return values.containsKey(field) ? values.get(field) : field.getDefault();
+        }
+
+        @Override
+        public String getString(SFieldMeta field) {
+            return (String) get(field);
+        }
+
+        @Override
+        public long getLong(SFieldMeta field) {
+            return (Long) get(field);
+        }
+
+        @Override
+        public int getInt(SFieldMeta field) {
+            return (Integer) get(field);
+        }
+
+        @Override
+        public boolean getBoolean(SFieldMeta field) {
+            return (Boolean) get(field);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <E extends Enum<E>> E getEnum(EnumField<E> field) {
+            return (E) get(field);
+        }
+
+        @Override
+        public String getAuditProfileName() {
+            return null;
+        }
+
+    }
+}
@@ -0,0 +1,102 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.inductiveautomation.ignition.common.config.FallbackPropertyResolver;
+import com.inductiveautomation.ignition.common.expressions.parsing.StringParser;
+import com.inductiveautomation.ignition.common.model.values.QualifiedValue;
+import com.inductiveautomation.ignition.gateway.expressions.AlarmEventCollectionExpressionParseContext;
+import com.inductiveautomation.ignition.gateway.expressions.FormattedExpressionParseContext;
+import com.tyrion.nucleus.profile.NucleusSmsExpressionCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating a notification's message expression, as the profile does for every notification: parsed afresh each
+ * time as the profile used to, and through {@link NucleusSmsExpressionCache}, by one thread and by several sharing a
+ * cache as the profile's dispatch threads do.
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -jar sms-notification-benchmarks/target/benchmarks.jar MessageExpressionBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageExpressionBenchmark {
+
+    /**
+     * The profile's default message and throttled message.
+     */
+    @Param({
+            "At {eventTime|hh:mm:ss}, alarm '{name}' at '{displayPath}' transitioned to {eventState}.",
+            "{alarmEvents.Count} alarm events have occurred."})
+    public String expression;
+
+    /**
+     * Events per notification; more than one when the pipeline throttles.
+     */
+    @Param({"1", "25"})
+    public int eventCount;
+
+    private final FallbackPropertyResolver resolver = new FallbackPropertyResolver(null);
+    private final NucleusSmsExpressionCache cache = new NucleusSmsExpressionCache(256);
+
+    private List<AlarmEvent> events;
+
+    @Setup
+    public void setUp() throws Exception {
+        events = Stubs.alarmEvents(eventCount);
+
+        // Fail here, rather than measure an exception, if the stubs can't support the expression.
+        if (!parsed().getQuality().isGood()) {
+            throw new IllegalStateException("'" + expression + "' did not evaluate against the stub events.");
+        }
+    }
+
+    @Benchmark
+    public QualifiedValue parsed() throws Exception {
+        AlarmEventCollectionExpressionParseContext eventContext =
+                new AlarmEventCollectionExpressionParseContext(resolver, events);
+
+        return new StringParser()
+                .parse(eventContext.expandCollectionReferences(expression),
+                        new FormattedExpressionParseContext(eventContext))
+                .execute();
+    }
+
+    @Benchmark
+    public QualifiedValue cached() throws Exception {
+        return cache.evaluate(expression, resolver, events);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public QualifiedValue cachedShared(SharedCache shared) throws Exception {
+        return shared.cache.evaluate(expression, resolver, events);
+    }
+
+    /**
+     * One cache for every benchmark thread.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedCache {
+        private final NucleusSmsExpressionCache cache = new NucleusSmsExpressionCache(256);
+    }
+
+}
@@ -0,0 +1,416 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for a Nucleus flow and the modem behind it, for load testing without Node-RED.
+ * <p>
+ * It implements the contract the profile relies on: a post of one {@code {message, numbers, ackCode}} object, or an
+ * array of them, is answered with {@code {success}} or an array of results; {@code {"cmd":"read"}} drains the buffer
+ * of received SMS as {@code {success, messages: [...]}}; and {@code {"cmd":"status"}} answers {@code {success}}.
+ * <p>
+ * Each request waits for a latency, may fail outright with a 500, and each SMS in it may be reported unsuccessful.
+ * Sent SMS then occupy a modem that transmits at a limited rate, and the request isn't answered until its SMS have been
+ * transmitted. Recipients reply to a share of the SMS with its alarm code after a delay, and the replies appear in the
+ * buffer.
+ */
+public class NucleusSimulator {
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final double errorRate;
+    private final double failureRate;
+    private final long nanosPerSms;
+    private final double replyRate;
+    private final long replyDelayMillis;
+    private final long replyJitterMillis;
+
+    /**
+     * When the modem will have transmitted everything handed to it so far.
+     */
+    private long modemFreeAtNanos = System.nanoTime();
+
+    private final DelayQueue<Reply> replies = new DelayQueue<Reply>();
+
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+    private final AtomicLong smsSent = new AtomicLong(0);
+    private final AtomicLong smsFailed = new AtomicLong(0);
+    private final AtomicLong reads = new AtomicLong(0);
+    private final AtomicLong repliesRead = new AtomicLong(0);
+
+    private NucleusSimulator(Builder builder) throws IOException {
+        this.latencyMillis = builder.latencyMillis;
+        this.latencyJitterMillis = builder.latencyJitterMillis;
+        this.errorRate = builder.errorRate;
+        this.failureRate = builder.failureRate;
+        this.nanosPerSms = builder.smsPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / builder.smsPerMinute : 0;
+        this.replyRate = builder.replyRate;
+        this.replyDelayMillis = builder.replyDelayMillis;
+        this.replyJitterMillis = builder.replyJitterMillis;
+
+        handlers = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", builder.port), 0);
+        server.createContext("/", new Handler());
+        server.setExecutor(handlers);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public NucleusSimulator start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/alms";
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public long getSmsSentCount() {
+        return smsSent.get();
+    }
+
+    public long getSmsFailedCount() {
+        return smsFailed.get();
+    }
+
+    public long getReadCount() {
+        return reads.get();
+    }
+
+    public long getRepliesReadCount() {
+        return repliesRead.get();
+    }
+
+    private class Handler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                sleep(latencyMillis + jitter(latencyJitterMillis));
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                if (errorRate > 0 && random.nextDouble() < errorRate) {
+                    errors.incrementAndGet();
+                    exchange.getRequestBody().close();
+                    respond(exchange, 500, null);
+                    return;
+                }
+
+                Request request = read(exchange);
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                JsonWriter writer = new JsonWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+
+                if ("read".equals(request.cmd)) {
+                    writeBuffer(writer);
+                } else if (request.cmd != null) {
+                    writer.beginObject().name("success").value(true).endObject();
+                } else {
+                    List<Boolean> results = send(request.sms);
+                    if (request.batch) {
+                        writer.beginArray();
+                        for (Boolean success : results) {
+                            writer.beginObject().name("success").value(success).endObject();
+                        }
+                        writer.endArray();
+                    } else {
+                        writer.beginObject().name("success").value(!results.isEmpty() && results.get(0)).endObject();
+                    }
+                }
+
+                writer.flush();
+                respond(exchange, 200, body.toByteArray());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, null);
+            } catch (Exception e) {
+                respond(exchange, 400, null);
+            }
+        }
+
+    }
+
+    /**
+     * Hand {@code sms} to the modem and wait for it to transmit them.
+     */
+    private List<Boolean> send(List<Sms> sms) throws InterruptedException {
+        List<Boolean> results = new ArrayList<Boolean>(sms.size());
+        int transmitted = 0;
+
+        for (Sms s : sms) {
+            boolean success = failureRate <= 0 || ThreadLocalRandom.current().nextDouble() >= failureRate;
+            results.add(success);
+
+            if (!success) {
+                smsFailed.incrementAndGet();
+                continue;
+            }
+
+            smsSent.incrementAndGet();
+            transmitted += Math.max(1, s.numbers.size());
+
+            if (s.ackCode != null && !s.numbers.isEmpty() && ThreadLocalRandom.current().nextDouble() < replyRate) {
+                String number = s.numbers.get(ThreadLocalRandom.current().nextInt(s.numbers.size()));
+                replies.add(new Reply(number, s.ackCode, replyDelayMillis + jitter(replyJitterMillis)));
+            }
+        }
+
+        if (nanosPerSms > 0 && transmitted > 0) {
+            long doneAt;
+            synchronized (this) {
+                modemFreeAtNanos = Math.max(modemFreeAtNanos, System.nanoTime()) + transmitted * nanosPerSms;
+                doneAt = modemFreeAtNanos;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, doneAt - System.nanoTime()));
+        }
+
+        return results;
+    }
+
+    private void writeBuffer(JsonWriter writer) throws IOException {
+        reads.incrementAndGet();
+
+        List<Reply> due = new ArrayList<Reply>();
+        replies.drainTo(due);
+        repliesRead.addAndGet(due.size());
+
+        writer.beginObject();
+        writer.name("success").value(true);
+        writer.name("messages").beginArray();
+        for (Reply reply : due) {
+            writer.beginObject();
+            writer.name("number").value(reply.number);
+            writer.name("message").value(reply.message);
+            writer.name("timestamp").value(System.currentTimeMillis());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    private static Request read(HttpExchange exchange) throws IOException {
+        Request request = new Request();
+        JsonReader reader = new JsonReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                request.batch = true;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    request.sms.add(readSms(reader, request));
+                }
+                reader.endArray();
+            } else {
+                Sms sms = readSms(reader, request);
+                if (request.cmd == null) {
+                    request.sms.add(sms);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return request;
+    }
+
+    private static Sms readSms(JsonReader reader, Request request) throws IOException {
+        Sms sms = new Sms();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("cmd".equals(name)) {
+                request.cmd = reader.nextString();
+            } else if ("ackCode".equals(name) && reader.peek() != JsonToken.NULL) {
+                sms.ackCode = reader.nextString();
+            } else if ("numbers".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    sms.numbers.add(reader.nextString());
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return sms;
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+        exchange.close();
+    }
+
+    private static long jitter(long maxMillis) {
+        return maxMillis > 0 ? ThreadLocalRandom.current().nextLong(maxMillis + 1) : 0;
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private static class Request {
+        private String cmd;
+        private boolean batch;
+        private final List<Sms> sms = new ArrayList<Sms>();
+    }
+
+    private static class Sms {
+        private String ackCode;
+        private final List<String> numbers = new ArrayList<String>();
+    }
+
+    private static class Reply implements Delayed {
+
+        private final String number;
+        private final String message;
+        private final long dueAtNanos;
+
+        private Reply(String number, String message, long delayMillis) {
+            this.number = number;
+            this.message = message;
+            this.dueAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+    }
+
+    public static class Builder {
+
+        private int port = 0;
+        private long latencyMillis = 20;
+        private long latencyJitterMillis = 10;
+        private double errorRate = 0;
+        private double failureRate = 0;
+        private int smsPerMinute = 0;
+        private double replyRate = 0.5;
+        private long replyDelayMillis = 2000;
+        private long replyJitterMillis = 3000;
+
+        private Builder() {
+        }
+
+        /**
+         * @param port 0 for any free port.
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * How long each request takes before any modem time, plus up to {@code jitterMillis} more.
+         */
+        public Builder latency(long millis, long jitterMillis) {
+            this.latencyMillis = millis;
+            this.latencyJitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * The share of requests answered with a 500.
+         */
+        public Builder errorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * The share of SMS reported as {@code success: false}.
+         */
+        public Builder failureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * How many SMS the modem can transmit per minute, counting each recipient. 0 for no limit.
+         */
+        public Builder modemThroughput(int smsPerMinute) {
+            this.smsPerMinute = smsPerMinute;
+            return this;
+        }
+
+        /**
+         * The share of SMS a recipient replies to with the alarm code, and how long after sending, plus up to
+         * {@code jitterMillis} more.
+         */
+        public Builder replies(double replyRate, long delayMillis, long jitterMillis) {
+            this.replyRate = replyRate;
+            this.replyDelayMillis = delayMillis;
+            this.replyJitterMillis = jitterMillis;
+            return this;
+        }
+
+        public NucleusSimulator build() throws IOException {
+            return new NucleusSimulator(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.tyrion.nucleus.profile.NucleusSmsSegmenter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting an evaluated message into SMS with {@link NucleusSmsSegmenter}.
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -jar sms-notification-benchmarks/target/benchmarks.jar SegmenterBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmenterBenchmark {
+
+    private static final String ACK_INSTRUCTION = "\nTo acknowledge, reply '123456'.";
+
+    public enum Message {
+        /**
+         * Fits a single GSM-7 SMS.
+         */
+        Single("Alarm 'High Temperature' at 'Tanks/Tank 12' transitioned to Active."),
+        /**
+         * A throttled summary several GSM-7 SMS long.
+         */
+        Multipart(repeat("Alarm 'High Temperature' at 'Tanks/Tank 12' transitioned to Active. ", 8)),
+        /**
+         * The same, with a character that forces UCS-2.
+         */
+        MultipartUcs2(repeat("Alarm 'Temp\u00e9rature haute' at 'Cuves/Cuve 12' transitioned to Active \u2013 ", 8));
+
+        private final String text;
+
+        Message(String text) {
+            this.text = text;
+        }
+    }
+
+    @Param
+    public Message message;
+
+    @Param({"false", "true"})
+    public boolean concatenated;
+
+    private final NucleusSmsSegmenter segmenter = new NucleusSmsSegmenter();
+
+    private String text;
+
+    @Setup
+    public void setUp() {
+        text = message.text + ACK_INSTRUCTION;
+    }
+
+    @Benchmark
+    public NucleusSmsSegmenter.Segments segment() {
+        return segmenter.segment(text, ACK_INSTRUCTION, concatenated);
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder repeated = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            repeated.append(s);
+        }
+        return repeated.toString();
+    }
+
+}
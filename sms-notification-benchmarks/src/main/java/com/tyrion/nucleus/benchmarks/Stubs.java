@@ -0,0 +1,286 @@
+package com.tyrion.nucleus.benchmarks;
+
+import com.inductiveautomation.ignition.alarming.notification.NotificationContext;
+import com.inductiveautomation.ignition.common.QualifiedPath;
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.inductiveautomation.ignition.common.alarming.config.AlarmPriority;
+import com.inductiveautomation.ignition.common.config.Property;
+import com.inductiveautomation.ignition.common.execution.ExecutionManager;
+import com.inductiveautomation.ignition.common.i18n.LocalizedString;
+import com.inductiveautomation.ignition.common.user.ContactInfo;
+import com.inductiveautomation.ignition.common.user.ContactType;
+import com.inductiveautomation.ignition.common.user.User;
+import com.inductiveautomation.ignition.gateway.SystemManager;
+import com.inductiveautomation.ignition.gateway.alarming.AlarmManager;
+import com.inductiveautomation.ignition.gateway.model.GatewayContext;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-ins for the gateway's {@link AlarmEvent}s, {@link User}s and services, so the hot paths can be benchmarked and
+ * the profile load tested without a running gateway. They answer the handful of methods the profile calls, and
+ * anything else with null, false or 0.
+ */
+final class Stubs {
+
+    /**
+     * Told what the profile does with a notification and the alarms in it.
+     */
+    interface Outcomes {
+        void done(NotificationContext notification);
+
+        void failed(NotificationContext notification, LocalizedString message);
+
+        void acknowledged(Collection<UUID> alarmEventIds);
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * @param properties Values for {@link AlarmEvent#get(Property)}, by property name.
+     */
+    static AlarmEvent alarmEvent(final String name,
+                                 final AlarmPriority priority,
+                                 final Map<String, Object> properties) {
+        final UUID id = UUID.randomUUID();
+
+        return stub(AlarmEvent.class, new Answers() {
+            @Override
+            Object answer(String method, Object[] args) {
+                if ("getId".equals(method)) {
+                    return id;
+                } else if ("getName".equals(method)) {
+                    return name;
+                } else if ("getDisplayPath".equals(method)) {
+                    return "Tanks/Tank 12/" + name;
+                } else if ("getPriority".equals(method)) {
+                    return priority;
+                } else if ("get".equals(method)) {
+                    return properties.get(((Property<?>) args[0]).getName());
+                }
+                return NO_ANSWER;
+            }
+        });
+    }
+
+    static List<AlarmEvent> alarmEvents(int count) {
+        List<AlarmEvent> events = new ArrayList<AlarmEvent>(count);
+
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("name", "High Temperature " + i);
+            properties.put("displayPath", "Tanks/Tank 12/High Temperature " + i);
+            properties.put("eventState", "Active");
+
+            events.add(alarmEvent("High Temperature " + i, AlarmPriority.High, properties));
+        }
+
+        return events;
+    }
+
+    static User user(final String username, List<String> smsNumbers) throws Exception {
+        final QualifiedPath path = QualifiedPath.parse("usr-prov:default:/usr:" + username);
+        final Collection<ContactInfo> contactInfo = new ArrayList<ContactInfo>();
+        for (String number : smsNumbers) {
+            contactInfo.add(new ContactInfo(ContactType.SMS.getContactType(), number));
+        }
+
+        return stub(User.class, new Answers() {
+            @Override
+            Object answer(String method, Object[] args) {
+                if ("getContactInfo".equals(method)) {
+                    return contactInfo;
+                } else if ("getPath".equals(method)) {
+                    return path;
+                } else if ("get".equals(method) && args[0] == User.Username) {
+                    return username;
+                }
+                return NO_ANSWER;
+            }
+        });
+    }
+
+    /**
+     * @param properties Values for {@link NotificationContext#getOrDefault(Property)}; other properties read as their
+     *                   default.
+     */
+    static NotificationContext notificationContext(final User user,
+                                                   final List<AlarmEvent> events,
+                                                   final Map<Property<?>, Object> properties,
+                                                   final Outcomes outcomes) {
+        return stub(NotificationContext.class, new Answers() {
+            @Override
+            Object answer(String method, Object[] args) {
+                if ("getUser".equals(method)) {
+                    return user;
+                } else if ("getAlarmEvents".equals(method)) {
+                    return events;
+                } else if ("getOrDefault".equals(method)) {
+                    Property<?> property = (Property<?>) args[0];
+                    return properties.containsKey(property) ? properties.get(property) : property.getDefaultValue();
+                }
+                return NO_ANSWER;
+            }
+
+            @Override
+            Object answer(Object proxy, String method, Object[] args) {
+                if ("notificationDone".equals(method)) {
+                    outcomes.done((NotificationContext) proxy);
+                    return null;
+                } else if ("notificationFailed".equals(method)) {
+                    outcomes.failed((NotificationContext) proxy, (LocalizedString) args[0]);
+                    return null;
+                }
+                return answer(method, args);
+            }
+        });
+    }
+
+    /**
+     * A gateway whose scheduled tasks run on {@code executor} and whose alarms are acknowledged through
+     * {@code outcomes}. It has no audit profiles or internal database.
+     */
+    static GatewayContext gatewayContext(final ScheduledExecutorService executor,
+                                         final File dataDir,
+                                         final Outcomes outcomes) {
+        final ExecutionManager executionManager = executionManager(executor);
+
+        final AlarmManager alarmManager = stub(AlarmManager.class, new Answers() {
+            @Override
+            @SuppressWarnings("unchecked")
+            Object answer(String method, Object[] args) {
+                if ("acknowledge".equals(method)) {
+                    outcomes.acknowledged((Collection<UUID>) args[0]);
+                    return null;
+                }
+                return NO_ANSWER;
+            }
+        });
+
+        final SystemManager systemManager = stub(SystemManager.class, new Answers() {
+            @Override
+            Object answer(String method, Object[] args) {
+                return "getDataDir".equals(method) ? dataDir : NO_ANSWER;
+            }
+        });
+
+        return stub(GatewayContext.class, new Answers() {
+            @Override
+            Object answer(String method, Object[] args) {
+                if ("getExecutionManager".equals(method)) {
+                    return executionManager;
+                } else if ("getAlarmManager".equals(method)) {
+                    return alarmManager;
+                } else if ("getSystemManager".equals(method)) {
+                    return systemManager;
+                }
+                return NO_ANSWER;
+            }
+        });
+    }
+
+    /**
+     * Runs tasks registered with {@code register(owner, name, runnable, rate, unit)} at a fixed rate until they're
+     * unregistered.
+     */
+    private static ExecutionManager executionManager(final ScheduledExecutorService executor) {
+        final Map<String, ScheduledFuture<?>> tasks = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+
+        return stub(ExecutionManager.class, new Answers() {
+            @Override
+            Object answer(String method, Object[] args) {
+                if ("register".equals(method) && args.length == 5) {
+                    long rate = ((Number) args[3]).longValue();
+                    ScheduledFuture<?> previous = tasks.put(args[0] + "/" + args[1],
+                            executor.scheduleAtFixedRate((Runnable) args[2], rate, rate, (TimeUnit) args[4]));
+                    if (previous != null) {
+                        previous.cancel(false);
+                    }
+                    return null;
+                } else if ("unRegister".equals(method)) {
+                    ScheduledFuture<?> task = tasks.remove(args[0] + "/" + args[1]);
+                    if (task != null) {
+                        task.cancel(false);
+                    }
+                    return null;
+                }
+                return NO_ANSWER;
+            }
+        });
+    }
+
+    private static <T> T stub(Class<T> type, Answers answers) {
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, answers));
+    }
+
+    private abstract static class Answers implements InvocationHandler {
+
+        static final Object NO_ANSWER = new Object();
+
+        abstract Object answer(String method, Object[] args);
+
+        /**
+         * Override instead of {@link #answer(String, Object[])} to see the proxy being called.
+         */
+        Object answer(Object proxy, String method, Object[] args) {
+            return answer(method, args);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            Object answer = answer(proxy, method.getName(), args);
+            if (answer != NO_ANSWER) {
+                return answer;
+            }
+
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(method.getName())) {
+                return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == char.class) {
+                return '\0';
+            } else if (returnType.isPrimitive() && returnType != void.class) {
+                return zeroOf(returnType);
+            }
+            return null;
+        }
+
+        private static Object zeroOf(Class<?> type) {
+            if (type == long.class) {
+                return 0L;
+            } else if (type == double.class) {
+                return 0.0;
+            } else if (type == float.class) {
+                return 0.0f;
+            } else if (type == short.class) {
+                return (short) 0;
+            } else if (type == byte.class) {
+                return (byte) 0;
+            }
+            return 0;
+        }
+
+    }
+
+}
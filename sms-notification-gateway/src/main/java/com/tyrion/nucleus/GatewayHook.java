@@ -8,6 +8,8 @@ import com.inductiveautomation.ignition.common.user.ContactType;
 import com.inductiveautomation.ignition.gateway.model.AbstractGatewayModuleHook;
 import com.inductiveautomation.ignition.gateway.model.GatewayContext;
 import com.inductiveautomation.ignition.gateway.services.ModuleServiceConsumer;
+import com.tyrion.nucleus.profile.NucleusSmsAckRouter;
+import com.tyrion.nucleus.profile.NucleusSmsAckServlet;
 import com.tyrion.nucleus.profile.NucleusSmsNotificationProfileType;
 import com.tyrion.nucleus.profile.NucleusSmsProperties;
 import org.slf4j.Logger;
@@ -21,10 +23,12 @@ public class GatewayHook extends AbstractGatewayModuleHook implements ModuleServ
 
     private volatile GatewayContext gatewayContext;
     private volatile AlarmNotificationContext notificationContext;
+    private volatile NucleusSmsAckRouter ackRouter;
 
     @Override
     public void setup(GatewayContext context) {
         this.gatewayContext = context;
+        this.ackRouter = new NucleusSmsAckRouter(context);
 
         context.getModuleServicesManager().subscribe(AlarmNotificationContext.class, this);
 
@@ -34,6 +38,8 @@ public class GatewayHook extends AbstractGatewayModuleHook implements ModuleServ
 
         context.getAlarmManager().registerExtendedConfigProperties(ModuleMeta.MODULE_ID,
                 NucleusSmsProperties.CUSTOM_MESSAGE);
+
+        context.getWebResourceManager().addServlet(NucleusSmsAckServlet.SERVLET_NAME, NucleusSmsAckServlet.class);
     }
 
     @Override
@@ -48,12 +54,16 @@ public class GatewayHook extends AbstractGatewayModuleHook implements ModuleServ
         if (notificationContext != null) {
             try {
                 notificationContext.getAlarmNotificationManager().removeAlarmNotificationProfileType(
-                        new NucleusSmsNotificationProfileType());
+                        new NucleusSmsNotificationProfileType(ackRouter));
             } catch (Exception e) {
                 log.error("Error removing notification profile.", e);
             }
         }
 
+        ackRouter.shutdown();
+
+        gatewayContext.getWebResourceManager().removeServlet(NucleusSmsAckServlet.SERVLET_NAME);
+
         BundleUtil.get().removeBundle("NucleusSmsNotification");
     }
 
@@ -65,7 +75,7 @@ public class GatewayHook extends AbstractGatewayModuleHook implements ModuleServ
 
             try {
                 notificationContext.getAlarmNotificationManager().addAlarmNotificationProfileType(
-                        new NucleusSmsNotificationProfileType());
+                        new NucleusSmsNotificationProfileType(ackRouter));
             } catch (Exception e) {
                 log.error("Error adding notification profile.", e);
             }
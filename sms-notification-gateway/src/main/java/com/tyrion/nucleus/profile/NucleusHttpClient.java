@@ -0,0 +1,321 @@
+package com.tyrion.nucleus.profile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts JSON to Nucleus. One instance is shared by everything a profile sends, and limits how many of its requests
+ * are in flight at once.
+ * <p>
+ * Requests are made with {@link HttpURLConnection}, which keeps connections open between requests to the same host
+ * once a response has been read to the end, so a steady stream of SMS and acknowledgement polls rides a few persistent
+ * connections instead of paying for a TCP (and possibly TLS) handshake every time. How many idle connections are kept
+ * per host is up to the JVM's {@code http.keepAlive} and {@code http.maxConnections} system properties, which the JDK
+ * reads once for the whole gateway; connections beyond that are closed after use. HTTPS connections check the
+ * server's certificate and hostname as usual, and are counted as opened or reused. Plain HTTP connections are kept
+ * alive just the same, but {@link HttpURLConnection} gives no way to tell a new one from a reused one.
+ * <p>
+ * A request that fails before any of it is sent throws {@link NotSentException}; only those are safe to send again.
+ * Any other failure, in particular a read timeout, may come after Nucleus has already acted on the request. That
+ * includes a kept-alive connection the server closed in the meantime: the JDK would otherwise reopen it and send the
+ * request again by itself (unless {@code sun.net.http.retryPost} is false, which it reads once per JVM), and it
+ * can't know whether the first one got through. Bodies are sent in fixed-length streaming mode, which turns that
+ * resend off for every request made here, so an SMS is never sent twice behind the retry policy's back.
+ */
+public class NucleusHttpClient {
+
+    /**
+     * The JDK's own default for {@code http.maxConnections}.
+     */
+    private static final int DEFAULT_IDLE_CONNECTIONS = 5;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Semaphore permits;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong connectionsOpened = new AtomicLong(0);
+    private final AtomicLong connectionsReused = new AtomicLong(0);
+
+    /**
+     * Shared by every HTTPS request, as the JDK only reuses a connection for requests with the same socket factory.
+     */
+    private final CountingSocketFactory sockets =
+            new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxConnections The most requests that may be in flight at once. At most {@code http.maxConnections} of
+     *                       their connections are kept open once they're idle.
+     * @param connectTimeout Connect timeout, in milliseconds. 0 waits indefinitely, for a connection and for a free
+     *                       slot among {@code maxConnections}.
+     * @param readTimeout    Read timeout, in milliseconds. Applies to each read, not the whole response.
+     */
+    public NucleusHttpClient(int maxConnections, int connectTimeout, int readTimeout) {
+        this.permits = new Semaphore(Math.max(1, maxConnections), true);
+        this.connectTimeout = Math.max(0, connectTimeout);
+        this.readTimeout = Math.max(0, readTimeout);
+
+        int idleConnections = Integer.getInteger("http.maxConnections", DEFAULT_IDLE_CONNECTIONS);
+        if (maxConnections > idleConnections) {
+            log.info(String.format("Up to %d requests may be in flight, but the JVM only keeps %d idle connection(s) "
+                    + "per host open; raise the http.maxConnections system property to keep more.",
+                    maxConnections, idleConnections));
+        }
+    }
+
+    /**
+     * Handles a response body as it's read off the connection.
+     */
+    public interface ResponseHandler<T> {
+        T handle(InputStream body) throws Exception;
+    }
+
+    /**
+     * POST a JSON body and read the whole response as a String.
+     */
+    public String post(String url, String json) throws Exception {
+        return post(url, json.getBytes(StandardCharsets.UTF_8), new ResponseHandler<String>() {
+            @Override
+            public String handle(InputStream body) throws IOException {
+                return org.apache.commons.io.IOUtils.toString(body, "UTF-8");
+            }
+        });
+    }
+
+    /**
+     * POST a JSON body and hand the response to {@code handler}. The handler doesn't need to consume the whole body.
+     *
+     * @throws HttpStatusException if Nucleus answers with anything other than a 2xx status.
+     */
+    public <T> T post(String url, byte[] body, ResponseHandler<T> handler) throws Exception {
+        if (closed) {
+            throw new IOException("HTTP client is closed.");
+        }
+
+        URL target = new URL(url);
+
+        if (connectTimeout == 0) {
+            permits.acquire();
+        } else if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+            throw new NotSentException("Timed out waiting for a free connection to " + target.getHost(), null);
+        }
+
+        try {
+            requests.incrementAndGet();
+
+            HttpURLConnection conn = (HttpURLConnection) target.openConnection();
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            conn.setUseCaches(false);
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+
+            HttpsURLConnection https = conn instanceof HttpsURLConnection ? (HttpsURLConnection) conn : null;
+            if (https != null) {
+                https.setSSLSocketFactory(sockets);
+                sockets.opened.set(Boolean.FALSE);
+            }
+
+            try {
+                conn.connect();
+            } catch (IOException e) {
+                throw new NotSentException("Couldn't connect to " + target.getHost() + ": " + e, e);
+            }
+
+            if (https != null) {
+                (sockets.opened.get() ? connectionsOpened : connectionsReused).incrementAndGet();
+            }
+
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            int status = conn.getResponseCode();
+            if (status < 200 || status >= 300) {
+                discard(conn.getErrorStream());
+                throw new HttpStatusException(status);
+            }
+
+            InputStream in = conn.getInputStream();
+            try {
+                return handler.handle(in);
+            } finally {
+                // Whatever the handler left behind has to be read before the connection can carry another request.
+                discard(in);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return How many HTTPS connections have been opened.
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return How many HTTPS requests went out on a connection kept open from an earlier one.
+     */
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    /**
+     * Refuse further requests.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Read {@code in} to its end and close it, which hands its connection back to be kept alive.
+     */
+    private static void discard(InputStream in) {
+        if (in == null) {
+            return;
+        }
+
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } catch (IOException ignored) {
+            // The connection won't be reused.
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Hands out the JDK's sockets, noting on the calling thread that a new connection was needed. The JDK only asks
+     * for a socket while connecting a request that found no idle connection to reuse.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        private final ThreadLocal<Boolean> opened = new ThreadLocal<Boolean>() {
+            @Override
+            protected Boolean initialValue() {
+                return Boolean.FALSE;
+            }
+        };
+
+        private CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            opened.set(Boolean.TRUE);
+            return delegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            opened.set(Boolean.TRUE);
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            opened.set(Boolean.TRUE);
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            opened.set(Boolean.TRUE);
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            opened.set(Boolean.TRUE);
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            opened.set(Boolean.TRUE);
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+
+    }
+
+    /**
+     * Thrown when a request fails before any of it was sent: no free connection in time, or the connection couldn't
+     * be made (refused, timed out, unknown host and so on).
+     */
+    public static class NotSentException extends IOException {
+
+        public NotSentException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+    }
+
+    /**
+     * Thrown when Nucleus answers with a non-2xx status.
+     */
+    public static class HttpStatusException extends IOException {
+
+        private final int status;
+
+        public HttpStatusException(int status) {
+            super("Nucleus returned HTTP " + status);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+    }
+
+}
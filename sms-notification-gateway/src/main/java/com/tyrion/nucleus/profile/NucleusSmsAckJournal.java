@@ -0,0 +1,529 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.inductiveautomation.ignition.common.QualifiedPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of alarm code registrations and removals, so that codes sent out before a gateway restart
+ * (or module reload) can still be replied to afterwards.
+ * <p>
+ * The send path only serializes a small record and offers it to a bounded queue; a background thread does the
+ * writing, syncs each batch to disk, and rewrites the file to just the live registrations once it has grown to
+ * several times their size. If the queue is ever full a registration is dropped and counted rather than making the
+ * sender wait; that code just won't survive a restart. A removal is never dropped, since that would bring an
+ * acknowledged code back after a restart, and never waits either: it's noted in a map of removed codes, which can't
+ * outgrow the number of possible codes, and the writer takes them from there. Every record is numbered as it's made,
+ * and each batch is written in that order, so a code's removal always follows its registration in the file. On
+ * startup {@link #replay()} reads the file back, treating a torn record at the end, left by a crash, as the end of the
+ * file.
+ * <p>
+ * Each record is framed as {@code [int length][int crc32][payload]}. A code shared by several users is written as a
+ * separate record type, so journals written before codes could be shared still replay.
+ */
+public class NucleusSmsAckJournal implements NucleusSmsAckRegistry.Listener {
+
+    private static final byte REGISTERED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte REGISTERED_SHARED = 3;
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
+    private static final Comparator<Record> SEQUENCE_ORDER = new Comparator<Record>() {
+        @Override
+        public int compare(Record a, Record b) {
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final File file;
+    private final BlockingQueue<Record> queue;
+    private final ExecutorService writer;
+
+    /**
+     * The sequence number of the latest removal of each code not yet written.
+     */
+    private final ConcurrentMap<String, Long> removals = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * The registration record for every live code, as the writer thread sees it. Used to compact the journal.
+     */
+    private final Map<String, byte[]> live = new LinkedHashMap<String, byte[]>();
+
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong compactions = new AtomicLong(0);
+
+    private FileChannel channel;
+    private long recordsInFile = 0;
+
+    private volatile boolean running = true;
+
+    public NucleusSmsAckJournal(String profileName, File file) {
+        this(profileName, file, QUEUE_CAPACITY);
+    }
+
+    NucleusSmsAckJournal(String profileName, File file, int queueCapacity) {
+        this.file = file;
+        this.queue = new ArrayBlockingQueue<Record>(Math.max(1, queueCapacity));
+
+        writer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsAckJournal[%s]", profileName))
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Read back the codes that were outstanding when the journal was last written, then compact the file down to
+     * them and start accepting new records.
+     *
+     * @return The registrations that were never acknowledged or expired, oldest first. Some may have passed their
+     * expiry time while the gateway was down; the registry discards those.
+     */
+    public List<NucleusSmsAckRegistry.Entry> replay() {
+        List<NucleusSmsAckRegistry.Entry> entries = new ArrayList<NucleusSmsAckRegistry.Entry>();
+
+        if (file.exists()) {
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    readRecords(new DataInputStream(in));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                log.warn("Error reading acknowledgement journal '" + file + "'; outstanding codes may be lost.", e);
+            }
+
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, byte[]> record : new ArrayList<Map.Entry<String, byte[]>>(live.entrySet())) {
+                try {
+                    NucleusSmsAckRegistry.Entry entry = decodeRegistration(record.getValue());
+
+                    if (entry.getExpiresAtMillis() > now) {
+                        entries.add(entry);
+                    } else {
+                        live.remove(record.getKey());
+                    }
+                } catch (IOException e) {
+                    live.remove(record.getKey());
+                }
+            }
+
+            log.debug(String.format("Replayed %d outstanding alarm code(s) from '%s'.", entries.size(), file));
+        }
+
+        try {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Couldn't create " + parent);
+            }
+
+            compact();
+        } catch (IOException e) {
+            log.error("Error opening acknowledgement journal '" + file + "'; alarm codes won't survive a restart.", e);
+        }
+
+        writer.execute(new Writer());
+
+        return entries;
+    }
+
+    /**
+     * Must be called before {@code entry} can be found, so before anything can remove it.
+     */
+    @Override
+    public void registered(NucleusSmsAckRegistry.Entry entry) {
+        try {
+            byte[] payload = encodeRegistration(entry);
+            offer(new Record(sequence.incrementAndGet(), payload));
+        } catch (IOException e) {
+            log.debug("Error journaling alarm code '" + entry.getCode() + "'.", e);
+        }
+    }
+
+    @Override
+    public void removed(NucleusSmsAckRegistry.Entry entry) {
+        if (running) {
+            // A later removal of a reused code replaces an earlier one still waiting; only the last matters.
+            removals.put(entry.getCode(), sequence.incrementAndGet());
+        }
+    }
+
+    /**
+     * Write out anything still queued and close the file.
+     */
+    public void close() {
+        // Not shutdownNow(): interrupting the writer would close the file channel mid-write.
+        running = false;
+        writer.shutdown();
+
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the acknowledgement journal to be written.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    private void offer(Record record) {
+        if (!running) {
+            return;
+        }
+
+        if (!queue.offer(record)) {
+            if (dropped.getAndIncrement() == 0) {
+                log.warn("Acknowledgement journal queue is full; some alarm codes won't survive a restart.");
+            }
+        }
+    }
+
+    /**
+     * Move the waiting removals into {@code batch}.
+     */
+    private void takeRemovals(List<Record> batch) throws IOException {
+        for (Map.Entry<String, Long> removal : removals.entrySet()) {
+            // Left for the next batch if the code was removed again meanwhile.
+            if (removals.remove(removal.getKey(), removal.getValue())) {
+                batch.add(new Record(removal.getValue(), encodeRemoval(removal.getKey())));
+            }
+        }
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            List<Record> batch = new ArrayList<Record>();
+
+            try {
+                while (running || !queue.isEmpty() || !removals.isEmpty()) {
+                    Record first = running ? queue.poll(250, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (first != null) {
+                        batch.add(first);
+                    }
+
+                    // Removals are taken before the queue is drained. A code's registration was queued before it
+                    // could be removed, so it's in this batch or an earlier one, and sorting puts it first.
+                    try {
+                        takeRemovals(batch);
+                    } catch (IOException e) {
+                        log.error("Error journaling alarm code removals.", e);
+                    }
+                    queue.drainTo(batch);
+
+                    Collections.sort(batch, SEQUENCE_ORDER);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeChannel();
+            }
+        }
+    }
+
+    private void write(List<Record> batch) {
+        if (channel == null || batch.isEmpty()) {
+            return;
+        }
+
+        // Runtime errors are caught too, so one bad record doesn't stop the writer.
+        try {
+            for (Record record : batch) {
+                apply(record.payload);
+                channel.write(frame(record.payload));
+            }
+
+            // One sync per batch: a burst of registrations costs one disk flush, not one each.
+            channel.force(false);
+            recordsInFile += batch.size();
+            written.addAndGet(batch.size());
+
+            if (recordsInFile > MIN_COMPACT_RECORDS && recordsInFile > 4L * live.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.error("Error writing acknowledgement journal '" + file + "'.", e);
+        } catch (RuntimeException e) {
+            log.error("Error writing acknowledgement journal '" + file + "'.", e);
+        }
+    }
+
+    /**
+     * Rewrite the journal to hold only the live registrations, then continue appending to it.
+     */
+    private void compact() throws IOException {
+        closeChannel();
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel tempChannel = out.getChannel();
+            for (byte[] payload : live.values()) {
+                tempChannel.write(frame(payload));
+            }
+            tempChannel.force(true);
+        } finally {
+            out.close();
+        }
+
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = new FileOutputStream(file, true).getChannel();
+        recordsInFile = live.size();
+        compactions.incrementAndGet();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Read every intact record, stopping at the first one that's truncated or fails its checksum. A truncated or
+     * corrupt last record is what a crash mid-write leaves behind, so it's treated as the end of the file.
+     */
+    private void readRecords(DataInputStream in) throws IOException {
+        while (true) {
+            int length;
+            int crc;
+            byte[] payload;
+
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+
+            try {
+                crc = in.readInt();
+                if (length <= 0 || length > 1 << 20) {
+                    corrupt(in);
+                    return;
+                }
+
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch (EOFException e) {
+                log.debug("Acknowledgement journal '" + file + "' ends with a partial record.");
+                return;
+            }
+
+            if (checksum(payload) != crc) {
+                corrupt(in);
+                return;
+            }
+
+            apply(payload);
+        }
+    }
+
+    private void corrupt(DataInputStream in) throws IOException {
+        if (in.read() == -1) {
+            log.debug("Acknowledgement journal '" + file + "' ends with a torn record.");
+        } else {
+            log.warn("Corrupt record in acknowledgement journal '" + file + "'; ignoring the rest of it.");
+        }
+    }
+
+    /**
+     * Keep {@link #live} in step with a record.
+     */
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String code = in.readUTF();
+
+        if (type == REGISTERED || type == REGISTERED_SHARED) {
+            live.put(code, payload);
+        } else if (type == REMOVED) {
+            live.remove(code);
+        }
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeRemoval(String code) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVED);
+        out.writeUTF(code);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeRegistration(NucleusSmsAckRegistry.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<NucleusSmsAckRegistry.Recipient> recipients = entry.getRecipients();
+
+        out.writeByte(recipients.size() == 1 ? REGISTERED : REGISTERED_SHARED);
+        out.writeUTF(entry.getCode());
+        out.writeLong(entry.getCreatedAtMillis());
+        out.writeLong(entry.getExpiresAtMillis());
+
+        if (recipients.size() == 1) {
+            encodeRecipient(recipients.get(0), out);
+        } else {
+            out.writeShort(recipients.size());
+            for (NucleusSmsAckRegistry.Recipient recipient : recipients) {
+                encodeRecipient(recipient, out);
+            }
+        }
+
+        out.writeInt(entry.getAlarmEventIds().size());
+        for (UUID id : entry.getAlarmEventIds()) {
+            out.writeLong(id.getMostSignificantBits());
+            out.writeLong(id.getLeastSignificantBits());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void encodeRecipient(NucleusSmsAckRegistry.Recipient recipient, DataOutputStream out)
+            throws IOException {
+        out.writeUTF(recipient.getUserPath() == null ? "" : recipient.getUserPath().toString());
+        out.writeUTF(recipient.getUsername() == null ? "" : recipient.getUsername());
+
+        out.writeShort(recipient.getNumbers().size());
+        for (String number : recipient.getNumbers()) {
+            out.writeUTF(number);
+        }
+    }
+
+    private NucleusSmsAckRegistry.Entry decodeRegistration(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        byte type = in.readByte();
+        String code = in.readUTF();
+        long createdAtMillis = in.readLong();
+        long expiresAtMillis = in.readLong();
+
+        int recipientCount = type == REGISTERED_SHARED ? in.readShort() : 1;
+        List<NucleusSmsAckRegistry.Recipient> recipients =
+                new ArrayList<NucleusSmsAckRegistry.Recipient>(recipientCount);
+        for (int i = 0; i < recipientCount; i++) {
+            recipients.add(decodeRecipient(in));
+        }
+
+        int eventCount = in.readInt();
+        List<UUID> alarmEventIds = new ArrayList<UUID>(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            alarmEventIds.add(new UUID(in.readLong(), in.readLong()));
+        }
+
+        return new NucleusSmsAckRegistry.Entry(code, createdAtMillis, expiresAtMillis, recipients, alarmEventIds, null);
+    }
+
+    private NucleusSmsAckRegistry.Recipient decodeRecipient(DataInputStream in) throws IOException {
+        String userPath = in.readUTF();
+        String username = in.readUTF();
+
+        int numberCount = in.readShort();
+        List<String> numbers = new ArrayList<String>(numberCount);
+        for (int i = 0; i < numberCount; i++) {
+            numbers.add(in.readUTF());
+        }
+
+        return new NucleusSmsAckRegistry.Recipient(parsePath(userPath), username, numbers);
+    }
+
+    private QualifiedPath parsePath(String path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return QualifiedPath.parse(path);
+        } catch (Exception e) {
+            log.debug("Couldn't parse user path '" + path + "' from the acknowledgement journal.", e);
+            return null;
+        }
+    }
+
+    /**
+     * A record waiting to be written.
+     */
+    private static class Record {
+
+        private final long sequence;
+        private final byte[] payload;
+
+        private Record(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+    }
+
+}
@@ -3,6 +3,7 @@ package com.tyrion.nucleus.profile;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
+import com.inductiveautomation.ignition.common.QualifiedPath;
 import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
 import com.inductiveautomation.ignition.common.alarming.EventData;
 import com.inductiveautomation.ignition.common.alarming.config.CommonAlarmProperties;
@@ -13,18 +14,12 @@ import com.inductiveautomation.ignition.common.user.ContactType;
 import com.inductiveautomation.ignition.common.user.User;
 import com.inductiveautomation.ignition.gateway.alarming.AlarmManager;
 import com.inductiveautomation.ignition.gateway.model.GatewayContext;
-import org.apache.commons.lang.RandomStringUtils;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.python.google.common.collect.Maps;
+import com.inductiveautomation.metro.utils.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -33,46 +28,282 @@ import java.util.concurrent.TimeUnit;
  */
 public class NucleusSmsAckManager {
 
+    /**
+     * How replies get from Nucleus to the gateway.
+     */
+    public enum AckMode {
+        /**
+         * Ask Nucleus for its buffer of received SMS every Poll Interval while replies are expected. Polling slows
+         * down towards the Idle Poll Interval while none are, and backs off towards the Error Poll Interval while
+         * Nucleus is failing.
+         */
+        Poll,
+        /**
+         * Nucleus posts received SMS to {@link NucleusSmsAckServlet}. The buffer is still polled occasionally in case a
+         * push was missed. Pushed replies only acknowledge this profile's alarms, so a Nucleus that several profiles
+         * send through should be polled instead.
+         */
+        Push
+    }
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     /**
-     * Maps an alarm key to the alarms and users who were sent that key.
+     * The alarm codes that have been sent and are waiting for a reply.
      */
-    private final Map<String, AwaitingAcknowledgement> alarmCodes = Maps.newHashMap();
+    private final NucleusSmsAckRegistry registry;
+
+    /**
+     * Keeps {@link #registry} on disk across restarts. Null if persistence is turned off.
+     */
+    private final NucleusSmsAckJournal journal;
 
     private final AlarmManager alarmManager;
 
     private final GatewayContext context;
     private final String profileName;
-    private final String hostURL;
+    private final NucleusSmsAckRouter router;
+    private final NucleusSmsMetrics metrics;
+    private final NucleusSmsPhoneNumbers phoneNumbers;
+    private final AckMode ackMode;
+    private final String pushToken;
+    private final boolean polling;
 
-    public NucleusSmsAckManager(GatewayContext context, String profileName, String hostURL) {
+    /**
+     * One for each endpoint, since each endpoint's buffer is read, and can fail, separately.
+     */
+    private final List<NucleusSmsPollSchedule> pollSchedules = new ArrayList<NucleusSmsPollSchedule>();
+
+    public NucleusSmsAckManager(GatewayContext context,
+                                String profileName,
+                                NucleusSmsAckRouter router,
+                                NucleusHttpClient client,
+                                NucleusSmsEndpoints endpoints,
+                                NucleusSmsMetrics metrics,
+                                NucleusSmsNotificationProfileSettings settings) {
         this.context = context;
         this.profileName = profileName;
-        this.hostURL = hostURL;
+        this.router = router;
+        this.metrics = metrics;
+        this.phoneNumbers = new NucleusSmsPhoneNumbers(settings.getCountryCode(), settings.getTrunkPrefix());
+        this.pushToken = settings.getPushToken();
+
+        if (settings.getAckMode() == AckMode.Push && StringUtils.isBlank(pushToken)) {
+            // Without a token, anyone who can reach the gateway could push replies that acknowledge alarms.
+            log.error("Push acknowledgement needs a Push Token; replies will be polled for until one is set.");
+            this.ackMode = AckMode.Poll;
+        } else {
+            this.ackMode = settings.getAckMode();
+        }
         this.alarmManager = context.getAlarmManager();
 
+        if (settings.isPersistAckCodes()) {
+            journal = new NucleusSmsAckJournal(profileName, new File(
+                    context.getSystemManager().getDataDir(),
+                    "nucleus-sms/ack-journal-" + settings.getId() + ".bin"));
+        } else {
+            journal = null;
+        }
+
+        NucleusSmsCodeAllocator allocator =
+                new NucleusSmsCodeAllocator(settings.getAckCodeAlphabet(), settings.getAckCodeLength());
+
+        if (settings.getMaxOutstandingCodes() > allocator.getCapacity() * NucleusSmsAckRegistry.CROWDED_UTILISATION) {
+            log.warn(String.format("Up to %d alarm codes may be outstanding, but there are only %d possible codes of "
+                            + "%d character(s) from '%s'. Use longer alarm codes, or a larger alphabet.",
+                    settings.getMaxOutstandingCodes(), allocator.getCapacity(), allocator.getLength(),
+                    allocator.getAlphabet()));
+        }
+
+        registry = new NucleusSmsAckRegistry(
+                settings.getAckCodeTTL(), TimeUnit.MINUTES,
+                settings.getMaxOutstandingCodes(),
+                journal,
+                router.codeIndex(this),
+                allocator);
+
+        if (journal != null) {
+            for (NucleusSmsAckRegistry.Entry entry : journal.replay()) {
+                registry.restore(entry);
+            }
+
+            if (!registry.isEmpty()) {
+                log.info(String.format("Restored %d outstanding alarm code(s).", registry.size()));
+            }
+        }
+
+        // Replies normally arrive by push, if enabled. Then only poll as a safety net, and only while replies are
+        // expected.
+        polling = ackMode != AckMode.Push || settings.getFallbackPollInterval() > 0;
+
+        // Each reply arrives at whichever modem the user texted, so every endpoint's buffer is read.
+        for (NucleusSmsEndpoint endpoint : endpoints.getAll()) {
+            NucleusSmsPollSchedule pollSchedule = newPollSchedule(settings);
+            pollSchedules.add(pollSchedule);
+
+            if (polling) {
+                router.subscribe(this, endpoint, client, pollSchedule);
+            }
+        }
+
+        if (ackMode == AckMode.Push) {
+            NucleusSmsAckServlet.register(profileName, this);
+        }
+
         context.getExecutionManager().register(
                 String.format("NucleusSmsAckManager[%s]", profileName),
                 "OrphanedAcknowledgementCleanup",
                 new OrphanedAcknowledgementCleanup(),
-                1, TimeUnit.MINUTES);
-
-        context.getExecutionManager().register(
-                String.format("NucleusSmsAckManager[%s]", profileName),
-                "AcknowledgementReceived",
-                new AcknowledgementReceived(),
                 1, TimeUnit.SECONDS);
     }
 
+    private NucleusSmsPollSchedule newPollSchedule(NucleusSmsNotificationProfileSettings settings) {
+        if (ackMode == AckMode.Push) {
+            return new NucleusSmsPollSchedule(
+                    settings.getFallbackPollInterval(), 0, settings.getErrorPollInterval(), TimeUnit.SECONDS);
+        } else {
+            return new NucleusSmsPollSchedule(
+                    settings.getPollInterval(),
+                    settings.getIdlePollInterval(),
+                    settings.getErrorPollInterval(),
+                    TimeUnit.SECONDS);
+        }
+    }
+
     public void onShutdown() {
         context.getExecutionManager().unRegister(
                 String.format("NucleusSmsAckManager[%s]", profileName),
                 "OrphanedAcknowledgementCleanup");
 
-        context.getExecutionManager().unRegister(
-                String.format("NucleusSmsAckManager[%s]", profileName),
-                "AcknowledgementReceived");
+        router.unsubscribe(this);
+
+        NucleusSmsAckServlet.unregister(profileName, this);
+
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * @return The schedule for the endpoint whose acknowledgement buffer has been read most reliably of late. It's
+     * only backing off if every endpoint is failing.
+     */
+    public NucleusSmsPollSchedule getPollSchedule() {
+        NucleusSmsPollSchedule best = null;
+
+        for (NucleusSmsPollSchedule pollSchedule : pollSchedules) {
+            if (best == null || pollSchedule.getConsecutiveErrors() < best.getConsecutiveErrors()) {
+                best = pollSchedule;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * @return The alarm codes waiting for a reply.
+     */
+    public NucleusSmsAckRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return The gateway-wide router this profile's acknowledgement buffers are read through.
+     */
+    public NucleusSmsAckRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * @return How many reads of its endpoints' acknowledgement buffers this profile has been told about, including
+     * failed ones.
+     */
+    public long getPollCount() {
+        long count = 0;
+        for (NucleusSmsPollSchedule pollSchedule : pollSchedules) {
+            count += pollSchedule.getPollCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return How many of those reads failed.
+     */
+    public long getPollErrorCount() {
+        long count = 0;
+        for (NucleusSmsPollSchedule pollSchedule : pollSchedules) {
+            count += pollSchedule.getErrorCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return How many times polling an endpoint has slowed down (or stopped) because nothing was outstanding.
+     */
+    public long getIdleBackoffCount() {
+        long count = 0;
+        for (NucleusSmsPollSchedule pollSchedule : pollSchedules) {
+            count += pollSchedule.getIdleBackoffCount();
+        }
+        return count;
+    }
+
+    boolean hasOutstanding() {
+        return !registry.isEmpty();
+    }
+
+    /**
+     * Process SMS pushed to this profile by Nucleus, either a single {@code {number, message, timestamp}} object or a
+     * {@code {messages: [...]}} buffer of them. Only this profile's alarm codes are acknowledged; replies to codes sent
+     * by other profiles are ignored, since the push was only authorized with this profile's token.
+     *
+     * @param maxMessages The most SMS to accept at once.
+     * @return The number of SMS processed.
+     */
+    int receive(InputStream json, int maxMessages) throws Exception {
+        return router.receive(json, maxMessages, this);
+    }
+
+    /**
+     * Called by the router after it has tried to read the acknowledgement buffer from {@code url}.
+     *
+     * @param pollSchedule This profile's schedule for {@code url}.
+     * @param read         Whether the buffer was read.
+     */
+    void polled(NucleusSmsPollSchedule pollSchedule, String url, boolean read) {
+        boolean wasFailing = pollSchedule.getState() == NucleusSmsPollSchedule.State.Backoff;
+
+        if (read) {
+            pollSchedule.onSuccess(System.nanoTime(), hasOutstanding());
+
+            if (wasFailing) {
+                log.info("Reading the acknowledgement buffer from " + url + " succeeded again.");
+            }
+        } else {
+            pollSchedule.onError(System.nanoTime());
+
+            if (!wasFailing) {
+                log.warn(String.format("Error reading the acknowledgement buffer from %s; retrying in %d ms.",
+                        url, pollSchedule.getCurrentIntervalMillis()));
+            }
+        }
+    }
+
+    void recordPoll(long elapsedNanos, int received) {
+        metrics.recordPoll(elapsedNanos, received);
+    }
+
+    private void wakePollSchedules() {
+        for (NucleusSmsPollSchedule pollSchedule : pollSchedules) {
+            pollSchedule.wake();
+        }
+    }
+
+    /**
+     * @return true if pushed SMS may be accepted with the given token. Never true while no push token is configured.
+     */
+    boolean isPushTokenValid(String token) {
+        return !StringUtils.isBlank(pushToken) && NucleusSmsAckServlet.tokensMatch(pushToken, token);
     }
 
     /**
@@ -84,16 +315,35 @@ public class NucleusSmsAckManager {
      * include in a response SMS that will acknowledge these {@link AlarmEvent}s.
      */
     public String registerAlarms(User user, List<AlarmEvent> alarmEvents) {
-        String alarmCode = nextAlarmCode();
+        String alarmCode = registry.register(
+                user.getPath(),
+                user.get(User.Username),
+                getSmsNumbers(user),
+                alarmEvents).getCode();
 
-        synchronized (alarmCodes) {
-            if (alarmCodes.containsKey(alarmCode)) {
-                return alarmCode;
-            }
+        wakePollSchedules();
+
+        return alarmCode;
+    }
 
-            alarmCodes.put(alarmCode, new AwaitingAcknowledgement(user, alarmEvents));
+    /**
+     * Register a list of {@link AlarmEvent}s that will be sent to several {@link User}s in one SMS, under one alarm
+     * code they share. Whichever of them replies first acknowledges the alarms.
+     *
+     * @return The shared "alarm code".
+     */
+    public String registerAlarms(List<User> users, List<AlarmEvent> alarmEvents) {
+        List<NucleusSmsAckRegistry.Recipient> recipients =
+                new ArrayList<NucleusSmsAckRegistry.Recipient>(users.size());
+        for (User user : users) {
+            recipients.add(new NucleusSmsAckRegistry.Recipient(
+                    user.getPath(), user.get(User.Username), getSmsNumbers(user)));
         }
 
+        String alarmCode = registry.register(recipients, alarmEvents).getCode();
+
+        wakePollSchedules();
+
         return alarmCode;
     }
 
@@ -104,204 +354,106 @@ public class NucleusSmsAckManager {
      * @param alarmCode      An alarm code.
      * @param incomingNumber The phone number that sent the SMS containing {@code alarmCode}.
      */
-    private void acknowledgeAlarm(final String alarmCode, final String incomingNumber, final Date ackTime) {
-        synchronized (alarmCodes) {
-            if (!alarmCodes.containsKey(alarmCode)) {
-                log.warn("Received an incoming SMS for an alarm code that is not registered: '" + alarmCode + "'.");
-                return;
-            }
-
-            AwaitingAcknowledgement ack = alarmCodes.get(alarmCode);
-
-            User user = ack.user;
-
-            if (incomingNumberBelongsToUser(incomingNumber, user)) {
-                alarmCodes.remove(alarmCode);
-
-                PropertySet associatedData = new PropertySetBuilder()
-                        .set(CommonAlarmProperties.AckUser, user.getPath())
-                        .set(CommonAlarmProperties.AckTime, ackTime)
-                        .build();
-
-                List<AlarmEvent> alarmEvents = ack.alarmEvents;
-
-                if (log.isDebugEnabled()) {
-                    for (AlarmEvent alarmEvent : alarmEvents) {
-                        log.debug("User '" + user.get(User.Username) + "' acknowledged AlarmEvent '" + alarmEvent.getId() + "'.");
-                    }
-                }
-
-                alarmManager.acknowledge(
-                        Collections2.transform(
-                                Collections2.filter(alarmEvents, new Predicate<AlarmEvent>() {
-                                    @Override
-                                    public boolean apply(AlarmEvent alarmEvent) {
-                                        return !alarmEvent.isAcked();
-                                    }
-                                }),
-                        new Function<AlarmEvent, UUID>() {
-                            @Override
-                            public UUID apply(AlarmEvent alarmEvent) {
-                                return alarmEvent.getId();
-                            }
-                        }),
-                        new EventData(associatedData));
-
-                return;
-            }
+    void acknowledgeAlarm(final String alarmCode, final String incomingNumber, final Date ackTime) {
+        NucleusSmsAckRegistry.Entry ack = registry.get(alarmCode);
+        String number = phoneNumbers.normalize(incomingNumber);
+
+        if (ack == null) {
+            // Acknowledged or expired since the router looked it up.
+            log.debug("Alarm code '" + alarmCode + "' is no longer registered.");
+            return;
         }
 
-        // If we get here, the incoming number didn't belong to somebody the alarm code was actually sent to.
-        log.warn("Received an Acknowledge for an alarm from a number (" + incomingNumber + ") that wasn't sent in that alarm!");
-    }
+        NucleusSmsAckRegistry.Recipient recipient = number == null ? null : ack.getRecipient(number);
 
-    private boolean incomingNumberBelongsToUser(final String incomingNumber, User user) {
-        return !Collections2.filter(
-                user.getContactInfo(),
-                new Predicate<ContactInfo>() {
-                    public boolean apply(ContactInfo contactInfo) {
-                        try {
-                            boolean smsContact = ContactType.SMS.getContactType().equals(contactInfo.getContactType());
-                            boolean sameNumber = smsContact && fixPhoneNumber(contactInfo.getValue()).equals(incomingNumber);
-
-                            return smsContact && sameNumber;
-                        } catch (Exception e) {
-                            log.warn("Error recognizing phone number.", e);
-                            return false;
-                        }
-                    }
-                }).isEmpty();
-    }
+        if (recipient == null) {
+            // The incoming number didn't belong to somebody the alarm code was actually sent to.
+            log.warn("Received an Acknowledge for an alarm from a number (" + incomingNumber + ") that wasn't sent in that alarm!");
 
-    private String fixPhoneNumber(String phoneNumber){
-        if(!phoneNumber.startsWith("1")){
-            return "1" + phoneNumber;
+            if (number != null && log.isDebugEnabled()) {
+                log.debug("Alarm codes outstanding for " + number + ": " + registry.getCodes(number) + ".");
+            }
+            return;
         }
 
-        return phoneNumber;
-    }
+        if (!registry.acknowledge(ack)) {
+            // A duplicate reply, or the code expired, while we were checking the number.
+            log.debug("Alarm code '" + alarmCode + "' was already acknowledged or expired.");
+            return;
+        }
 
-    /**
-     * @return A unique (not currently a key of {@link #alarmCodes}), six character, alphanumeric or numeric String to
-     * be used as an alarm code.
-     */
-    private String nextAlarmCode() {
-        String key;
-        key = RandomStringUtils.randomNumeric(6);
+        metrics.recordAck(System.currentTimeMillis() - ack.getCreatedAtMillis());
 
-        synchronized (alarmCodes) {
-            while (alarmCodes.containsKey(key)) {
-                key = RandomStringUtils.randomNumeric(6);
-            }
-        }
+        QualifiedPath userPath = recipient.getUserPath();
 
-        return key;
-    }
+        if (userPath == null) {
+            log.warn("Can't acknowledge alarm code '" + alarmCode + "'; the user it was sent to is unknown.");
+            return;
+        }
 
-    private class AwaitingAcknowledgement {
+        PropertySet associatedData = new PropertySetBuilder()
+                .set(CommonAlarmProperties.AckUser, userPath)
+                .set(CommonAlarmProperties.AckTime, ackTime)
+                .build();
 
-        private final long createdAtNanos = System.nanoTime();
+        Collection<UUID> alarmEventIds;
 
-        private final User user;
-        private final List<AlarmEvent> alarmEvents;
+        if (ack.getAlarmEvents() != null) {
+            alarmEventIds = Collections2.transform(
+                    Collections2.filter(ack.getAlarmEvents(), new Predicate<AlarmEvent>() {
+                        @Override
+                        public boolean apply(AlarmEvent alarmEvent) {
+                            return !alarmEvent.isAcked();
+                        }
+                    }),
+                    new Function<AlarmEvent, UUID>() {
+                        @Override
+                        public UUID apply(AlarmEvent alarmEvent) {
+                            return alarmEvent.getId();
+                        }
+                    });
+        } else {
+            // Restored after a restart; the alarm manager ignores ids that are already acknowledged or cleared.
+            alarmEventIds = ack.getAlarmEventIds();
+        }
 
-        private AwaitingAcknowledgement(User user, List<AlarmEvent> alarmEvents) {
-            this.user = user;
-            this.alarmEvents = alarmEvents;
+        if (log.isDebugEnabled()) {
+            for (UUID alarmEventId : ack.getAlarmEventIds()) {
+                log.debug("User '" + recipient.getUsername() + "' acknowledged AlarmEvent '" + alarmEventId + "'.");
+            }
         }
 
+        alarmManager.acknowledge(alarmEventIds, new EventData(associatedData));
     }
 
-    private class OrphanedAcknowledgementCleanup implements Runnable {
-        @Override
-        public void run() {
-            long now = System.nanoTime();
+    /**
+     * @return The user's SMS numbers, in the form Nucleus reports incoming numbers in.
+     */
+    private List<String> getSmsNumbers(User user) {
+        List<String> numbers = new ArrayList<String>();
 
-            synchronized (alarmCodes) {
-                Iterator<AwaitingAcknowledgement> iterator = alarmCodes.values().iterator();
+        for (ContactInfo contactInfo : user.getContactInfo()) {
+            if (!ContactType.SMS.getContactType().equals(contactInfo.getContactType())) {
+                continue;
+            }
 
-                while (iterator.hasNext()) {
-                    AwaitingAcknowledgement awaiting = iterator.next();
-                    long minutesElapsed = TimeUnit.NANOSECONDS.convert(awaiting.createdAtNanos - now, TimeUnit.MINUTES);
+            String number = phoneNumbers.normalize(contactInfo.getValue());
 
-                    if (minutesElapsed > 5) iterator.remove();
-                }
+            if (number != null) {
+                numbers.add(number);
+            } else {
+                log.warn(String.format("Can't recognize SMS number '%s' of user '%s'; replies from it won't "
+                        + "acknowledge alarms.", contactInfo.getValue(), user.get(User.Username)));
             }
         }
+
+        return numbers;
     }
 
-    private class AcknowledgementReceived implements Runnable {
+    private class OrphanedAcknowledgementCleanup implements Runnable {
         @Override
         public void run() {
-            boolean foundError = false;
-
-            JSONObject jsonIn = new JSONObject();
-            try {
-                jsonIn.put("cmd", "read");
-            } catch(Exception ignored){}
-
-            HttpURLConnection conn = null;
-            InputStream in = null;
-            JSONObject jsonOut = null;
-
-            try {
-                URL url = new URL(hostURL);
-                conn = (HttpURLConnection) url.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-                conn.setDoOutput(true);
-                conn.setDoInput(true);
-                conn.setRequestMethod("POST");
-
-                OutputStream os = conn.getOutputStream();
-                os.write(jsonIn.toString().getBytes("UTF-8"));
-                os.close();
-
-                // read the response
-                in = new BufferedInputStream(conn.getInputStream());
-                String result = org.apache.commons.io.IOUtils.toString(in, "UTF-8");
-                jsonOut = new JSONObject(result);
-            }catch(Exception ex){
-                foundError = true;
-                log.debug("Error getting acknowledgement buffer", ex);
-            }
-            finally {
-                if(in != null) {
-                    try {
-                        in.close();
-                    }catch(Exception ex){
-                        log.debug("Error closing inputstream", ex);
-                    }
-                }
-
-                if(conn != null) {
-                    conn.disconnect();
-                }
-            }
-
-            if(!foundError) {
-                if (jsonOut == null) {
-                    log.debug("No return object");
-                } else {
-                    try {
-                        if (jsonOut.has("messages")) {
-                            JSONArray messages = jsonOut.getJSONArray("messages");
-                            log.trace("Received acknowledgement buffer with " + messages.length() + " message(s)");
-
-                            for (int i = 0; i < messages.length(); i++) {
-                                JSONObject message = messages.getJSONObject(i);
-                                String number = message.getString("number");
-                                String ackCode = message.getString("message");
-                                Long utcTime = message.getLong("timestamp");
-                                Date ackTime = new Date(utcTime);
-                                acknowledgeAlarm(ackCode, number, ackTime);
-                            }
-                        }
-                    } catch (Exception ex) {
-                        log.debug("Error parsing JSON object", ex);
-                    }
-                }
-            }
+            registry.expire();
         }
     }
 
@@ -0,0 +1,557 @@
+package com.tyrion.nucleus.profile;
+
+import com.inductiveautomation.ignition.common.QualifiedPath;
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The alarm codes that have been sent out and are waiting for a reply.
+ * <p>
+ * A code is usually sent to one user, but may be shared by several who were sent the same SMS; whichever of them
+ * replies first acknowledges the alarms.
+ * <p>
+ * Each code lives for a fixed time-to-live, tracked on a {@link NucleusSmsExpiryWheel}. The registry is also capped
+ * in size; when it's full, or every possible code is outstanding, registering a new code evicts the oldest outstanding
+ * one. Codes are handed out by a {@link NucleusSmsCodeAllocator}, and given back to it once they leave the registry.
+ * <p>
+ * Numbers are compared exactly as given, so they should be normalized first; see {@link NucleusSmsPhoneNumbers}.
+ */
+public class NucleusSmsAckRegistry {
+
+    /**
+     * Told about every code that enters or leaves the registry. Called on the thread making the change, so
+     * implementations must be quick, thread safe and must not block.
+     */
+    public interface Listener {
+        /**
+         * {@code entry} is about to be registered. Called before it can be found, so always before {@link
+         * #removed(Entry)} for the same entry.
+         */
+        void registered(Entry entry);
+
+        /**
+         * {@code entry} was acknowledged, expired or evicted.
+         */
+        void removed(Entry entry);
+    }
+
+    /**
+     * Where codes are claimed before they're handed out, so a code can be kept unique across every registry whose
+     * replies arrive together, not just within this one.
+     */
+    public interface CodeIndex {
+        /**
+         * @return false if {@code code} is already held, here or by another registry.
+         */
+        boolean claim(String code);
+
+        void release(String code);
+    }
+
+    /**
+     * The share of possible codes that may be outstanding before a warning is logged. The warning is cleared once it
+     * drops below half of this.
+     */
+    static final double CROWDED_UTILISATION = 0.5;
+
+    private static final CodeIndex LOCAL_CODES = new CodeIndex() {
+        @Override
+        public boolean claim(String code) {
+            return true;
+        }
+
+        @Override
+        public void release(String code) {
+        }
+    };
+
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void registered(Entry entry) {
+        }
+
+        @Override
+        public void removed(Entry entry) {
+        }
+    };
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Maps an alarm code to the alarms and user who were sent that code.
+     */
+    private final ConcurrentMap<String, Entry> alarmCodes = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Registration order, for evicting the oldest code when the registry is full. May still hold entries that have
+     * since been acknowledged or expired; those are skipped and dropped as they reach the head.
+     */
+    private final Queue<Entry> registrationOrder = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * The outstanding codes sent to each number. Guarded by itself.
+     */
+    private final Map<String, Set<String>> codesByNumber = new HashMap<String, Set<String>>();
+
+    private final NucleusSmsExpiryWheel<Entry> expiryWheel = new NucleusSmsExpiryWheel<Entry>(1, TimeUnit.SECONDS);
+
+    private final long ttlMillis;
+    private final int maxSize;
+    private final Listener listener;
+    private final CodeIndex codeIndex;
+    private final NucleusSmsCodeAllocator allocator;
+
+    private final AtomicLong registered = new AtomicLong(0);
+    private final AtomicLong acked = new AtomicLong(0);
+    private final AtomicLong expired = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
+
+    private volatile boolean crowded = false;
+
+    /**
+     * @param ttl      How long a code waits for a reply before it's forgotten.
+     * @param maxSize  The most codes that may be outstanding at once.
+     * @param listener Told about codes entering and leaving the registry. May be null.
+     */
+    public NucleusSmsAckRegistry(long ttl, TimeUnit unit, int maxSize, Listener listener) {
+        this(ttl, unit, maxSize, listener, null);
+    }
+
+    /**
+     * @param codeIndex Where codes are claimed before use. May be null if codes need only be unique in this registry.
+     */
+    public NucleusSmsAckRegistry(long ttl, TimeUnit unit, int maxSize, Listener listener, CodeIndex codeIndex) {
+        this(ttl, unit, maxSize, listener, codeIndex, new NucleusSmsCodeAllocator(NucleusSmsCodeAllocator.DIGITS, 6));
+    }
+
+    /**
+     * @param allocator Hands out the codes. Should only be used by this registry.
+     */
+    public NucleusSmsAckRegistry(long ttl,
+                                 TimeUnit unit,
+                                 int maxSize,
+                                 Listener listener,
+                                 CodeIndex codeIndex,
+                                 NucleusSmsCodeAllocator allocator) {
+        this.ttlMillis = unit.toMillis(ttl);
+        this.maxSize = Math.max(1, maxSize);
+        this.listener = listener == null ? NO_LISTENER : listener;
+        this.codeIndex = codeIndex == null ? LOCAL_CODES : codeIndex;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Register {@code alarmEvents} as sent to a user under a new, unique alarm code.
+     *
+     * @param userPath The path of the user being notified.
+     * @param username The user's name, for logging.
+     * @param numbers  The SMS numbers the user is being notified at. A reply must come from one of these.
+     */
+    public Entry register(QualifiedPath userPath, String username, List<String> numbers, List<AlarmEvent> alarmEvents) {
+        return register(Collections.singletonList(new Recipient(userPath, username, numbers)), alarmEvents);
+    }
+
+    /**
+     * Register {@code alarmEvents} as sent to several users under one new, unique alarm code. A reply from any of
+     * their numbers acknowledges the alarms as the user it came from.
+     */
+    public Entry register(List<Recipient> recipients, List<AlarmEvent> alarmEvents) {
+        List<UUID> alarmEventIds = new ArrayList<UUID>(alarmEvents.size());
+        for (AlarmEvent alarmEvent : alarmEvents) {
+            alarmEventIds.add(alarmEvent.getId());
+        }
+
+        long now = System.currentTimeMillis();
+
+        Entry entry;
+        long refused = 0;
+        while (true) {
+            String code = allocator.allocate();
+            if (code == null) {
+                if (!evictOldest()) {
+                    throw new IllegalStateException("Every alarm code is in use.");
+                }
+                continue;
+            }
+
+            if (!codeIndex.claim(code)) {
+                // Held by another registry handing out codes from the same space.
+                allocator.release(code);
+                if (++refused >= allocator.getCapacity()) {
+                    throw new IllegalStateException("Every alarm code is in use by this or another profile.");
+                }
+                continue;
+            }
+
+            entry = new Entry(code, now, now + ttlMillis, recipients, alarmEventIds, alarmEvents);
+
+            // Indexed and journaled before it can be found, so it can't be removed before either. The code was
+            // claimed and allocated above, so publishing it only fails if a restored code slipped in meanwhile; the
+            // registration is then taken back, which at worst costs the restored code its place in the journal.
+            index(entry);
+            listener.registered(entry);
+            if (alarmCodes.putIfAbsent(code, entry) == null) {
+                break;
+            }
+            listener.removed(entry);
+            unindex(entry);
+            codeIndex.release(code);
+        }
+
+        registered.incrementAndGet();
+        track(entry, ttlMillis);
+        checkUtilisation();
+
+        return entry;
+    }
+
+    /**
+     * Put back a code that was outstanding before a restart. Does nothing if it has since expired, or the code is
+     * somehow already in use.
+     */
+    public void restore(Entry entry) {
+        long remaining = entry.expiresAtMillis - System.currentTimeMillis();
+
+        if (remaining <= 0 || !codeIndex.claim(entry.code)) {
+            return;
+        }
+
+        index(entry);
+        if (alarmCodes.putIfAbsent(entry.code, entry) == null) {
+            allocator.reserve(entry.code);
+            track(entry, remaining);
+        } else {
+            unindex(entry);
+            codeIndex.release(entry.code);
+        }
+    }
+
+    private void track(Entry entry, long ttlMillis) {
+        registrationOrder.add(entry);
+        expiryWheel.schedule(entry, ttlMillis, TimeUnit.MILLISECONDS);
+
+        while (alarmCodes.size() > maxSize) {
+            if (!evictOldest()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return false if there was nothing to evict.
+     */
+    private boolean evictOldest() {
+        Entry oldest;
+        while ((oldest = registrationOrder.poll()) != null) {
+            if (alarmCodes.remove(oldest.code, oldest)) {
+                evicted.incrementAndGet();
+                removed(oldest);
+                log.debug("Registry full; evicted alarm code '" + oldest.code + "' before it was acknowledged.");
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void removed(Entry entry) {
+        unindex(entry);
+        codeIndex.release(entry.code);
+        allocator.release(entry.code);
+        listener.removed(entry);
+    }
+
+    /**
+     * Warn once too many of the possible codes are outstanding, well before they run out and codes start being
+     * evicted to make room. Every outstanding code is also one more that a mistyped reply could match.
+     */
+    private void checkUtilisation() {
+        double utilisation = allocator.getUtilisation();
+
+        if (!crowded && utilisation >= CROWDED_UTILISATION) {
+            crowded = true;
+            log.warn(String.format("%.0f%% of the %d possible alarm codes are outstanding. Use longer alarm codes, "
+                    + "or a larger alphabet, before they run out.", utilisation * 100, allocator.getCapacity()));
+        } else if (crowded && utilisation < CROWDED_UTILISATION / 2) {
+            crowded = false;
+            log.info(String.format("%.0f%% of the possible alarm codes are outstanding.", utilisation * 100));
+        }
+    }
+
+    private void index(Entry entry) {
+        synchronized (codesByNumber) {
+            for (String number : entry.getNumbers()) {
+                Set<String> codes = codesByNumber.get(number);
+                if (codes == null) {
+                    codes = new LinkedHashSet<String>();
+                    codesByNumber.put(number, codes);
+                }
+                codes.add(entry.code);
+            }
+        }
+    }
+
+    private void unindex(Entry entry) {
+        synchronized (codesByNumber) {
+            for (String number : entry.getNumbers()) {
+                Set<String> codes = codesByNumber.get(number);
+                if (codes != null && codes.remove(entry.code) && codes.isEmpty()) {
+                    codesByNumber.remove(number);
+                }
+            }
+        }
+    }
+
+    public Entry get(String alarmCode) {
+        return alarmCodes.get(alarmCode);
+    }
+
+    /**
+     * @return The outstanding codes sent to {@code number}, oldest first. Empty if there are none.
+     */
+    public List<String> getCodes(String number) {
+        synchronized (codesByNumber) {
+            Set<String> codes = codesByNumber.get(number);
+            return codes == null ? Collections.<String>emptyList() : new ArrayList<String>(codes);
+        }
+    }
+
+    /**
+     * Claim {@code entry} for acknowledgement.
+     *
+     * @return false if the entry had already been acknowledged, expired or evicted.
+     */
+    public boolean acknowledge(Entry entry) {
+        if (alarmCodes.remove(entry.code, entry)) {
+            acked.incrementAndGet();
+            removed(entry);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forget every code whose time-to-live has passed. Called once a second.
+     */
+    public void expire() {
+        expiryWheel.advance(new NucleusSmsExpiryWheel.ExpiryHandler<Entry>() {
+            @Override
+            public void expired(Entry entry) {
+                if (alarmCodes.remove(entry.code, entry)) {
+                    expired.incrementAndGet();
+                    removed(entry);
+                    log.trace("Alarm code '" + entry.code + "' expired without a reply.");
+                }
+            }
+        });
+
+        // Codes are registered and expire in the same order, so the dead ones collect at the head.
+        Entry head;
+        while ((head = registrationOrder.peek()) != null && alarmCodes.get(head.code) != head) {
+            registrationOrder.remove(head);
+        }
+
+        checkUtilisation();
+    }
+
+    public boolean isEmpty() {
+        return alarmCodes.isEmpty();
+    }
+
+    public int size() {
+        return alarmCodes.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getRegisteredCount() {
+        return registered.get();
+    }
+
+    public long getAckedCount() {
+        return acked.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * @return The number of possible alarm codes.
+     */
+    public long getCodeCapacity() {
+        return allocator.getCapacity();
+    }
+
+    /**
+     * @return The fraction of possible alarm codes outstanding, from 0 to 1.
+     */
+    public double getCodeUtilisation() {
+        return allocator.getUtilisation();
+    }
+
+    /**
+     * @return true if so many of the possible alarm codes are outstanding that a warning has been logged.
+     */
+    public boolean isCrowded() {
+        return crowded;
+    }
+
+    /**
+     * A user a code was sent to.
+     */
+    public static class Recipient {
+
+        private final QualifiedPath userPath;
+        private final String username;
+        private final List<String> numbers;
+
+        /**
+         * @param userPath The path of the user being notified. May be null if it couldn't be restored after a restart.
+         * @param username The user's name, for logging.
+         * @param numbers  The SMS numbers the user is being notified at.
+         */
+        public Recipient(QualifiedPath userPath, String username, List<String> numbers) {
+            this.userPath = userPath;
+            this.username = username;
+            this.numbers = Collections.unmodifiableList(numbers);
+        }
+
+        public QualifiedPath getUserPath() {
+            return userPath;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public List<String> getNumbers() {
+            return numbers;
+        }
+
+    }
+
+    /**
+     * A code that has been sent out, and what replying with it will acknowledge.
+     */
+    public static class Entry {
+
+        private final String code;
+        private final long createdAtMillis;
+        private final long expiresAtMillis;
+        private final List<Recipient> recipients;
+        private final List<String> numbers;
+
+        /**
+         * Only built for a code shared by several recipients; a single recipient's few numbers are quicker to scan.
+         */
+        private final Map<String, Recipient> recipientsByNumber;
+
+        private final List<UUID> alarmEventIds;
+        private final List<AlarmEvent> alarmEvents;
+
+        Entry(String code,
+              long createdAtMillis,
+              long expiresAtMillis,
+              List<Recipient> recipients,
+              List<UUID> alarmEventIds,
+              List<AlarmEvent> alarmEvents) {
+            this.code = code;
+            this.createdAtMillis = createdAtMillis;
+            this.expiresAtMillis = expiresAtMillis;
+            this.recipients = Collections.unmodifiableList(recipients);
+            this.alarmEventIds = Collections.unmodifiableList(alarmEventIds);
+            this.alarmEvents = alarmEvents;
+
+            if (recipients.size() == 1) {
+                this.numbers = recipients.get(0).getNumbers();
+                this.recipientsByNumber = null;
+            } else {
+                List<String> numbers = new ArrayList<String>();
+                Map<String, Recipient> recipientsByNumber = new HashMap<String, Recipient>();
+                for (Recipient recipient : recipients) {
+                    numbers.addAll(recipient.getNumbers());
+                    for (String number : recipient.getNumbers()) {
+                        if (!recipientsByNumber.containsKey(number)) {
+                            recipientsByNumber.put(number, recipient);
+                        }
+                    }
+                }
+                this.numbers = Collections.unmodifiableList(numbers);
+                this.recipientsByNumber = recipientsByNumber;
+            }
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public long getCreatedAtMillis() {
+            return createdAtMillis;
+        }
+
+        public long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+
+        public List<Recipient> getRecipients() {
+            return recipients;
+        }
+
+        /**
+         * @return The recipient notified at {@code number}, or null if the code wasn't sent to that number.
+         */
+        public Recipient getRecipient(String number) {
+            if (recipientsByNumber != null) {
+                return recipientsByNumber.get(number);
+            }
+
+            Recipient recipient = recipients.get(0);
+            return recipient.getNumbers().contains(number) ? recipient : null;
+        }
+
+        /**
+         * @return Every number the code was sent to.
+         */
+        public List<String> getNumbers() {
+            return numbers;
+        }
+
+        public List<UUID> getAlarmEventIds() {
+            return alarmEventIds;
+        }
+
+        /**
+         * @return The alarm events the code was sent for, or null if the entry was restored after a restart and only
+         * the event ids are known.
+         */
+        public List<AlarmEvent> getAlarmEvents() {
+            return alarmEvents;
+        }
+
+    }
+
+}
@@ -0,0 +1,304 @@
+package com.tyrion.nucleus.profile;
+
+import com.inductiveautomation.ignition.gateway.model.GatewayContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the acknowledgement buffer of each Nucleus the gateway's profiles send through, and hands every reply to the
+ * profile that sent its alarm code.
+ * <p>
+ * Reading a buffer empties it, so when several profiles polled the same Nucleus, a reply could be read by a profile
+ * that never sent its code and be lost to the one waiting for it. Instead there is one poller per distinct endpoint
+ * URL, shared by every profile sending through it, and alarm codes are claimed in a gateway-wide index so each polled
+ * reply reaches the profile that owns its code.
+ * <p>
+ * Pushed replies are only checked against the alarm codes of the profile they were pushed to. A push is authorized by
+ * that profile's token alone, so it mustn't be able to acknowledge another profile's alarms.
+ * <p>
+ * Each profile keeps its own poll schedule for each of its endpoints; an endpoint's buffer is read once whenever any
+ * of the profiles sharing it is due, and every one of them is told how the read went.
+ */
+public class NucleusSmsAckRouter {
+
+    /**
+     * How often each poller consults its profiles' poll schedules. Polls happen on the first tick after one falls due.
+     */
+    private static final int POLL_TICK_MILLIS = 250;
+
+    private static final String TASK_OWNER = "NucleusSmsAckRouter";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Which profile's ack manager sent each outstanding alarm code.
+     */
+    private final ConcurrentMap<String, NucleusSmsAckManager> owners =
+            new ConcurrentHashMap<String, NucleusSmsAckManager>();
+
+    /**
+     * By endpoint URL. Guarded by this.
+     */
+    private final Map<String, Poller> pollers = new LinkedHashMap<String, Poller>();
+
+    private final AtomicLong routed = new AtomicLong(0);
+    private final AtomicLong unrouted = new AtomicLong(0);
+
+    private final GatewayContext context;
+
+    public NucleusSmsAckRouter(GatewayContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Stop every poller. Profiles are expected to have unsubscribed already.
+     */
+    public synchronized void shutdown() {
+        for (Poller poller : pollers.values()) {
+            context.getExecutionManager().unRegister(TASK_OWNER, poller.url);
+        }
+        pollers.clear();
+        owners.clear();
+    }
+
+    /**
+     * @return The number of endpoints being polled.
+     */
+    public synchronized int getPollerCount() {
+        return pollers.size();
+    }
+
+    /**
+     * @return The number of replies handed to the profile that sent their alarm code.
+     */
+    public long getRoutedCount() {
+        return routed.get();
+    }
+
+    /**
+     * @return The number of replies whose alarm code no profile had sent, or that had expired.
+     */
+    public long getUnroutedCount() {
+        return unrouted.get();
+    }
+
+    /**
+     * @return Where {@code owner} claims the alarm codes it hands out, so they're unique across the gateway.
+     */
+    NucleusSmsAckRegistry.CodeIndex codeIndex(final NucleusSmsAckManager owner) {
+        return new NucleusSmsAckRegistry.CodeIndex() {
+            @Override
+            public boolean claim(String code) {
+                return owners.putIfAbsent(code, owner) == null;
+            }
+
+            @Override
+            public void release(String code) {
+                owners.remove(code, owner);
+            }
+        };
+    }
+
+    /**
+     * Have {@code manager} polled through {@code endpoint}, on {@code schedule}. The endpoint's buffer is read with the
+     * client and circuit breaker of whichever subscriber to it is first able to.
+     */
+    synchronized void subscribe(NucleusSmsAckManager manager,
+                                NucleusSmsEndpoint endpoint,
+                                NucleusHttpClient client,
+                                NucleusSmsPollSchedule schedule) {
+        Poller poller = pollers.get(endpoint.getUrl());
+
+        if (poller == null) {
+            poller = new Poller(endpoint.getUrl());
+            pollers.put(poller.url, poller);
+
+            context.getExecutionManager().register(
+                    TASK_OWNER, poller.url, poller, POLL_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        poller.subscriptions.add(new Subscription(manager, endpoint, client, schedule));
+    }
+
+    /**
+     * Stop polling for {@code manager}, and forget the alarm codes it sent. Pollers left with no subscribers stop.
+     */
+    synchronized void unsubscribe(NucleusSmsAckManager manager) {
+        Iterator<Poller> it = pollers.values().iterator();
+
+        while (it.hasNext()) {
+            Poller poller = it.next();
+
+            for (Subscription subscription : poller.subscriptions) {
+                if (subscription.manager == manager) {
+                    poller.subscriptions.remove(subscription);
+                }
+            }
+
+            if (poller.subscriptions.isEmpty()) {
+                context.getExecutionManager().unRegister(TASK_OWNER, poller.url);
+                it.remove();
+            }
+        }
+
+        owners.values().removeAll(Collections.singleton(manager));
+    }
+
+    /**
+     * Route SMS received by Nucleus, either a single {@code {number, message, timestamp}} object or a
+     * {@code {messages: [...]}} buffer of them.
+     *
+     * @param maxMessages The most SMS to accept; see {@link NucleusSmsJsonCodec#readMessages(InputStream,
+     *                    NucleusSmsJsonCodec.MessageHandler, int)}.
+     * @param recipient   The only profile whose alarm codes may be acknowledged, or null to route to any profile.
+     * @return The number of SMS processed.
+     */
+    int receive(InputStream json, int maxMessages, final NucleusSmsAckManager recipient) throws Exception {
+        return NucleusSmsJsonCodec.readMessages(json, new NucleusSmsJsonCodec.MessageHandler() {
+            @Override
+            public void message(String number, String message, long timestamp) {
+                route(message.trim(), number, new Date(timestamp), recipient);
+            }
+        }, maxMessages);
+    }
+
+    private void route(String reply, String incomingNumber, Date ackTime, NucleusSmsAckManager recipient) {
+        String alarmCode = reply;
+        NucleusSmsAckManager owner = owner(alarmCode, recipient);
+
+        if (owner == null) {
+            // Phones like to capitalize replies, so codes with letters are matched in either case.
+            alarmCode = reply.toUpperCase(Locale.ROOT);
+            owner = owner(alarmCode, recipient);
+        }
+        if (owner == null) {
+            alarmCode = reply.toLowerCase(Locale.ROOT);
+            owner = owner(alarmCode, recipient);
+        }
+
+        if (owner == null) {
+            unrouted.incrementAndGet();
+            log.warn("Received an incoming SMS for an alarm code that is not registered: '" + reply + "'.");
+            return;
+        }
+
+        routed.incrementAndGet();
+        owner.acknowledgeAlarm(alarmCode, incomingNumber, ackTime);
+    }
+
+    /**
+     * @return The profile that sent {@code alarmCode}, or null if none did or it isn't {@code recipient}.
+     */
+    private NucleusSmsAckManager owner(String alarmCode, NucleusSmsAckManager recipient) {
+        NucleusSmsAckManager owner = owners.get(alarmCode);
+        return recipient == null || owner == recipient ? owner : null;
+    }
+
+    private class Poller implements Runnable {
+
+        private final String url;
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+        private Poller(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            boolean due = false;
+
+            // Every schedule is consulted, since a quiet one may need to wake up.
+            for (Subscription subscription : subscriptions) {
+                due |= subscription.schedule.isDue(now, subscription.manager.hasOutstanding());
+            }
+
+            if (!due) {
+                return;
+            }
+
+            boolean read = readBuffer();
+
+            for (Subscription subscription : subscriptions) {
+                subscription.manager.polled(subscription.schedule, url, read);
+            }
+        }
+
+        /**
+         * @return false if the buffer couldn't be read, or every subscriber's circuit breaker for it is open.
+         */
+        private boolean readBuffer() {
+            for (Subscription subscription : subscriptions) {
+                long permit = subscription.endpoint.tryStart();
+                if (permit != NucleusSmsCircuitBreaker.REFUSED) {
+                    return readBuffer(subscription, permit);
+                }
+            }
+
+            return false;
+        }
+
+        private boolean readBuffer(Subscription subscription, long permit) {
+            long start = System.nanoTime();
+
+            try {
+                // Each SMS is routed as it's read off the connection.
+                int received = subscription.client.post(url, NucleusSmsJsonCodec.READ_COMMAND,
+                        new NucleusHttpClient.ResponseHandler<Integer>() {
+                            @Override
+                            public Integer handle(InputStream body) throws Exception {
+                                return receive(body, Integer.MAX_VALUE, null);
+                            }
+                        });
+                long elapsed = System.nanoTime() - start;
+                subscription.endpoint.succeeded(permit, elapsed, 0);
+
+                for (Subscription s : subscriptions) {
+                    s.manager.recordPoll(elapsed, received);
+                }
+                log.trace("Received acknowledgement buffer with " + received + " message(s) from " + url);
+            } catch (Exception ex) {
+                subscription.endpoint.failed(permit);
+                log.debug("Error reading acknowledgement buffer from " + url, ex);
+                return false;
+            }
+
+            return true;
+        }
+
+    }
+
+    private static class Subscription {
+
+        private final NucleusSmsAckManager manager;
+        private final NucleusSmsEndpoint endpoint;
+        private final NucleusHttpClient client;
+        private final NucleusSmsPollSchedule schedule;
+
+        private Subscription(NucleusSmsAckManager manager,
+                             NucleusSmsEndpoint endpoint,
+                             NucleusHttpClient client,
+                             NucleusSmsPollSchedule schedule) {
+            this.manager = manager;
+            this.endpoint = endpoint;
+            this.client = client;
+            this.schedule = schedule;
+        }
+
+    }
+
+}
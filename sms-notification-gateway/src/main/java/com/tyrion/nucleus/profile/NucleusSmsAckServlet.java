@@ -0,0 +1,93 @@
+package com.tyrion.nucleus.profile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lets Nucleus push incoming SMS to the gateway as they arrive, rather than waiting for the next poll.
+ * <p>
+ * Mounted by the {@link com.tyrion.nucleus.GatewayHook} at {@code /main/system/nucleus-sms}. Nucleus POSTs either a
+ * single {@code {number, message, timestamp}} object or the same {@code {messages: [...]}} buffer the poller reads,
+ * naming the notification profile in the {@code profile} query parameter. The profile's push token must be sent in
+ * the {@code X-Nucleus-Token} header; a profile without one refuses every push. Replies are only matched against the
+ * alarm codes that profile sent. At most {@link #MAX_MESSAGES} SMS are accepted per request.
+ */
+public class NucleusSmsAckServlet extends HttpServlet {
+
+    public static final String SERVLET_NAME = "nucleus-sms";
+    public static final String TOKEN_HEADER = "X-Nucleus-Token";
+
+    /**
+     * Nucleus pushes each SMS as it arrives, so a request should rarely carry more than a few.
+     */
+    public static final int MAX_MESSAGES = 100;
+
+    private static final ConcurrentMap<String, NucleusSmsAckManager> receivers =
+            new ConcurrentHashMap<String, NucleusSmsAckManager>();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    static void register(String profileName, NucleusSmsAckManager ackManager) {
+        receivers.put(profileName, ackManager);
+    }
+
+    static void unregister(String profileName, NucleusSmsAckManager ackManager) {
+        receivers.remove(profileName, ackManager);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String profileName = req.getParameter("profile");
+        NucleusSmsAckManager ackManager = profileName == null ? null : receivers.get(profileName);
+
+        if (ackManager == null) {
+            log.debug("Received pushed SMS for unknown or non-push profile '" + profileName + "'.");
+            respond(resp, HttpServletResponse.SC_NOT_FOUND, false);
+            return;
+        }
+
+        if (!ackManager.isPushTokenValid(req.getHeader(TOKEN_HEADER))) {
+            log.warn("Rejected pushed SMS for profile '" + profileName + "' with a missing or incorrect token.");
+            respond(resp, HttpServletResponse.SC_FORBIDDEN, false);
+            return;
+        }
+
+        try {
+            int received = ackManager.receive(req.getInputStream(), MAX_MESSAGES);
+            log.trace("Received " + received + " pushed SMS for profile '" + profileName + "'.");
+            respond(resp, HttpServletResponse.SC_OK, true);
+        } catch (NucleusSmsJsonCodec.TooManyMessagesException e) {
+            log.warn("Rejected the rest of a push of more than " + MAX_MESSAGES + " SMS for profile '"
+                    + profileName + "'.");
+            respond(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, false);
+        } catch (Exception e) {
+            log.debug("Error parsing pushed SMS", e);
+            respond(resp, HttpServletResponse.SC_BAD_REQUEST, false);
+        }
+    }
+
+    private static void respond(HttpServletResponse resp, int status, boolean success) throws IOException {
+        resp.setStatus(status);
+        resp.setContentType("application/json; charset=UTF-8");
+        resp.getWriter().write(success ? "{\"success\":true}" : "{\"success\":false}");
+    }
+
+    /**
+     * Compare tokens without leaking how much of the token matched through timing.
+     */
+    static boolean tokensMatch(String expected, String actual) {
+        return actual != null && MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.UTF_8),
+                actual.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
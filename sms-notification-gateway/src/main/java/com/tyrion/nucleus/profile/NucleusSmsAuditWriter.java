@@ -0,0 +1,274 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.inductiveautomation.ignition.common.WellKnownPathTypes;
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.inductiveautomation.ignition.common.model.ApplicationScope;
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataQuality;
+import com.inductiveautomation.ignition.gateway.audit.AuditManager;
+import com.inductiveautomation.ignition.gateway.audit.AuditProfile;
+import com.inductiveautomation.ignition.gateway.audit.AuditRecord;
+import com.inductiveautomation.ignition.gateway.audit.AuditRecordBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a profile's audit records on a background thread, so a notification's send isn't held up by one audit
+ * record per alarm event.
+ * <p>
+ * At most {@code capacity} records wait to be written; anything audited beyond that is dropped and counted rather than
+ * blocking the caller. The audit profile is looked up once and reused, and looked up again only if it wasn't found or
+ * a write to it fails. Waiting records are written in batches of up to {@code batchSize}.
+ */
+public class NucleusSmsAuditWriter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+    private final AtomicInteger pendingRecords = new AtomicInteger(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final ExecutorService writer;
+
+    private final AuditManager auditManager;
+    private final String auditProfileName;
+    private final String profileName;
+    private final int capacity;
+    private final int batchSize;
+
+    private volatile boolean running = true;
+
+    /**
+     * Set when a record is dropped, cleared once the writer has caught up, so each overflow is only logged once.
+     */
+    private volatile boolean overflowing = false;
+
+    /**
+     * Only touched by the writer thread.
+     */
+    private AuditProfile auditProfile;
+
+    public NucleusSmsAuditWriter(AuditManager auditManager,
+                                 String auditProfileName,
+                                 String profileName,
+                                 int capacity,
+                                 int batchSize) {
+        this.auditManager = auditManager;
+        this.auditProfileName = auditProfileName;
+        this.profileName = profileName;
+        this.capacity = Math.max(1, capacity);
+        this.batchSize = Math.max(1, batchSize);
+
+        writer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsAuditWriter[%s]", profileName))
+                        .setDaemon(true)
+                        .build());
+
+        writer.execute(new Writer());
+    }
+
+    /**
+     * Queue an audit record for each of {@code alarmEvents}. Returns immediately; if the records don't fit in the queue
+     * they are dropped.
+     *
+     * @param success     Whether the action succeeded.
+     * @param action      What was done, e.g. "Send SMS".
+     * @param actor       The path of the user the action was done for.
+     * @param alarmEvents The alarm events the action was about; one record is written for each.
+     */
+    public void audit(boolean success, String action, String actor, List<AlarmEvent> alarmEvents) {
+        int records = alarmEvents.size();
+        if (records == 0) {
+            return;
+        }
+
+        if (!running) {
+            drop(records);
+            return;
+        }
+
+        if (pendingRecords.addAndGet(records) > capacity) {
+            pendingRecords.addAndGet(-records);
+            drop(records);
+            return;
+        }
+
+        queue.add(new Entry(success, action, actor, alarmEvents, new Date()));
+    }
+
+    /**
+     * @return The number of audit records waiting to be written.
+     */
+    public int getPendingCount() {
+        return pendingRecords.get();
+    }
+
+    /**
+     * @return The number of audit records written so far.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return The number of audit records dropped, because the queue was full, the writer was shut down, or the audit
+     * profile couldn't be written to.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop accepting records and give the writer a chance to write those still waiting.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        writer.shutdown();
+
+        try {
+            if (!writer.awaitTermination(timeout, unit)) {
+                writer.shutdownNow();
+                log.warn(String.format("Timed out writing audit records; %d record(s) were not written.",
+                        pendingRecords.get()));
+            }
+        } catch (InterruptedException e) {
+            writer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        if (dropped.get() > 0) {
+            log.info(String.format("%d audit record(s) were written and %d dropped.", written.get(), dropped.get()));
+        }
+    }
+
+    private void drop(int records) {
+        dropped.addAndGet(records);
+
+        if (!overflowing) {
+            overflowing = true;
+            log.warn(String.format("Dropping audit records for profile '%s'; more than %d are waiting to be written.",
+                    profileName, capacity));
+        }
+    }
+
+    private void write(List<Entry> batch) {
+        int records = 0;
+        for (Entry entry : batch) {
+            records += entry.alarmEvents.size();
+        }
+
+        try {
+            if (auditProfile == null) {
+                auditProfile = auditManager.getProfile(auditProfileName);
+            }
+
+            if (auditProfile == null) {
+                log.debug(String.format("Audit profile '%s' not found; %d record(s) not written.",
+                        auditProfileName, records));
+                dropped.addAndGet(records);
+                return;
+            }
+
+            for (Entry entry : batch) {
+                for (AlarmEvent event : entry.alarmEvents) {
+                    auditProfile.audit(entry.toRecord(event, profileName));
+                    written.incrementAndGet();
+                    records--;
+                }
+            }
+        } catch (Exception e) {
+            log.error(String.format("Error writing audit records to '%s'; %d record(s) not written.",
+                    auditProfileName, records), e);
+            dropped.addAndGet(records);
+
+            // Look the profile up again next time, in case it was edited or restarted.
+            auditProfile = null;
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            List<Entry> batch = new ArrayList<Entry>();
+
+            while (running || !queue.isEmpty()) {
+                try {
+                    Entry entry = queue.poll(1, TimeUnit.SECONDS);
+                    if (entry == null) {
+                        continue;
+                    }
+
+                    int records = 0;
+                    do {
+                        batch.add(entry);
+                        records += entry.alarmEvents.size();
+                    } while (records < batchSize && (entry = queue.poll()) != null);
+
+                    try {
+                        write(batch);
+                    } finally {
+                        pendingRecords.addAndGet(-records);
+                        batch.clear();
+                    }
+
+                    if (overflowing && queue.isEmpty()) {
+                        overflowing = false;
+                        log.info(String.format("Audit writer for profile '%s' caught up; %d record(s) dropped so far.",
+                                profileName, dropped.get()));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+    }
+
+    private static class Entry {
+
+        private final boolean success;
+        private final String action;
+        private final String actor;
+        private final List<AlarmEvent> alarmEvents;
+        private final Date timestamp;
+
+        private Entry(boolean success, String action, String actor, List<AlarmEvent> alarmEvents, Date timestamp) {
+            this.success = success;
+            this.action = action;
+            this.actor = actor;
+            this.alarmEvents = alarmEvents;
+            this.timestamp = timestamp;
+        }
+
+        private AuditRecord toRecord(AlarmEvent event, String profileName) {
+            return new AuditRecordBuilder()
+                    .setAction(action)
+                    .setActionTarget(
+                            event.getSource().extend(WellKnownPathTypes.Event, event.getId().toString()).toString())
+                    .setActionValue(success ? "SUCCESS" : "FAILURE")
+                    .setActor(actor)
+                    .setActorHost(profileName)
+                    .setOriginatingContext(ApplicationScope.GATEWAY)
+                    .setOriginatingSystem("Alarming")
+                    .setStatusCode(success ? DataQuality.GOOD_DATA.getIntValue() : 0)
+                    .setTimestamp(timestamp)
+                    .build();
+        }
+
+    }
+
+}
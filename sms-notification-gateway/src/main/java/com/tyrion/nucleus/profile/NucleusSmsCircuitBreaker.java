@@ -0,0 +1,175 @@
+package com.tyrion.nucleus.profile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops requests going to a Nucleus endpoint that keeps failing, so notifications fail (or move to another endpoint)
+ * straight away instead of each waiting out a connect timeout.
+ * <p>
+ * After {@code failureThreshold} failures in a row the breaker opens and refuses requests for {@code openTime}. It
+ * then lets a single trial request through; if that succeeds the breaker closes again, and if it fails the breaker
+ * stays open for another {@code openTime}. A threshold of 0 or less never opens the breaker.
+ * <p>
+ * Each request is given a permit, which it hands back with its outcome. Permits are numbered by generation, and the
+ * generation moves on whenever the breaker opens or a trial starts, so the outcome of a request that was already in
+ * flight by then is ignored: a slow request from before the breaker opened can neither count as the trial nor cut it
+ * short.
+ */
+public class NucleusSmsCircuitBreaker {
+
+    public enum State {
+        /**
+         * Requests flow normally.
+         */
+        Closed,
+        /**
+         * Too many failures; requests are refused.
+         */
+        Open,
+        /**
+         * The open time has passed; the next request is a trial.
+         */
+        HalfOpen
+    }
+
+    /**
+     * Returned by {@link #tryAcquire()} when the request may not be made.
+     */
+    public static final long REFUSED = -1;
+
+    /**
+     * The permit for a request made whatever the breaker's state, such as a health check. If it succeeds the breaker
+     * closes; if it fails, it counts as a failure while closed and restarts the open time once that has passed.
+     */
+    public static final long UNCONDITIONAL = -2;
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private final AtomicLong trips = new AtomicLong(0);
+    private final AtomicLong refused = new AtomicLong(0);
+
+    private State state = State.Closed;
+    private int consecutiveFailures = 0;
+    private long openedAtNanos;
+    private long generation = 0;
+    private boolean trialInFlight = false;
+    private long trialPermit;
+
+    public NucleusSmsCircuitBreaker(int failureThreshold, long openTime, TimeUnit unit) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = Math.max(0, unit.toNanos(openTime));
+    }
+
+    /**
+     * @return true if a request may be made right now, without claiming the half-open trial.
+     */
+    public synchronized boolean isCallPermitted() {
+        State current = getState();
+        return current == State.Closed || (current == State.HalfOpen && !trialInFlight);
+    }
+
+    /**
+     * Ask to make a request. If permitted, the permit must be passed to {@link #onSuccess(long)} or
+     * {@link #onFailure(long)} once the request is done.
+     *
+     * @return The request's permit, or {@link #REFUSED} if the breaker is open or a half-open trial is already in
+     * flight.
+     */
+    public synchronized long tryAcquire() {
+        State current = getState();
+
+        if (current == State.Closed) {
+            return generation;
+        } else if (current == State.HalfOpen && !trialInFlight) {
+            state = State.HalfOpen;
+            trialInFlight = true;
+            trialPermit = ++generation;
+            return trialPermit;
+        }
+
+        refused.incrementAndGet();
+        return REFUSED;
+    }
+
+    public synchronized void onSuccess(long permit) {
+        if (permit == UNCONDITIONAL || isTrial(permit)) {
+            if (state != State.Closed) {
+                generation++;
+            }
+            state = State.Closed;
+            consecutiveFailures = 0;
+            trialInFlight = false;
+        } else if (state == State.Closed && permit == generation) {
+            consecutiveFailures = 0;
+        }
+    }
+
+    public synchronized void onFailure(long permit) {
+        if (state == State.Closed && (permit == UNCONDITIONAL || permit == generation)) {
+            consecutiveFailures++;
+
+            if (failureThreshold > 0 && consecutiveFailures >= failureThreshold) {
+                trips.incrementAndGet();
+                open();
+            }
+        } else if (isTrial(permit)
+                || (permit == UNCONDITIONAL && getState() == State.HalfOpen && !trialInFlight)) {
+            consecutiveFailures++;
+            trialInFlight = false;
+            open();
+        }
+    }
+
+    /**
+     * @return The breaker's state; an open breaker reads as {@link State#HalfOpen} once its open time has passed.
+     */
+    public synchronized State getState() {
+        if (state == State.Open && System.nanoTime() - openedAtNanos >= openNanos) {
+            return State.HalfOpen;
+        }
+        return state;
+    }
+
+    private boolean isTrial(long permit) {
+        return trialInFlight && permit == trialPermit;
+    }
+
+    private void open() {
+        state = State.Open;
+        openedAtNanos = System.nanoTime();
+        generation++;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return How many times the breaker has opened after being closed.
+     */
+    public long getTripCount() {
+        return trips.get();
+    }
+
+    /**
+     * @return How many requests were refused while the breaker was open.
+     */
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    /**
+     * Thrown in place of making a request while every endpoint's breaker is open.
+     */
+    public static class OpenException extends IOException {
+
+        public OpenException(String message) {
+            super(message);
+        }
+
+    }
+
+}
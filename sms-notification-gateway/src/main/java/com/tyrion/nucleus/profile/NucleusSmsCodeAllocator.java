@@ -0,0 +1,221 @@
+package com.tyrion.nucleus.profile;
+
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hands out alarm codes of a fixed length over a fixed alphabet, in an order that can't be guessed from the codes
+ * already sent, and never one that is still in use.
+ * <p>
+ * Each code stands for an index into the code space. Indices are visited in the order of a keyed Feistel permutation,
+ * cycle-walked down to the size of the space, so a lap through it visits every code exactly once; the keys are drawn
+ * afresh for each lap. Codes still in use when the walk reaches them are skipped, so while the space isn't close to
+ * full an allocation takes constant time, and once it is full allocating fails straight away instead of searching.
+ */
+public class NucleusSmsCodeAllocator {
+
+    public static final String DIGITS = "0123456789";
+
+    private static final int ROUNDS = 4;
+
+    /**
+     * Leaves the top bit of the Feistel domain clear, so indices are never negative.
+     */
+    private static final int MAX_BITS = 62;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final String alphabet;
+    private final int length;
+    private final long capacity;
+    private final int halfBits;
+    private final long halfMask;
+
+    /**
+     * The indices of the codes in use. Everything below is guarded by this.
+     */
+    private final Set<Long> inUse = new HashSet<Long>();
+    private final long[] keys = new long[ROUNDS];
+    private long cursor = 0;
+
+    /**
+     * @param alphabet The characters codes are made of. Repeated characters and whitespace are ignored.
+     * @param length   How many characters each code has.
+     */
+    public NucleusSmsCodeAllocator(String alphabet, int length) {
+        StringBuilder distinct = new StringBuilder();
+        for (char c : alphabet.toCharArray()) {
+            if (!Character.isWhitespace(c) && distinct.indexOf(String.valueOf(c)) < 0) {
+                distinct.append(c);
+            }
+        }
+
+        if (distinct.length() < 2) {
+            throw new IllegalArgumentException("An alarm code alphabet needs at least two characters.");
+        }
+        if (length < 1) {
+            throw new IllegalArgumentException("Alarm codes need at least one character.");
+        }
+
+        long capacity = 1;
+        for (int i = 0; i < length; i++) {
+            if (capacity > (1L << MAX_BITS) / distinct.length()) {
+                throw new IllegalArgumentException(String.format(
+                        "Too many possible alarm codes of %d characters from '%s'.", length, distinct));
+            }
+            capacity *= distinct.length();
+        }
+
+        int bits = 64 - Long.numberOfLeadingZeros(capacity - 1);
+
+        this.alphabet = distinct.toString();
+        this.length = length;
+        this.capacity = capacity;
+        this.halfBits = Math.max(1, (bits + 1) / 2);
+        this.halfMask = (1L << halfBits) - 1;
+
+        rekey();
+    }
+
+    /**
+     * @return An unused code, now marked as in use, or null if every code is in use.
+     */
+    public synchronized String allocate() {
+        if (inUse.size() >= capacity) {
+            return null;
+        }
+
+        while (true) {
+            if (cursor == capacity) {
+                cursor = 0;
+                rekey();
+            }
+
+            long index = walk(cursor++);
+            if (inUse.add(index)) {
+                return encode(index);
+            }
+        }
+    }
+
+    /**
+     * Mark {@code code} as in use, e.g. when it's restored after a restart. Codes that couldn't have come from this
+     * allocator are ignored.
+     */
+    public synchronized void reserve(String code) {
+        long index = decode(code);
+        if (index >= 0) {
+            inUse.add(index);
+        }
+    }
+
+    /**
+     * Make {@code code} available again.
+     */
+    public synchronized void release(String code) {
+        long index = decode(code);
+        if (index >= 0) {
+            inUse.remove(index);
+        }
+    }
+
+    /**
+     * @return The number of possible codes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getInUseCount() {
+        return inUse.size();
+    }
+
+    /**
+     * @return The fraction of possible codes in use, from 0 to 1.
+     */
+    public synchronized double getUtilisation() {
+        return (double) inUse.size() / capacity;
+    }
+
+    public String getAlphabet() {
+        return alphabet;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    private void rekey() {
+        for (int round = 0; round < ROUNDS; round++) {
+            keys[round] = random.nextLong();
+        }
+    }
+
+    /**
+     * Permute {@code index} within the code space, by permuting it within the Feistel domain until it lands inside.
+     */
+    private long walk(long index) {
+        do {
+            index = permute(index);
+        } while (index >= capacity);
+
+        return index;
+    }
+
+    private long permute(long index) {
+        long left = index >>> halfBits;
+        long right = index & halfMask;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long next = left ^ (mix(right ^ keys[round]) & halfMask);
+            left = right;
+            right = next;
+        }
+
+        return (left << halfBits) | right;
+    }
+
+    /**
+     * The finalizer of MurmurHash3.
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private String encode(long index) {
+        char[] code = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            code[i] = alphabet.charAt((int) (index % alphabet.length()));
+            index /= alphabet.length();
+        }
+
+        return new String(code);
+    }
+
+    /**
+     * @return The index of {@code code}, or -1 if it isn't a code of this length and alphabet.
+     */
+    private long decode(String code) {
+        if (code == null || code.length() != length) {
+            return -1;
+        }
+
+        long index = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = alphabet.indexOf(code.charAt(i));
+            if (digit < 0) {
+                return -1;
+            }
+            index = index * alphabet.length() + digit;
+        }
+
+        return index;
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives each recipient a quiet period after they're sent something. Anything else for them during it is held back,
+ * then handed to the {@link NucleusSmsFanOut.Sender} as one digest when the period ends, which starts another.
+ * <p>
+ * The first notification after a quiet spell is never delayed; only the ones that follow it closely are merged.
+ *
+ * @param <T> What is held back, e.g. a notification.
+ */
+public class NucleusSmsDigest<T> {
+
+    private final Map<Object, Recipient> recipients = new HashMap<Object, Recipient>();
+    private final ScheduledExecutorService timer;
+    private final AtomicLong digests = new AtomicLong(0);
+    private final AtomicLong held = new AtomicLong(0);
+
+    private final NucleusSmsFanOut.Sender<T> sender;
+
+    private boolean running = true;
+
+    public NucleusSmsDigest(String profileName, NucleusSmsFanOut.Sender<T> sender) {
+        this.sender = sender;
+
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsDigest[%s]", profileName))
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Offer {@code member} for {@code recipient}.
+     *
+     * @param recipient Who {@code member} is for. Compared with {@link Object#equals}.
+     * @param quietPeriod How long after this is sent that anything else for the recipient is held back.
+     * @return null if the recipient isn't in a quiet period, in which case the caller should send {@code member}
+     * straight away; it's taken as sent, starting one. Otherwise a future that completes once the digest holding
+     * {@code member} has been sent, or fails if it couldn't be.
+     */
+    public ListenableFuture<Void> offer(Object recipient, T member, long quietPeriod, TimeUnit unit) {
+        synchronized (recipients) {
+            if (!running) {
+                return null;
+            }
+
+            Recipient r = recipients.get(recipient);
+
+            if (r == null) {
+                r = new Recipient(recipient, unit.toMillis(quietPeriod));
+                recipients.put(recipient, r);
+                schedule(r);
+                return null;
+            }
+
+            SettableFuture<Void> future = SettableFuture.create();
+            r.members.add(member);
+            r.futures.add(future);
+            held.incrementAndGet();
+
+            return future;
+        }
+    }
+
+    /**
+     * @return The number of digests sent.
+     */
+    public long getDigestCount() {
+        return digests.get();
+    }
+
+    /**
+     * @return The number of members held back and sent in a digest.
+     */
+    public long getHeldCount() {
+        return held.get();
+    }
+
+    /**
+     * Stop holding anything back, and send every waiting digest straight away.
+     */
+    public void shutdown() {
+        List<Recipient> waiting = new ArrayList<Recipient>();
+
+        synchronized (recipients) {
+            running = false;
+            for (Recipient r : recipients.values()) {
+                if (!r.members.isEmpty()) {
+                    waiting.add(r);
+                }
+            }
+            recipients.clear();
+        }
+
+        timer.shutdownNow();
+
+        for (Recipient r : waiting) {
+            send(r.members, r.futures);
+        }
+    }
+
+    private void schedule(final Recipient r) {
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    quietPeriodOver(r);
+                }
+            }, r.quietPeriodMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; shutdown() sends whatever is waiting.
+        }
+    }
+
+    private void quietPeriodOver(Recipient r) {
+        List<T> members;
+        List<SettableFuture<Void>> futures;
+
+        synchronized (recipients) {
+            if (recipients.get(r.key) != r) {
+                return;
+            }
+
+            if (r.members.isEmpty()) {
+                recipients.remove(r.key);
+                return;
+            }
+
+            members = r.members;
+            futures = r.futures;
+            r.members = new ArrayList<T>();
+            r.futures = new ArrayList<SettableFuture<Void>>();
+
+            // Sending the digest starts another quiet period.
+            schedule(r);
+        }
+
+        send(members, futures);
+    }
+
+    private void send(List<T> members, final List<SettableFuture<Void>> futures) {
+        digests.incrementAndGet();
+
+        ListenableFuture<?> sent;
+        try {
+            sent = sender.send(members);
+        } catch (Exception e) {
+            sent = Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(sent, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                for (SettableFuture<Void> future : futures) {
+                    future.set(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                for (SettableFuture<Void> future : futures) {
+                    future.setException(t);
+                }
+            }
+        });
+    }
+
+    private class Recipient {
+
+        private final Object key;
+        private final long quietPeriodMillis;
+        private List<T> members = new ArrayList<T>();
+        private List<SettableFuture<Void>> futures = new ArrayList<SettableFuture<Void>>();
+
+        private Recipient(Object key, long quietPeriodMillis) {
+            this.key = key;
+            this.quietPeriodMillis = quietPeriodMillis;
+        }
+
+    }
+
+}
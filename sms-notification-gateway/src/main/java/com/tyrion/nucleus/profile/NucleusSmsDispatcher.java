@@ -0,0 +1,165 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded outbound queue drained by a fixed pool of worker threads. Notifications are handed to the dispatcher by
+ * {@link NucleusSmsNotificationProfile#sendNotification} so the Ignition notification thread never waits on Nucleus.
+ * <p>
+ * Queued tasks are started highest alarm priority first (see {@link NucleusSmsPriorityQueue}), so a backlog of Low
+ * notifications doesn't hold up a Critical one.
+ */
+public class NucleusSmsDispatcher {
+
+    /**
+     * What to do when a notification arrives and the queue is already full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block the caller until space frees up or the offer timeout elapses, then fail the notification.
+         */
+        Block,
+        /**
+         * Fail the notification immediately.
+         */
+        Reject,
+        /**
+         * Deliver the notification on the calling thread.
+         */
+        CallerRuns
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public NucleusSmsDispatcher(String profileName,
+                                int threads,
+                                int capacity,
+                                OverflowPolicy policy,
+                                long offerTimeout,
+                                TimeUnit offerTimeoutUnit) {
+
+        executor = new ThreadPoolExecutor(
+                threads, threads,
+                60L, TimeUnit.SECONDS,
+                new NucleusSmsPriorityQueue(capacity),
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsDispatcher[%s]-%%d", profileName))
+                        .setDaemon(true)
+                        .build(),
+                createHandler(policy, offerTimeout, offerTimeoutUnit));
+    }
+
+    /**
+     * Queue a task for delivery.
+     *
+     * @param task The delivery task.
+     * @throws RejectedExecutionException if the queue is full and the {@link OverflowPolicy} didn't make room for it,
+     *                                    or the dispatcher has been shut down.
+     */
+    public void dispatch(Runnable task) throws RejectedExecutionException {
+        executor.execute(task);
+    }
+
+    /**
+     * @return The number of tasks waiting in the queue, not counting those currently being delivered.
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return The number of tasks currently being delivered by a worker.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return The number of tasks turned away because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stop accepting new work and give in-flight deliveries a chance to finish.
+     *
+     * @return Any tasks that were still queued and never started.
+     */
+    public List<Runnable> shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                log.warn("Timed out waiting for queued notifications to be delivered.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return executor.shutdownNow();
+    }
+
+    private RejectedExecutionHandler createHandler(OverflowPolicy policy,
+                                                   final long offerTimeout,
+                                                   final TimeUnit offerTimeoutUnit) {
+        switch (policy) {
+            case Block:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw reject("dispatcher is shut down");
+                        }
+
+                        try {
+                            if (!executor.getQueue().offer(r, offerTimeout, offerTimeoutUnit)) {
+                                throw reject("timed out waiting for queue space");
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw reject("interrupted waiting for queue space");
+                        }
+                    }
+                };
+
+            case CallerRuns:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw reject("dispatcher is shut down");
+                        }
+
+                        r.run();
+                    }
+                };
+
+            default:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        throw reject(executor.isShutdown() ? "dispatcher is shut down" : "queue is full");
+                    }
+                };
+        }
+    }
+
+    private RejectedExecutionException reject(String reason) {
+        rejected.incrementAndGet();
+        return new RejectedExecutionException(reason);
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.tyrion.nucleus.profile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One Nucleus flow (and the modem behind it) that SMS can be sent through, along with what's been learned about its
+ * health and speed. Its {@link NucleusSmsCircuitBreaker} decides whether requests may be made to it.
+ */
+public class NucleusSmsEndpoint {
+
+    /**
+     * How much each new latency sample moves the average.
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final String url;
+    private final int weight;
+    private final NucleusSmsTokenBucket rateLimit;
+    private final NucleusSmsCircuitBreaker circuitBreaker;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    private volatile long latencyNanos = 0;
+
+    public NucleusSmsEndpoint(String url,
+                              int weight,
+                              NucleusSmsTokenBucket rateLimit,
+                              NucleusSmsCircuitBreaker circuitBreaker) {
+        this.url = url;
+        this.weight = Math.max(1, weight);
+        this.rateLimit = rateLimit;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public NucleusSmsTokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public NucleusSmsCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return true if the circuit breaker is closed.
+     */
+    public boolean isHealthy() {
+        return circuitBreaker.getState() == NucleusSmsCircuitBreaker.State.Closed;
+    }
+
+    /**
+     * @return true if the circuit breaker would let a request through right now.
+     */
+    public boolean isAvailable() {
+        return circuitBreaker.isCallPermitted();
+    }
+
+    /**
+     * @return The smoothed round trip time of recent requests, in milliseconds, or 0 if none have completed yet.
+     */
+    public long getLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+    }
+
+    long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Call before a request if the circuit breaker allows it; must then be balanced by {@link #succeeded} or
+     * {@link #failed}, passing the permit returned.
+     *
+     * @return The circuit breaker's permit for the request, or {@link NucleusSmsCircuitBreaker#REFUSED} if it refused
+     * the request.
+     */
+    long tryStart() {
+        long permit = circuitBreaker.tryAcquire();
+
+        if (permit != NucleusSmsCircuitBreaker.REFUSED) {
+            inFlight.incrementAndGet();
+        }
+
+        return permit;
+    }
+
+    /**
+     * Call before a request that goes ahead whatever the circuit breaker's state, such as a health check; must be
+     * balanced by {@link #succeeded} or {@link #failed}, passing the permit returned.
+     */
+    long started() {
+        inFlight.incrementAndGet();
+        return NucleusSmsCircuitBreaker.UNCONDITIONAL;
+    }
+
+    /**
+     * @param permit   What {@link #tryStart()} or {@link #started()} returned for the request.
+     * @param smsCount The number of SMS the request carried, or 0 for a probe or poll.
+     */
+    void succeeded(long permit, long elapsedNanos, int smsCount) {
+        inFlight.decrementAndGet();
+        sent.addAndGet(smsCount);
+        recordLatency(elapsedNanos);
+        circuitBreaker.onSuccess(permit);
+    }
+
+    /**
+     * @param permit What {@link #tryStart()} or {@link #started()} returned for the request.
+     */
+    void failed(long permit) {
+        inFlight.decrementAndGet();
+        failures.incrementAndGet();
+        circuitBreaker.onFailure(permit);
+    }
+
+    private synchronized void recordLatency(long elapsedNanos) {
+        latencyNanos = latencyNanos == 0 ?
+                elapsedNanos :
+                (long) (latencyNanos + LATENCY_SMOOTHING * (elapsedNanos - latencyNanos));
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+}
@@ -0,0 +1,259 @@
+package com.tyrion.nucleus.profile;
+
+import com.inductiveautomation.metro.utils.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Nucleus endpoints a profile sends through, and the choice of which one to use for each request.
+ * <p>
+ * Endpoints whose {@link NucleusSmsCircuitBreaker} has opened are taken out of rotation until their breaker lets a
+ * trial request through, or a periodic {@link #probe()} to them succeeds. If every breaker is open, no endpoint is
+ * selected and requests fail fast instead of waiting on endpoints that are known to be down.
+ * <p>
+ * Probing is opt-in. A probe is a POST to the same URL alarms are sent to, so it's only safe against flows that answer
+ * the status command without sending an SMS or touching the reply buffer.
+ */
+public class NucleusSmsEndpoints {
+
+    /**
+     * How the next endpoint is chosen from the available ones.
+     */
+    public enum Selection {
+        /**
+         * The endpoint with the fewest requests in flight for its weight, breaking ties by latency.
+         */
+        LeastLoaded,
+        /**
+         * A random endpoint, favouring those with a high weight and a low latency.
+         */
+        LatencyWeighted
+    }
+
+    /**
+     * Sent to each endpoint by {@link #probe()}. Any 2xx answer counts as healthy. The flow must recognize the command
+     * and answer it without sending anything, which is why probing is off unless a profile turns it on.
+     */
+    private static final byte[] STATUS_COMMAND = "{\"cmd\":\"status\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final List<NucleusSmsEndpoint> endpoints;
+    private final Selection selection;
+    private final NucleusHttpClient client;
+
+    public NucleusSmsEndpoints(List<NucleusSmsEndpoint> endpoints, Selection selection, NucleusHttpClient client) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required.");
+        }
+
+        this.endpoints = Collections.unmodifiableList(new ArrayList<NucleusSmsEndpoint>(endpoints));
+        this.selection = selection == null ? Selection.LeastLoaded : selection;
+        this.client = client;
+    }
+
+    /**
+     * Parse the profile's endpoint settings: the host URL, plus any additional endpoints separated by commas or new
+     * lines, each a URL optionally followed by whitespace and a weight.
+     *
+     * @param ratePerMinute    The send rate of each endpoint; see {@link NucleusSmsTokenBucket}.
+     * @param breakerThreshold The failures in a row that open an endpoint's {@link NucleusSmsCircuitBreaker}.
+     * @param breakerOpenTime  How long, in seconds, an open breaker refuses requests.
+     */
+    public static List<NucleusSmsEndpoint> parse(String hostURL,
+                                                 String additional,
+                                                 int ratePerMinute,
+                                                 int burst,
+                                                 int breakerThreshold,
+                                                 int breakerOpenTime) {
+        List<NucleusSmsEndpoint> endpoints = new ArrayList<NucleusSmsEndpoint>();
+        endpoints.add(new NucleusSmsEndpoint(
+                hostURL.trim(),
+                1,
+                new NucleusSmsTokenBucket(ratePerMinute, burst),
+                new NucleusSmsCircuitBreaker(breakerThreshold, breakerOpenTime, TimeUnit.SECONDS)));
+
+        if (!StringUtils.isBlank(additional)) {
+            for (String entry : additional.split("[,\\r\\n]+")) {
+                String[] fields = entry.trim().split("\\s+");
+                if (fields.length == 0 || fields[0].isEmpty()) {
+                    continue;
+                }
+
+                int weight = 1;
+                if (fields.length > 1) {
+                    try {
+                        weight = Integer.parseInt(fields[1]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid weight for endpoint '" + fields[0] + "'.");
+                    }
+                }
+
+                endpoints.add(new NucleusSmsEndpoint(
+                        fields[0],
+                        weight,
+                        new NucleusSmsTokenBucket(ratePerMinute, burst),
+                        new NucleusSmsCircuitBreaker(breakerThreshold, breakerOpenTime, TimeUnit.SECONDS)));
+            }
+        }
+
+        return endpoints;
+    }
+
+    public List<NucleusSmsEndpoint> getAll() {
+        return endpoints;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    public int getHealthyCount() {
+        int healthy = 0;
+        for (NucleusSmsEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy()) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * @return How many endpoints' circuit breakers are refusing requests outright.
+     */
+    public int getOpenCount() {
+        int open = 0;
+        for (NucleusSmsEndpoint endpoint : endpoints) {
+            if (endpoint.getCircuitBreaker().getState() == NucleusSmsCircuitBreaker.State.Open) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Choose the endpoint for the next request.
+     *
+     * @param exclude Endpoints already tried for this request.
+     * @return null if every endpoint has been excluded or has its circuit breaker open.
+     */
+    public NucleusSmsEndpoint select(Collection<NucleusSmsEndpoint> exclude) {
+        List<NucleusSmsEndpoint> candidates = new ArrayList<NucleusSmsEndpoint>(endpoints.size());
+        for (NucleusSmsEndpoint endpoint : endpoints) {
+            if (endpoint.isAvailable() && !exclude.contains(endpoint)) {
+                candidates.add(endpoint);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        } else if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        return selection == Selection.LatencyWeighted ? latencyWeighted(candidates) : leastLoaded(candidates);
+    }
+
+    private static NucleusSmsEndpoint leastLoaded(List<NucleusSmsEndpoint> candidates) {
+        NucleusSmsEndpoint best = null;
+        double bestLoad = Double.MAX_VALUE;
+
+        for (NucleusSmsEndpoint endpoint : candidates) {
+            double load = (endpoint.getInFlight() + 1) / (double) endpoint.getWeight();
+
+            if (best == null || load < bestLoad
+                    || (load == bestLoad && endpoint.getLatencyNanos() < best.getLatencyNanos())) {
+                best = endpoint;
+                bestLoad = load;
+            }
+        }
+
+        return best;
+    }
+
+    private static NucleusSmsEndpoint latencyWeighted(List<NucleusSmsEndpoint> candidates) {
+        double[] scores = new double[candidates.size()];
+        double total = 0;
+
+        for (int i = 0; i < candidates.size(); i++) {
+            NucleusSmsEndpoint endpoint = candidates.get(i);
+            // An endpoint with no latency yet is scored as if it took a millisecond, so it gets tried.
+            double latencyMillis = Math.max(1.0, endpoint.getLatencyNanos() / 1e6);
+            scores[i] = endpoint.getWeight() / latencyMillis;
+            total += scores[i];
+        }
+
+        double pick = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < scores.length; i++) {
+            pick -= scores[i];
+            if (pick < 0) {
+                return candidates.get(i);
+            }
+        }
+
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /**
+     * Check every endpoint's health and latency. Checks are made even while an endpoint's circuit breaker is open, and
+     * one that succeeds closes it.
+     */
+    public void probe() {
+        for (NucleusSmsEndpoint endpoint : endpoints) {
+            boolean wasHealthy = endpoint.isHealthy();
+            long start = System.nanoTime();
+            long permit = endpoint.started();
+
+            try {
+                client.post(endpoint.getUrl(), STATUS_COMMAND, new NucleusHttpClient.ResponseHandler<Void>() {
+                    @Override
+                    public Void handle(InputStream body) {
+                        return null;
+                    }
+                });
+                endpoint.succeeded(permit, System.nanoTime() - start, 0);
+
+                if (!wasHealthy) {
+                    log.info("Nucleus endpoint '" + endpoint + "' is reachable again.");
+                }
+            } catch (Exception e) {
+                endpoint.failed(permit);
+
+                if (wasHealthy) {
+                    log.warn("Nucleus endpoint '" + endpoint + "' failed a health check: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if {@code e} means the request never reached the endpoint, so it's safe to send it to another.
+     */
+    public static boolean isUnreachable(Throwable e) {
+        while (e != null) {
+            if (e instanceof NucleusHttpClient.NotSentException
+                    || e instanceof ConnectException
+                    || e instanceof NoRouteToHostException
+                    || e instanceof UnknownHostException
+                    || (e instanceof NucleusHttpClient.HttpStatusException
+                    && ((NucleusHttpClient.HttpStatusException) e).getStatus() == 503)) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+}
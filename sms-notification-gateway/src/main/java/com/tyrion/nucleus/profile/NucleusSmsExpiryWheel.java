@@ -0,0 +1,146 @@
+package com.tyrion.nucleus.profile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical timing wheel. Scheduling an item is O(1) regardless of how many are outstanding, and each tick only
+ * touches the items that fall due on it (plus an occasional cascade of a coarser slot into finer ones).
+ * <p>
+ * There are {@value #LEVELS} wheels of {@value #SLOTS} slots. A slot on level {@code n} covers {@code 64^n} ticks,
+ * so with a one second tick the wheels span a minute, an hour, three days and six months.
+ * <p>
+ * {@link #schedule} may be called from any thread. {@link #advance} must only be called from one thread at a time.
+ * Items are never removed early; whoever handles expiry should ignore items that have already been dealt with.
+ */
+public class NucleusSmsExpiryWheel<T> {
+
+    public interface ExpiryHandler<T> {
+        void expired(T item);
+    }
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickNanos;
+    private final long startNanos;
+
+    @SuppressWarnings("unchecked")
+    private final List<Node<T>>[][] wheels = new List[LEVELS][SLOTS];
+
+    /**
+     * Newly scheduled items wait here until the ticking thread files them into the wheels.
+     */
+    private final Queue<Node<T>> incoming = new ConcurrentLinkedQueue<Node<T>>();
+
+    private long currentTick = 0;
+
+    public NucleusSmsExpiryWheel(long tick, TimeUnit unit) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        this.startNanos = System.nanoTime();
+
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheels[level][slot] = new ArrayList<Node<T>>(0);
+            }
+        }
+    }
+
+    /**
+     * Schedule {@code item} to expire {@code delay} from now.
+     */
+    public void schedule(T item, long delay, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(delay);
+
+        // Round up, so nothing expires early.
+        long deadlineTick = (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+
+        incoming.add(new Node<T>(item, deadlineTick));
+    }
+
+    /**
+     * Advance the wheel to the current time, handing every item that has come due to {@code handler}.
+     *
+     * @return The number of items expired.
+     */
+    public int advance(ExpiryHandler<T> handler) {
+        long targetTick = (System.nanoTime() - startNanos) / tickNanos;
+        List<Node<T>> due = new ArrayList<Node<T>>();
+
+        Node<T> node;
+        while ((node = incoming.poll()) != null) {
+            place(node, due);
+        }
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+                    break;
+                }
+
+                // This level's wheel has turned over a slot; spread that slot's items across the finer wheels.
+                int slot = (int) ((currentTick >>> (BITS * level)) & MASK);
+                List<Node<T>> cascading = wheels[level][slot];
+                wheels[level][slot] = new ArrayList<Node<T>>(0);
+
+                for (Node<T> n : cascading) {
+                    place(n, due);
+                }
+            }
+
+            int slot = (int) (currentTick & MASK);
+            if (!wheels[0][slot].isEmpty()) {
+                due.addAll(wheels[0][slot]);
+                wheels[0][slot] = new ArrayList<Node<T>>(0);
+            }
+        }
+
+        for (Node<T> n : due) {
+            handler.expired(n.item);
+        }
+
+        return due.size();
+    }
+
+    private void place(Node<T> node, List<Node<T>> due) {
+        long delta = node.deadlineTick - currentTick;
+
+        if (delta <= 0) {
+            due.add(node);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < (1L << (BITS * (level + 1)))) {
+                int slot = (int) ((node.deadlineTick >>> (BITS * level)) & MASK);
+                wheels[level][slot].add(node);
+                return;
+            }
+        }
+
+        // Further out than the wheels reach; park it as far out as possible and re-file it when that slot cascades.
+        int top = LEVELS - 1;
+        long parkedTick = currentTick + (1L << (BITS * LEVELS)) - 1;
+        wheels[top][(int) ((parkedTick >>> (BITS * top)) & MASK)].add(node);
+    }
+
+    private static class Node<T> {
+
+        private final T item;
+        private final long deadlineTick;
+
+        private Node(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+    }
+
+}
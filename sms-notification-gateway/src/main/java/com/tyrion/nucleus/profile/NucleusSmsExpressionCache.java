@@ -0,0 +1,173 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.inductiveautomation.ignition.common.config.PropertyResolver;
+import com.inductiveautomation.ignition.common.expressions.AbstractExpression;
+import com.inductiveautomation.ignition.common.expressions.Expression;
+import com.inductiveautomation.ignition.common.expressions.ExpressionException;
+import com.inductiveautomation.ignition.common.expressions.ExpressionParseContext;
+import com.inductiveautomation.ignition.common.expressions.parsing.StringParser;
+import com.inductiveautomation.ignition.common.model.values.QualifiedValue;
+import com.inductiveautomation.ignition.gateway.expressions.AlarmEventCollectionExpressionParseContext;
+import com.inductiveautomation.ignition.gateway.expressions.FormattedExpressionParseContext;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsed message expressions, so each notification only has to execute its message rather than parse it again.
+ * <p>
+ * A parsed expression normally has its property references bound to the alarm events it was parsed against. Here
+ * each parsed tree carries a holder for the events it's evaluating, and its references read from that holder when
+ * they're executed, so the tree can be reused for the next notification with the same expression.
+ * <p>
+ * A tree is only ever evaluated by one thread at a time: it's taken from its expression's idle trees for the
+ * evaluation and handed back afterwards. Another tree is parsed only when every idle one is in use, so each expression
+ * is parsed at most once per thread evaluating it at the same time.
+ * <p>
+ * Expressions are cached by their text after collection references have been expanded, since the expansion depends on
+ * the events being sent. The cache is bounded, least recently used first.
+ */
+public class NucleusSmsExpressionCache {
+
+    private final Cache<String, Queue<ParsedExpression>> expressions;
+
+    private final AtomicLong parses = new AtomicLong(0);
+    private final AtomicLong reuses = new AtomicLong(0);
+
+    public NucleusSmsExpressionCache(int maxSize) {
+        expressions = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1, maxSize))
+                .build();
+    }
+
+    /**
+     * Evaluate {@code expressionString} against {@code alarmEvents}, parsing it only if no parsed copy is free.
+     */
+    public QualifiedValue evaluate(String expressionString,
+                                   PropertyResolver resolver,
+                                   List<AlarmEvent> alarmEvents) throws Exception {
+        AlarmEventCollectionExpressionParseContext eventContext =
+                new AlarmEventCollectionExpressionParseContext(resolver, alarmEvents);
+
+        String expanded = eventContext.expandCollectionReferences(expressionString);
+
+        Queue<ParsedExpression> idle;
+        try {
+            idle = expressions.get(expanded, new Callable<Queue<ParsedExpression>>() {
+                @Override
+                public Queue<ParsedExpression> call() {
+                    return new ConcurrentLinkedQueue<ParsedExpression>();
+                }
+            });
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        ParsedExpression parsed = idle.poll();
+        if (parsed == null) {
+            parsed = new ParsedExpression(expanded);
+            parses.incrementAndGet();
+        } else {
+            reuses.incrementAndGet();
+        }
+
+        parsed.eventContext = eventContext;
+        try {
+            return parsed.expression.execute();
+        } finally {
+            parsed.eventContext = null;
+            idle.offer(parsed);
+        }
+    }
+
+    /**
+     * Forget every parsed expression, e.g. because the message properties they came from have changed.
+     */
+    public void invalidateAll() {
+        expressions.invalidateAll();
+    }
+
+    /**
+     * @return How many distinct expressions are cached.
+     */
+    public long size() {
+        return expressions.size();
+    }
+
+    /**
+     * @return How many times an expression has been parsed.
+     */
+    public long getParseCount() {
+        return parses.get();
+    }
+
+    /**
+     * @return How many evaluations reused an already parsed expression.
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * One parsed tree, and the events it's evaluating while a thread has it.
+     */
+    private static class ParsedExpression implements ExpressionParseContext {
+
+        private final Expression expression;
+
+        /**
+         * Only set while the tree is taken, by the one thread evaluating it. Handing the tree back through its queue
+         * publishes this to whichever thread takes it next.
+         */
+        private AlarmEventCollectionExpressionParseContext eventContext;
+
+        private ParsedExpression(String expanded) throws Exception {
+            this.expression = new StringParser().parse(expanded, new FormattedExpressionParseContext(this));
+        }
+
+        @Override
+        public Expression createBoundExpression(String reference) throws RuntimeException {
+            return new BoundReference(this, reference);
+        }
+
+    }
+
+    /**
+     * A property reference in a cached tree, bound against the events its tree is evaluating whenever it's executed.
+     */
+    private static class BoundReference extends AbstractExpression {
+
+        private final ParsedExpression owner;
+        private final String reference;
+
+        private BoundReference(ParsedExpression owner, String reference) {
+            this.owner = owner;
+            this.reference = reference;
+        }
+
+        @Override
+        public QualifiedValue execute() throws ExpressionException {
+            AlarmEventCollectionExpressionParseContext eventContext = owner.eventContext;
+
+            if (eventContext == null) {
+                throw new IllegalStateException("Cached expression used outside of evaluate().");
+            }
+
+            return eventContext.createBoundExpression(reference).execute();
+        }
+
+        @Override
+        public String toString() {
+            return "BoundReference[" + reference + "]";
+        }
+
+    }
+
+}
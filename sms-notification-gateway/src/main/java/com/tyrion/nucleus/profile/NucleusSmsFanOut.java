@@ -0,0 +1,209 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gathers sends that would carry the same SMS into one group, so a roster of users notified about the same alarm costs
+ * one multi-recipient post to Nucleus rather than one per user.
+ * <p>
+ * A group opens when the first member arrives under a key, and is handed to the {@link Sender} once the window has
+ * passed or it has reached its maximum size. Each member's future completes when the group's send does.
+ *
+ * @param <T> What a member of a group is, e.g. a notification.
+ */
+public class NucleusSmsFanOut<T> {
+
+    /**
+     * Sends a group's members together.
+     */
+    public interface Sender<M> {
+        /**
+         * @return A future that completes once the group has been sent, or fails if it couldn't be.
+         */
+        ListenableFuture<?> send(List<M> members) throws Exception;
+    }
+
+    private final Map<Object, Group> open = new HashMap<Object, Group>();
+    private final ScheduledExecutorService timer;
+    private final AtomicLong groups = new AtomicLong(0);
+    private final AtomicLong members = new AtomicLong(0);
+
+    private final Sender<T> sender;
+    private final long windowMillis;
+    private final int maxGroupSize;
+
+    private boolean running = true;
+
+    public NucleusSmsFanOut(String profileName, Sender<T> sender, long windowMillis, int maxGroupSize) {
+        this.sender = sender;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsFanOut[%s]", profileName))
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Add {@code member} to the open group for {@code key}, opening one if there isn't one.
+     *
+     * @param key What members must have in common to be sent together. Compared with {@link Object#equals}.
+     * @return A future that completes once the member's group has been sent, or fails if it couldn't be.
+     */
+    public ListenableFuture<Void> add(Object key, T member) {
+        SettableFuture<Void> future = SettableFuture.create();
+        Group full = null;
+
+        synchronized (open) {
+            if (!running) {
+                future.setException(new RejectedExecutionException("Fan-out is shut down."));
+                return future;
+            }
+
+            Group group = open.get(key);
+            if (group == null) {
+                group = new Group(key);
+                open.put(key, group);
+                schedule(group);
+            }
+
+            group.members.add(member);
+            group.futures.add(future);
+
+            if (group.members.size() >= maxGroupSize) {
+                open.remove(key);
+                full = group;
+            }
+        }
+
+        if (full != null) {
+            send(full);
+        }
+
+        return future;
+    }
+
+    /**
+     * @return The number of groups sent.
+     */
+    public long getGroupCount() {
+        return groups.get();
+    }
+
+    /**
+     * @return The number of members sent, across every group.
+     */
+    public long getMemberCount() {
+        return members.get();
+    }
+
+    /**
+     * Send every open group straight away, without waiting for its window to pass.
+     */
+    public void flush() {
+        List<Group> remaining;
+
+        synchronized (open) {
+            remaining = new ArrayList<Group>(open.values());
+            open.clear();
+        }
+
+        for (Group group : remaining) {
+            send(group);
+        }
+    }
+
+    /**
+     * Stop accepting members and send every open group straight away.
+     */
+    public void shutdown() {
+        synchronized (open) {
+            running = false;
+        }
+
+        timer.shutdownNow();
+        flush();
+    }
+
+    private void schedule(final Group group) {
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    close(group);
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; shutdown() sends whatever is still open.
+        }
+    }
+
+    private void close(Group group) {
+        synchronized (open) {
+            if (open.get(group.key) != group) {
+                // Already sent because it filled up.
+                return;
+            }
+            open.remove(group.key);
+        }
+
+        send(group);
+    }
+
+    private void send(final Group group) {
+        groups.incrementAndGet();
+        members.addAndGet(group.members.size());
+
+        ListenableFuture<?> sent;
+        try {
+            sent = sender.send(group.members);
+        } catch (Exception e) {
+            sent = Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(sent, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                for (SettableFuture<Void> future : group.futures) {
+                    future.set(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                for (SettableFuture<Void> future : group.futures) {
+                    future.setException(t);
+                }
+            }
+        });
+    }
+
+    private class Group {
+
+        private final Object key;
+        private final List<T> members = new ArrayList<T>();
+        private final List<SettableFuture<Void>> futures = new ArrayList<SettableFuture<Void>>();
+
+        private Group(Object key) {
+            this.key = key;
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.tyrion.nucleus.profile;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often values of each size are recorded, so percentiles can be read off without keeping the values
+ * themselves. Recording takes a couple of atomic increments and never blocks, so it can go on the send and poll paths.
+ * <p>
+ * Values are bucketed on a log scale with {@value #SUB_BUCKETS} buckets per power of two, so a percentile is accurate
+ * to within an eighth of its value. Negative values are recorded as 0.
+ */
+public class NucleusSmsHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Enough buckets for every non-negative long.
+     */
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The value that {@code percentile} percent of recorded values are at or below, rounded up to the top of
+     * its bucket; 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+
+        // Recorded between reading the count and reading the buckets.
+        return max.get();
+    }
+
+    /**
+     * @return A summary of what has been recorded so far. Recording can carry on while it's taken, so its figures may
+     * be a few values apart.
+     */
+    public Snapshot getSnapshot() {
+        long n = count.get();
+        return new Snapshot(
+                n,
+                n == 0 ? 0 : sum.get() / (double) n,
+                getPercentile(50),
+                getPercentile(95),
+                getPercentile(99),
+                max.get());
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+        return lower + (width - 1);
+    }
+
+    /**
+     * A histogram's figures at one moment, in the unit its values were recorded in.
+     */
+    public static class Snapshot {
+
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        private final long max;
+
+        private Snapshot(long count, double mean, long p50, long p95, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+    }
+
+}
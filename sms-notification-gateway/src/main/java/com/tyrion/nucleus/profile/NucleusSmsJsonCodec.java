@@ -0,0 +1,296 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes the JSON exchanged with Nucleus without building a tree of it first.
+ * <p>
+ * Incoming SMS are handed to a {@link MessageHandler} one at a time as they're read, so a large acknowledgement
+ * buffer is never held in memory as a whole. Outgoing payloads are written through a {@link PayloadWriter}, which
+ * reuses its buffers from one request to the next.
+ */
+public class NucleusSmsJsonCodec {
+
+    /**
+     * The body that asks Nucleus for its buffer of received SMS.
+     */
+    public static final byte[] READ_COMMAND = "{\"cmd\":\"read\"}".getBytes(StandardCharsets.UTF_8);
+
+    public interface MessageHandler {
+        void message(String number, String message, long timestamp) throws Exception;
+    }
+
+    /**
+     * More SMS arrived at once than the reader was told to accept.
+     */
+    public static class TooManyMessagesException extends IOException {
+
+        public TooManyMessagesException(int maxMessages) {
+            super("More than " + maxMessages + " SMS received at once.");
+        }
+
+    }
+
+    private NucleusSmsJsonCodec() {
+    }
+
+    /**
+     * Read either a single {@code {number, message, timestamp}} object or a {@code {messages: [...]}} buffer of them,
+     * handing each to {@code handler} as soon as it's been read.
+     *
+     * @return The number of SMS read.
+     */
+    public static int readMessages(InputStream in, MessageHandler handler) throws Exception {
+        return readMessages(in, handler, Integer.MAX_VALUE);
+    }
+
+    /**
+     * As {@link #readMessages(InputStream, MessageHandler)}, but accepting no more than {@code maxMessages} SMS.
+     *
+     * @throws TooManyMessagesException on reading one more than that. Those before it have already been handled.
+     */
+    public static int readMessages(InputStream in, MessageHandler handler, int maxMessages) throws Exception {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        int count = 0;
+
+        String number = null;
+        String message = null;
+        Long timestamp = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("messages".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (count >= maxMessages) {
+                        throw new TooManyMessagesException(maxMessages);
+                    }
+                    readMessage(reader, handler);
+                    count++;
+                }
+                reader.endArray();
+            } else if ("number".equals(name)) {
+                number = nextString(reader);
+            } else if ("message".equals(name)) {
+                message = nextString(reader);
+            } else if ("timestamp".equals(name)) {
+                timestamp = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (number != null) {
+            if (count >= maxMessages) {
+                throw new TooManyMessagesException(maxMessages);
+            }
+            handler.message(number, require(message, "message"), require(timestamp, "timestamp"));
+            count++;
+        }
+
+        return count;
+    }
+
+    private static void readMessage(JsonReader reader, MessageHandler handler) throws Exception {
+        String number = null;
+        String message = null;
+        Long timestamp = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("number".equals(name)) {
+                number = nextString(reader);
+            } else if ("message".equals(name)) {
+                message = nextString(reader);
+            } else if ("timestamp".equals(name)) {
+                timestamp = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        handler.message(require(number, "number"), require(message, "message"), require(timestamp, "timestamp"));
+    }
+
+    /**
+     * Read Nucleus' answer to a post of one or more SMS: a single {@code {success}} object, an array of them, or
+     * {@code {results: [...]}}.
+     *
+     * @throws IOException if the response isn't one of those, including when it isn't JSON at all.
+     */
+    public static Results readResults(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+        try {
+            return readResults(reader);
+        } catch (IllegalStateException e) {
+            // JsonReader's complaint about well formed JSON of the wrong shape.
+            throw new IOException("Unexpected response from Nucleus: " + e.getMessage(), e);
+        }
+    }
+
+    private static Results readResults(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            return new Results(false, readResultArray(reader));
+        }
+
+        boolean success = false;
+        List<Boolean> items = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("success".equals(name)) {
+                success = nextBoolean(reader);
+            } else if ("results".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                items = readResultArray(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return new Results(success, items);
+    }
+
+    private static List<Boolean> readResultArray(JsonReader reader) throws IOException {
+        List<Boolean> items = new ArrayList<Boolean>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            boolean success = false;
+
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("success".equals(reader.nextName())) {
+                        success = nextBoolean(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+
+            items.add(success);
+        }
+        reader.endArray();
+
+        return items;
+    }
+
+    /**
+     * Nucleus flows aren't consistent about quoting, so accept {@code "true"} as well as {@code true}.
+     */
+    private static boolean nextBoolean(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        } else if (token == JsonToken.STRING) {
+            return "true".equalsIgnoreCase(reader.nextString());
+        }
+
+        reader.skipValue();
+        return false;
+    }
+
+    /**
+     * Numbers often arrive unquoted; read them as the digits they were sent as.
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        return reader.nextString();
+    }
+
+    private static <T> T require(T value, String name) throws IOException {
+        if (value == null) {
+            throw new IOException("Received SMS is missing '" + name + "'.");
+        }
+        return value;
+    }
+
+    /**
+     * The outcome of posting SMS to Nucleus.
+     */
+    public static class Results {
+
+        private final boolean success;
+        private final List<Boolean> items;
+
+        private Results(boolean success, List<Boolean> items) {
+            this.success = success;
+            this.items = items == null ? null : Collections.unmodifiableList(items);
+        }
+
+        /**
+         * @return The overall {@code success} flag, for responses without per-item results.
+         */
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return The success of each item in a batch, in the order they were posted, or null if Nucleus only reported
+         * overall success.
+         */
+        public List<Boolean> getItems() {
+            return items;
+        }
+
+    }
+
+    /**
+     * Writes request bodies into a buffer that's kept between requests. Not thread safe; each sending thread should
+     * have its own.
+     */
+    public static class PayloadWriter {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        private final Writer utf8 = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+
+        /**
+         * Start a new payload, discarding the last one.
+         */
+        public JsonWriter begin() {
+            buffer.reset();
+            return new JsonWriter(utf8);
+        }
+
+        /**
+         * @return The payload written since {@link #begin()}.
+         */
+        public byte[] finish(JsonWriter writer) throws IOException {
+            writer.flush();
+            return buffer.toByteArray();
+        }
+
+    }
+
+}
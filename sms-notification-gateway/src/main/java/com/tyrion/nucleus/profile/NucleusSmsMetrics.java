@@ -0,0 +1,282 @@
+package com.tyrion.nucleus.profile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A notification profile's instrumentation: histograms that the dispatcher, outbox and acknowledgement manager record
+ * into as they work, and the profile's current queue and registry sizes. Published over JMX by {@link #register()}.
+ */
+public class NucleusSmsMetrics implements NucleusSmsMetricsMXBean {
+
+    /**
+     * The profile's current state, read whenever the metrics are.
+     */
+    public interface Gauges {
+        int getQueuedNotifications();
+
+        int getOutboxDepth();
+
+        long getRetriedSms();
+
+        long getRejectedNotifications();
+
+        NucleusSmsAckRegistry getRegistry();
+
+        NucleusSmsAckManager getAckManager();
+
+        int getAuditQueueDepth();
+
+        long getDroppedAuditRecords();
+
+        NucleusHttpClient getHttpClient();
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final NucleusSmsHistogram expressionRender = new NucleusSmsHistogram();
+    private final NucleusSmsHistogram sendLatency = new NucleusSmsHistogram();
+    private final NucleusSmsHistogram sendBatchSize = new NucleusSmsHistogram();
+    private final NucleusSmsHistogram pollLatency = new NucleusSmsHistogram();
+    private final NucleusSmsHistogram pollBatchSize = new NucleusSmsHistogram();
+    private final NucleusSmsHistogram ackRoundTrip = new NucleusSmsHistogram();
+    private final NucleusSmsHistogram fanOutGroupSize = new NucleusSmsHistogram();
+
+    private final String profileName;
+    private volatile Gauges gauges;
+    private volatile ObjectName objectName;
+
+    public NucleusSmsMetrics(String profileName) {
+        this.profileName = profileName;
+    }
+
+    /**
+     * Supply the profile's gauges. Until this is called they all read 0.
+     */
+    public void setGauges(Gauges gauges) {
+        this.gauges = gauges;
+    }
+
+    void recordExpressionRender(long elapsedNanos) {
+        expressionRender.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+    }
+
+    void recordSend(long elapsedNanos, int smsCount) {
+        sendLatency.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        sendBatchSize.record(smsCount);
+    }
+
+    void recordPoll(long elapsedNanos, int received) {
+        pollLatency.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        pollBatchSize.record(received);
+    }
+
+    void recordAck(long roundTripMillis) {
+        ackRoundTrip.record(roundTripMillis);
+    }
+
+    void recordFanOut(int users) {
+        fanOutGroupSize.record(users);
+    }
+
+    /**
+     * Publish the metrics to the platform MBean server, replacing any left behind by an earlier instance of the
+     * profile.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName name = new ObjectName(
+                    "com.tyrion.nucleus:type=NucleusSmsNotificationProfile,name=" + ObjectName.quote(profileName));
+
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+
+            objectName = name;
+        } catch (JMException e) {
+            log.warn("Couldn't publish metrics for profile '" + profileName + "' over JMX.", e);
+        }
+    }
+
+    public void unregister() {
+        ObjectName name = objectName;
+        if (name == null) {
+            return;
+        }
+
+        objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            log.debug("Error removing metrics for profile '" + profileName + "' from JMX.", e);
+        }
+    }
+
+    @Override
+    public NucleusSmsHistogram.Snapshot getExpressionRenderMicros() {
+        return expressionRender.getSnapshot();
+    }
+
+    @Override
+    public NucleusSmsHistogram.Snapshot getSendLatencyMillis() {
+        return sendLatency.getSnapshot();
+    }
+
+    @Override
+    public NucleusSmsHistogram.Snapshot getSendBatchSize() {
+        return sendBatchSize.getSnapshot();
+    }
+
+    @Override
+    public NucleusSmsHistogram.Snapshot getPollLatencyMillis() {
+        return pollLatency.getSnapshot();
+    }
+
+    @Override
+    public NucleusSmsHistogram.Snapshot getPollBatchSize() {
+        return pollBatchSize.getSnapshot();
+    }
+
+    @Override
+    public NucleusSmsHistogram.Snapshot getAckRoundTripMillis() {
+        return ackRoundTrip.getSnapshot();
+    }
+
+    @Override
+    public NucleusSmsHistogram.Snapshot getFanOutGroupSize() {
+        return fanOutGroupSize.getSnapshot();
+    }
+
+    @Override
+    public int getQueuedNotifications() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getQueuedNotifications();
+    }
+
+    @Override
+    public int getOutboxDepth() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getOutboxDepth();
+    }
+
+    @Override
+    public int getOutstandingCodes() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getRegistry().size();
+    }
+
+    @Override
+    public long getAckedCodes() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getRegistry().getAckedCount();
+    }
+
+    @Override
+    public long getExpiredCodes() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getRegistry().getExpiredCount();
+    }
+
+    @Override
+    public long getEvictedCodes() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getRegistry().getEvictedCount();
+    }
+
+    @Override
+    public double getCodeUtilisation() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getRegistry().getCodeUtilisation();
+    }
+
+    @Override
+    public long getRetriedSms() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getRetriedSms();
+    }
+
+    @Override
+    public long getRejectedNotifications() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getRejectedNotifications();
+    }
+
+    @Override
+    public int getAuditQueueDepth() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getAuditQueueDepth();
+    }
+
+    @Override
+    public long getDroppedAuditRecords() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getDroppedAuditRecords();
+    }
+
+    @Override
+    public long getHttpRequests() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getHttpClient().getRequestCount();
+    }
+
+    @Override
+    public long getHttpConnectionsOpened() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getHttpClient().getConnectionsOpened();
+    }
+
+    @Override
+    public long getHttpConnectionsReused() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getHttpClient().getConnectionsReused();
+    }
+
+    @Override
+    public long getPolls() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getAckManager().getPollCount();
+    }
+
+    @Override
+    public long getPollErrors() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getAckManager().getPollErrorCount();
+    }
+
+    @Override
+    public long getIdlePollBackoffs() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getAckManager().getIdleBackoffCount();
+    }
+
+    @Override
+    public int getPolledEndpoints() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getAckManager().getRouter().getPollerCount();
+    }
+
+    @Override
+    public long getRoutedReplies() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getAckManager().getRouter().getRoutedCount();
+    }
+
+    @Override
+    public long getUnroutedReplies() {
+        Gauges g = gauges;
+        return g == null ? 0 : g.getAckManager().getRouter().getUnroutedCount();
+    }
+
+}
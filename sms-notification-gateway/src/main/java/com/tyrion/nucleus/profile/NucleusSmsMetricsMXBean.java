@@ -0,0 +1,108 @@
+package com.tyrion.nucleus.profile;
+
+/**
+ * What a notification profile publishes over JMX, under
+ * {@code com.tyrion.nucleus:type=NucleusSmsNotificationProfile,name=<profile name>}.
+ */
+public interface NucleusSmsMetricsMXBean {
+
+    /**
+     * @return How long message expressions took to evaluate, in microseconds.
+     */
+    NucleusSmsHistogram.Snapshot getExpressionRenderMicros();
+
+    /**
+     * @return How long each post of SMS to Nucleus took, in milliseconds.
+     */
+    NucleusSmsHistogram.Snapshot getSendLatencyMillis();
+
+    /**
+     * @return How many SMS each post to Nucleus carried.
+     */
+    NucleusSmsHistogram.Snapshot getSendBatchSize();
+
+    /**
+     * @return How long each read of an acknowledgement buffer took, in milliseconds.
+     */
+    NucleusSmsHistogram.Snapshot getPollLatencyMillis();
+
+    /**
+     * @return How many received SMS each read of an acknowledgement buffer returned.
+     */
+    NucleusSmsHistogram.Snapshot getPollBatchSize();
+
+    /**
+     * @return How long after its code was sent each acknowledgement arrived, in milliseconds.
+     */
+    NucleusSmsHistogram.Snapshot getAckRoundTripMillis();
+
+    /**
+     * @return How many users each fanned-out SMS was sent to.
+     */
+    NucleusSmsHistogram.Snapshot getFanOutGroupSize();
+
+    int getQueuedNotifications();
+
+    int getOutboxDepth();
+
+    int getOutstandingCodes();
+
+    long getAckedCodes();
+
+    long getExpiredCodes();
+
+    long getEvictedCodes();
+
+    /**
+     * @return The fraction of possible alarm codes outstanding, from 0 to 1.
+     */
+    double getCodeUtilisation();
+
+    long getRetriedSms();
+
+    long getRejectedNotifications();
+
+    int getAuditQueueDepth();
+
+    long getDroppedAuditRecords();
+
+    long getHttpRequests();
+
+    /**
+     * @return How many HTTPS connections to Nucleus have been opened. Plain HTTP connections aren't counted.
+     */
+    long getHttpConnectionsOpened();
+
+    /**
+     * @return How many HTTPS requests went out on a connection kept open from an earlier one.
+     */
+    long getHttpConnectionsReused();
+
+    /**
+     * @return How many times this profile's endpoints' acknowledgement buffers have been read, including failed reads.
+     */
+    long getPolls();
+
+    long getPollErrors();
+
+    /**
+     * @return How many times polling an endpoint has slowed down, or stopped, because nothing was outstanding.
+     */
+    long getIdlePollBackoffs();
+
+    /**
+     * @return How many endpoints' acknowledgement buffers are being read, by every profile on the gateway.
+     */
+    int getPolledEndpoints();
+
+    /**
+     * @return How many replies across the gateway, polled or pushed, that reached the profile that sent their code.
+     */
+    long getRoutedReplies();
+
+    /**
+     * @return How many replies across the gateway had an alarm code no profile had sent, or that had expired.
+     */
+    long getUnroutedReplies();
+
+}
@@ -1,47 +1,38 @@
 package com.tyrion.nucleus.profile;
 
 import com.google.common.base.Predicate;
-import com.google.common.base.Splitter;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.inductiveautomation.ignition.alarming.common.notification.NotificationProfileProperty;
 import com.inductiveautomation.ignition.alarming.notification.AlarmNotificationProfile;
 import com.inductiveautomation.ignition.alarming.notification.AlarmNotificationProfileRecord;
 import com.inductiveautomation.ignition.alarming.notification.NotificationContext;
 import com.inductiveautomation.ignition.common.TypeUtilities;
-import com.inductiveautomation.ignition.common.WellKnownPathTypes;
 import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.inductiveautomation.ignition.common.alarming.config.AlarmPriority;
 import com.inductiveautomation.ignition.common.config.FallbackPropertyResolver;
-import com.inductiveautomation.ignition.common.expressions.parsing.Parser;
-import com.inductiveautomation.ignition.common.expressions.parsing.StringParser;
 import com.inductiveautomation.ignition.common.i18n.LocalizedString;
-import com.inductiveautomation.ignition.common.model.ApplicationScope;
 import com.inductiveautomation.ignition.common.model.values.QualifiedValue;
-import com.inductiveautomation.ignition.common.sqltags.model.types.DataQuality;
 import com.inductiveautomation.ignition.common.user.ContactInfo;
 import com.inductiveautomation.ignition.common.user.ContactType;
 import com.inductiveautomation.ignition.common.user.User;
-import com.inductiveautomation.ignition.gateway.audit.AuditProfile;
-import com.inductiveautomation.ignition.gateway.audit.AuditRecord;
-import com.inductiveautomation.ignition.gateway.audit.AuditRecordBuilder;
-import com.inductiveautomation.ignition.gateway.expressions.AlarmEventCollectionExpressionParseContext;
-import com.inductiveautomation.ignition.gateway.expressions.FormattedExpressionParseContext;
 import com.inductiveautomation.ignition.gateway.localdb.persistence.PersistenceSession;
 import com.inductiveautomation.ignition.gateway.model.GatewayContext;
 import com.inductiveautomation.ignition.gateway.model.ProfileStatus;
 import com.inductiveautomation.ignition.gateway.model.ProfileStatus.State;
 import com.inductiveautomation.metro.utils.StringUtils;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by travis.cox on 8/1/2017.
@@ -49,7 +40,27 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class NucleusSmsNotificationProfile implements AlarmNotificationProfile {
 
     public static final String DEFAULT_URL = "http://192.168.1.5:1880/alms";
-    public static final Integer MAX_SMS_LEN = 160;
+
+    /**
+     * The most parsed message expressions kept at once. Most profiles only ever see a handful.
+     */
+    private static final int EXPRESSION_CACHE_SIZE = 256;
+
+    /**
+     * The longest wait, in seconds, before retrying a failed SMS, however many times it has failed.
+     */
+    private static final int MAX_RETRY_DELAY = 30;
+
+    /**
+     * The most audit records left waiting to be written before more are dropped, and the most written in one batch.
+     */
+    private static final int AUDIT_QUEUE_CAPACITY = 10000;
+    private static final int AUDIT_BATCH_SIZE = 500;
+
+    /**
+     * The most users sent one fanned-out SMS; a bigger roster is split across several.
+     */
+    private static final int FAN_OUT_MAX_USERS = 100;
 
     private volatile ProfileStatus profileStatus = ProfileStatus.UNKNOWN;
     private final Logger log = LoggerFactory.getLogger(getClass());
@@ -61,17 +72,218 @@ public class NucleusSmsNotificationProfile implements AlarmNotificationProfile {
 
     private final NucleusSmsNotificationProfileSettings settings;
     private String auditProfileName, profileName;
+    private final NucleusHttpClient client;
+    private final NucleusSmsEndpoints endpoints;
     private final NucleusSmsAckManager ackManager;
+    private final NucleusSmsDispatcher dispatcher;
+    private final NucleusSmsOutbox outbox;
+    private final NucleusSmsFanOut<NotificationContext> fanOut;
+    private final NucleusSmsSequencer sequencer;
+    private final NucleusSmsDigest<NotificationContext> digest;
+
+    /**
+     * Both null if storm detection is turned off.
+     */
+    private final NucleusSmsStormDetector stormDetector;
+    private final NucleusSmsFanOut<NotificationContext> stormNotices;
+    private final AtomicInteger storms = new AtomicInteger(0);
+    private final AtomicLong summarized = new AtomicLong(0);
+
+    /**
+     * When the last storm started, or ended if it's over.
+     */
+    private volatile long stormChangedAt;
+    private final NucleusSmsSegmenter segmenter = new NucleusSmsSegmenter();
+    private final NucleusSmsExpressionCache expressions = new NucleusSmsExpressionCache(EXPRESSION_CACHE_SIZE);
+    private final NucleusSmsMetrics metrics;
+    private NucleusSmsAuditWriter auditWriter;
 
     public NucleusSmsNotificationProfile(final GatewayContext context,
                                          final AlarmNotificationProfileRecord profileSettings,
-                                         final NucleusSmsNotificationProfileSettings settings) {
+                                         final NucleusSmsNotificationProfileSettings settings,
+                                         final NucleusSmsAckRouter ackRouter) {
         this.context = context;
         this.profileSettings = profileSettings;
         this.settings = settings;
         this.profileName = profileSettings.getName();
 
-        ackManager = new NucleusSmsAckManager(context, profileSettings.getName(), settings.getHostURL());
+        metrics = new NucleusSmsMetrics(profileName);
+
+        client = new NucleusHttpClient(
+                settings.getMaxConnections(),
+                settings.getConnectTimeout(),
+                settings.getReadTimeout());
+
+        endpoints = new NucleusSmsEndpoints(
+                NucleusSmsEndpoints.parse(
+                        settings.getHostURL(),
+                        settings.getEndpoints(),
+                        settings.getSendRate(),
+                        settings.getSendBurst(),
+                        settings.getCircuitBreakerThreshold(),
+                        settings.getCircuitBreakerOpenTime()),
+                settings.getEndpointSelection(),
+                client);
+
+        ackManager = new NucleusSmsAckManager(
+                context, profileSettings.getName(), ackRouter, client, endpoints, metrics, settings);
+
+        outbox = new NucleusSmsOutbox(
+                profileSettings.getName(),
+                client,
+                endpoints,
+                new NucleusSmsRetryPolicy(
+                        settings.getSendRetries(),
+                        settings.getRetryDelay(),
+                        TimeUnit.SECONDS.toMillis(MAX_RETRY_DELAY),
+                        TimeUnit.MILLISECONDS),
+                metrics,
+                settings.getBatchWindow(),
+                settings.getMaxBatchSize());
+
+        if (settings.getFanOutWindow() > 0) {
+            fanOut = new NucleusSmsFanOut<NotificationContext>(
+                    profileName,
+                    new NucleusSmsFanOut.Sender<NotificationContext>() {
+                        @Override
+                        public ListenableFuture<?> send(List<NotificationContext> notifications) {
+                            return sendFannedOut(notifications);
+                        }
+                    },
+                    settings.getFanOutWindow(),
+                    FAN_OUT_MAX_USERS);
+        } else {
+            fanOut = null;
+        }
+
+        sequencer = new NucleusSmsSequencer(profileName);
+
+        digest = new NucleusSmsDigest<NotificationContext>(
+                profileName,
+                new NucleusSmsFanOut.Sender<NotificationContext>() {
+                    @Override
+                    public ListenableFuture<?> send(List<NotificationContext> notifications) {
+                        return sendDigest(notifications);
+                    }
+                });
+
+        if (settings.getStormThreshold() > 0) {
+            stormNotices = new NucleusSmsFanOut<NotificationContext>(
+                    profileName + " storm notices",
+                    new NucleusSmsFanOut.Sender<NotificationContext>() {
+                        @Override
+                        public ListenableFuture<?> send(List<NotificationContext> notifications) {
+                            return sendStormNotice(notifications);
+                        }
+                    },
+                    TimeUnit.SECONDS.toMillis(Math.max(1, settings.getStormNoticeInterval())),
+                    Integer.MAX_VALUE);
+
+            stormDetector = new NucleusSmsStormDetector(settings.getStormThreshold(),
+                    new NucleusSmsStormDetector.Listener() {
+                        @Override
+                        public void stormStarted(int rate) {
+                            storms.incrementAndGet();
+                            stormChangedAt = System.currentTimeMillis();
+                            log.warn(String.format("Alarm storm: %d notification(s) in the last minute. Alarms "
+                                            + "below %s priority will be summarized until it passes.",
+                                    rate, settings.getStormMinPriority()));
+                        }
+
+                        @Override
+                        public void stormEnded(int rate) {
+                            stormChangedAt = System.currentTimeMillis();
+                            log.info(String.format("Alarm storm over; %d notification(s) in the last minute. "
+                                    + "%d notification(s) summarized so far.", rate, summarized.get()));
+
+                            // Don't keep anyone waiting for the final tally.
+                            stormNotices.flush();
+                        }
+                    });
+
+            context.getExecutionManager().register(
+                    String.format("NucleusSmsNotificationProfile[%s]", profileName),
+                    "StormCheck",
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            stormDetector.update(System.currentTimeMillis());
+                        }
+                    },
+                    1, TimeUnit.SECONDS);
+        } else {
+            stormNotices = null;
+            stormDetector = null;
+        }
+
+        if (settings.getHealthCheckInterval() > 0) {
+            context.getExecutionManager().register(
+                    String.format("NucleusSmsNotificationProfile[%s]", profileName),
+                    "EndpointHealthCheck",
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            endpoints.probe();
+                        }
+                    },
+                    settings.getHealthCheckInterval(), TimeUnit.SECONDS);
+        }
+
+        dispatcher = new NucleusSmsDispatcher(
+                profileSettings.getName(),
+                Math.max(1, settings.getDispatchThreads()),
+                Math.max(1, settings.getQueueCapacity()),
+                settings.getOverflowPolicy(),
+                settings.getOverflowTimeout(), TimeUnit.SECONDS);
+
+        metrics.setGauges(new NucleusSmsMetrics.Gauges() {
+            @Override
+            public int getQueuedNotifications() {
+                return queueSize.get();
+            }
+
+            @Override
+            public int getOutboxDepth() {
+                return outbox.getPendingCount();
+            }
+
+            @Override
+            public long getRetriedSms() {
+                return outbox.getRetryCount();
+            }
+
+            @Override
+            public long getRejectedNotifications() {
+                return dispatcher.getRejectedCount();
+            }
+
+            @Override
+            public NucleusSmsAckRegistry getRegistry() {
+                return ackManager.getRegistry();
+            }
+
+            @Override
+            public NucleusSmsAckManager getAckManager() {
+                return ackManager;
+            }
+
+            @Override
+            public int getAuditQueueDepth() {
+                NucleusSmsAuditWriter writer = auditWriter;
+                return writer == null ? 0 : writer.getPendingCount();
+            }
+
+            @Override
+            public long getDroppedAuditRecords() {
+                NucleusSmsAuditWriter writer = auditWriter;
+                return writer == null ? 0 : writer.getDroppedCount();
+            }
+
+            @Override
+            public NucleusHttpClient getHttpClient() {
+                return client;
+            }
+        });
 
         //We need to retrieve the audit profile name
         PersistenceSession session = null;
@@ -90,6 +302,15 @@ public class NucleusSmsNotificationProfile implements AlarmNotificationProfile {
                 }
             }
         }
+
+        if (!StringUtils.isBlank(auditProfileName)) {
+            auditWriter = new NucleusSmsAuditWriter(
+                    context.getAuditManager(),
+                    auditProfileName,
+                    profileName,
+                    AUDIT_QUEUE_CAPACITY,
+                    AUDIT_BATCH_SIZE);
+        }
     }
 
     @Override
@@ -104,15 +325,76 @@ public class NucleusSmsNotificationProfile implements AlarmNotificationProfile {
         }
 
         int qs = queueSize.get();
+        long rejected = dispatcher.getRejectedCount();
+        NucleusSmsPollSchedule poll = ackManager.getPollSchedule();
+        boolean pollFailing = poll.getState() == NucleusSmsPollSchedule.State.Backoff;
+        long retried = outbox.getRetryCount();
+        int endpointsDown = endpoints.size() - endpoints.getHealthyCount();
+        int endpointsOpen = endpoints.getOpenCount();
+        NucleusSmsHistogram.Snapshot sendLatency = metrics.getSendLatencyMillis();
+        NucleusSmsHistogram.Snapshot ackRoundTrip = metrics.getAckRoundTripMillis();
+        long auditDropped = metrics.getDroppedAuditRecords();
+        int stormCount = storms.get();
+        boolean codesCrowded = ackManager.getRegistry().isCrowded();
+
+        if (qs == 0 && rejected == 0 && retried == 0 && !pollFailing && endpointsDown == 0
+                && sendLatency.getCount() == 0 && auditDropped == 0 && stormCount == 0 && !codesCrowded) {
+            return profileStatus;
+        }
+
+        String message = String.format("%d queued", qs);
+        if (rejected > 0) {
+            message += String.format(", %d rejected", rejected);
+        }
+        if (retried > 0) {
+            message += String.format(", %d retried", retried);
+        }
+        if (pollFailing) {
+            message += String.format(", reply polling failing (%d in a row, next in %d ms)",
+                    poll.getConsecutiveErrors(), poll.getCurrentIntervalMillis());
+        }
+        if (endpointsDown > 0) {
+            message += String.format(", circuit breaker open for %d of %d endpoint(s)",
+                    endpointsDown, endpoints.size());
+            if (endpointsOpen < endpointsDown) {
+                message += String.format(" (%d on trial)", endpointsDown - endpointsOpen);
+            }
+        }
+
+        if (auditDropped > 0) {
+            message += String.format(", %d audit record(s) dropped", auditDropped);
+        }
+        if (codesCrowded) {
+            message += String.format(", %.0f%% of alarm codes in use",
+                    ackManager.getRegistry().getCodeUtilisation() * 100);
+        }
 
-        return qs > 0 ?
-                new ProfileStatus(profileStatus.getState(), LocalizedString.createRaw(String.format("%d queued", qs))) :
-                profileStatus;
+        if (stormDetector != null && stormDetector.isStorm()) {
+            message += String.format(", alarm storm since %tT (%d/min, %d summarized)",
+                    new Date(stormChangedAt), stormDetector.getRate(), summarized.get());
+        } else if (stormCount > 0) {
+            message += String.format(", %d alarm storm(s), the last over at %tT (%d summarized)",
+                    stormCount, new Date(stormChangedAt), summarized.get());
+        }
+
+        if (sendLatency.getCount() > 0) {
+            message += String.format(", send p50/p95 %d/%d ms", sendLatency.getP50(), sendLatency.getP95());
+        }
+        if (ackRoundTrip.getCount() > 0) {
+            message += String.format(", acked in p50 %d s",
+                    TimeUnit.MILLISECONDS.toSeconds(ackRoundTrip.getP50()));
+        }
+
+        // Nothing can be sent until a breaker lets a trial request through.
+        State state = endpointsOpen == endpoints.size() ? State.Errored : profileStatus.getState();
+
+        return new ProfileStatus(state, LocalizedString.createRaw(message));
     }
 
     @Override
     public void onStartup() {
         try {
+            metrics.register();
             profileStatus = ProfileStatus.RUNNING;
         } catch (Exception e) {
             log.error("Error opening connection to Nucleus.", e);
@@ -122,198 +404,497 @@ public class NucleusSmsNotificationProfile implements AlarmNotificationProfile {
 
     @Override
     public void onShutdown() {
+        metrics.unregister();
+
+        if (settings.getHealthCheckInterval() > 0) {
+            context.getExecutionManager().unRegister(
+                    String.format("NucleusSmsNotificationProfile[%s]", profileName),
+                    "EndpointHealthCheck");
+        }
+
+        if (stormDetector != null) {
+            context.getExecutionManager().unRegister(
+                    String.format("NucleusSmsNotificationProfile[%s]", profileName),
+                    "StormCheck");
+        }
+
+        List<Runnable> undelivered = dispatcher.shutdown(10, TimeUnit.SECONDS);
+        for (Runnable r : undelivered) {
+            if (r instanceof DeliveryTask) {
+                ((DeliveryTask) r).abandon("Notification profile shut down before delivery.");
+            }
+        }
+
+        digest.shutdown();
+
+        if (stormNotices != null) {
+            stormNotices.shutdown();
+        }
+
+        if (fanOut != null) {
+            fanOut.shutdown();
+        }
+
+        sequencer.shutdown();
+        outbox.shutdown();
+
+        if (auditWriter != null) {
+            auditWriter.shutdown(10, TimeUnit.SECONDS);
+        }
+
         try {
             ackManager.onShutdown();
         } catch (Exception e) {
             log.error("Error closing connection to Nucleus.", e);
         }
+
+        client.close();
+        log.debug(String.format("HTTP client made %d request(s), opened %d HTTPS connection(s) and reused %d.",
+                client.getRequestCount(), client.getConnectionsOpened(), client.getConnectionsReused()));
+
+        log.debug(String.format("Message expressions were parsed %d time(s) and reused %d time(s).",
+                expressions.getParseCount(), expressions.getReuseCount()));
+        expressions.invalidateAll();
     }
 
     @Override
     public void sendNotification(final NotificationContext notificationContext) {
-        User user = notificationContext.getUser();
-        Collection<ContactInfo> smsContactInfos =
-                Collections2.filter(user.getContactInfo(), new IsSmsContactInfo());
-        List<String> numbers = new ArrayList<String>();
-        for (ContactInfo smsContactInfo : smsContactInfos) {
-            numbers.add(smsContactInfo.getValue());
+        if (stormDetector != null && stormDetector.record(System.currentTimeMillis())
+                && highestPriority(notificationContext.getAlarmEvents()).ordinal()
+                < settings.getStormMinPriority().ordinal()) {
+            summarize(notificationContext);
+            return;
         }
-        String numbersStr = org.apache.commons.lang3.StringUtils.join(numbers, ',');
 
-        String message = evaluateMessageExpression(notificationContext);
+        queueSize.incrementAndGet();
 
-        List<AlarmEvent> events = notificationContext.getAlarmEvents();
-        String ackCode = ackManager.registerAlarms(user, events);
+        try {
+            dispatcher.dispatch(new DeliveryTask(notificationContext));
+        } catch (RejectedExecutionException e) {
+            queueSize.decrementAndGet();
 
-        boolean allAcked = true;
-        for (AlarmEvent event : events) {
-            allAcked &= event.isAcked();
+            String errorMessage = String.format("Notification to '%s' rejected: %s.",
+                    notificationContext.getUser().get(User.Username), e.getMessage());
+            log.warn(errorMessage);
+            audit(false, "Send SMS", notificationContext);
+            notificationContext.notificationFailed(LocalizedString.createRaw(errorMessage));
         }
+    }
 
-        if (!allAcked) {
-            message = message + String.format("\nTo acknowledge, reply '%s'.", ackCode);
-        }
+    /**
+     * Hold a notification back during an alarm storm, to be counted in the user's next storm notice instead.
+     */
+    private void summarize(NotificationContext notificationContext) {
+        summarized.incrementAndGet();
+
+        User user = notificationContext.getUser();
+        String numbersStr = org.apache.commons.lang3.StringUtils.join(getSmsNumbers(user), ',');
+
+        complete(notificationContext, numbersStr,
+                stormNotices.add(String.valueOf(user.getPath()), notificationContext));
+    }
 
-        Iterable<String> splitMessage = Splitter.fixedLength(MAX_SMS_LEN).split(message);
+    /**
+     * Evaluate, register and send a notification. Runs on one of the {@link NucleusSmsDispatcher} workers.
+     */
+    private void deliver(final NotificationContext notificationContext) {
+        User user = notificationContext.getUser();
+        List<String> numbers = getSmsNumbers(user);
+        String numbersStr = org.apache.commons.lang3.StringUtils.join(numbers, ',');
 
         // Check if we're in 'test mode'...
         boolean testMode = notificationContext.getOrDefault(NucleusSmsProperties.TEST_MODE);
+
+        Long timeBetween = notificationContext.getOrDefault(NucleusSmsProperties.TIME_BETWEEN_NOTIFICATIONS);
+        if (timeBetween != null && timeBetween > 0 && !testMode) {
+            ListenableFuture<Void> held = digest.offer(
+                    String.valueOf(user.getPath()), notificationContext, timeBetween, TimeUnit.SECONDS);
+
+            if (held != null) {
+                complete(notificationContext, numbersStr, held);
+                return;
+            }
+        }
+
+        // Fanned-out SMS go to every number at once, so sequential delivery can't share them.
+        boolean sequential = numbers.size() > 1 && notificationContext.getOrDefault(
+                NucleusSmsProperties.DELIVERY_METHOD) == NucleusSmsProperties.DeliveryMethod.Sequential;
+
+        if (fanOut != null && !testMode && !sequential) {
+            fanOut(notificationContext, numbersStr);
+            return;
+        }
+
+        String message = evaluateMessageExpression(notificationContext);
+
+        final List<AlarmEvent> events = notificationContext.getAlarmEvents();
+        final AlarmPriority priority = highestPriority(events);
+        final String ackCode = ackManager.registerAlarms(user, events);
+
+        String ackInstruction = ackInstruction(ackCode, events);
+        if (ackInstruction != null) {
+            message = message + ackInstruction;
+        }
+
+        final NucleusSmsSegmenter.Segments segments =
+                segmenter.segment(message, ackInstruction, settings.isConcatenatedSms());
+
         if (testMode) {
             log.info("THIS PROFILE IS RUNNING IN TEST MODE. The following sms WOULD have been sent:\n" +
-                            "Recipient(s): " + numbersStr + "\n" +
-                            "Message: " + message);
+                            "Recipient(s): " + numbersStr + (sequential ? " (sequentially)" : "") + "\n" +
+                            "Message: " + message + "\n" +
+                            "Segments: " + segments.getParts().size() + " (" + segments.getEncoding() + ")");
 
             notificationContext.notificationDone();
             return;
         }
 
-        try {
-            log.debug("Sending notification to " + numbersStr + ".");
-            for (String msg : splitMessage) {
-                sendSms(numbers, ackCode, msg);
+        if (sequential) {
+            deliverSequentially(notificationContext, numbers, numbersStr, ackCode, segments, priority);
+            return;
+        }
+
+        // Each number gets its own SMS, so one that can't be reached doesn't hold up or fail the others.
+        log.debug("Sending notification to " + numbersStr + ".");
+        List<ListenableFuture<List<Void>>> sent = new ArrayList<ListenableFuture<List<Void>>>(numbers.size());
+        for (String number : numbers) {
+            sent.add(send(Collections.singletonList(number), ackCode, segments, priority));
+        }
+
+        int reached = 0;
+        Throwable cause = null;
+        for (int i = 0; i < sent.size(); i++) {
+            try {
+                sent.get(i).get();
+                reached++;
+            } catch (Exception e) {
+                cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                log.warn("Error sending notification to " + numbers.get(i) + ".", cause);
             }
-            audit(true, "Send SMS", notificationContext);
-        } catch (Exception e) {
-            String errorMessage = String.format("Error sending notification to " + numbersStr + ".");
-            log.error(errorMessage, e);
-            audit(false, "Send SMS", notificationContext);
-            notificationContext.notificationFailed(LocalizedString.createRaw(errorMessage));
+        }
+
+        if (reached == 0 && !numbers.isEmpty()) {
+            failed(notificationContext, numbersStr, cause);
             return;
         }
 
+        audit(true, "Send SMS", notificationContext);
         notificationContext.notificationDone();
     }
 
-    private void sendSms(Collection<String> numbers, String ackCode, String msg) throws Exception {
-        JSONObject jsonIn = new JSONObject();
-        jsonIn.put("message", msg);
-        jsonIn.put("numbers", numbers);
-        jsonIn.put("ackCode", ackCode);
+    /**
+     * Send to the user's numbers one at a time, {@link NucleusSmsProperties#SEQUENTIAL_DELAY} apart, until the alarms
+     * are acknowledged. The notification is done once any number has been sent to; the rest follow in the background.
+     */
+    private void deliverSequentially(final NotificationContext notificationContext,
+                                     List<String> numbers,
+                                     final String numbersStr,
+                                     final String ackCode,
+                                     final NucleusSmsSegmenter.Segments segments,
+                                     final AlarmPriority priority) {
+        final List<AlarmEvent> events = notificationContext.getAlarmEvents();
+        Long delay = notificationContext.getOrDefault(NucleusSmsProperties.SEQUENTIAL_DELAY);
+
+        log.debug("Sending notification to " + numbersStr + " in turn.");
+        ListenableFuture<Void> reached = sequencer.start(numbers, delay == null ? 0 : delay, TimeUnit.SECONDS,
+                new NucleusSmsSequencer.Steps() {
+                    @Override
+                    public boolean shouldContinue() {
+                        // Stop once the code has been replied to, or has expired, or the alarms were acknowledged
+                        // some other way.
+                        return ackManager.getRegistry().get(ackCode) != null && !allAcknowledged(events);
+                    }
+
+                    @Override
+                    public ListenableFuture<?> send(String number) {
+                        return NucleusSmsNotificationProfile.this.send(
+                                Collections.singletonList(number), ackCode, segments, priority);
+                    }
+                });
+
+        complete(notificationContext, numbersStr, reached);
+    }
 
-        HttpURLConnection conn = null;
-        InputStream in = null;
-        JSONObject jsonOut = null;
+    /**
+     * Hand a notification to the {@link NucleusSmsFanOut}, to be sent along with any others about the same alarms with
+     * the same message. Doesn't wait for it to be sent.
+     */
+    private void fanOut(final NotificationContext notificationContext, final String numbersStr) {
+        List<UUID> alarmEventIds = new ArrayList<UUID>();
+        for (AlarmEvent event : notificationContext.getAlarmEvents()) {
+            alarmEventIds.add(event.getId());
+        }
 
-        try {
-            URL url = new URL(settings.getHostURL());
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setConnectTimeout(5000);
-            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-            conn.setRequestMethod("POST");
-
-            OutputStream os = conn.getOutputStream();
-            os.write(jsonIn.toString().getBytes("UTF-8"));
-            os.close();
-
-            // read the response
-            in = new BufferedInputStream(conn.getInputStream());
-            String result = org.apache.commons.io.IOUtils.toString(in, "UTF-8");
-            jsonOut = new JSONObject(result);
-        }catch(Exception ex){
-            throw ex;
-        }
-        finally {
-            if(in != null) {
-                in.close();
+        // The same expression over the same alarms renders the same SMS.
+        List<Object> key = Arrays.<Object>asList(messageExpression(notificationContext), alarmEventIds);
+
+        complete(notificationContext, numbersStr, fanOut.add(key, notificationContext));
+    }
+
+    /**
+     * Finish a notification once {@code sent} completes.
+     */
+    private void complete(final NotificationContext notificationContext,
+                          final String numbersStr,
+                          ListenableFuture<Void> sent) {
+        Futures.addCallback(sent, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                audit(true, "Send SMS", notificationContext);
+                notificationContext.notificationDone();
             }
 
-            if(conn != null) {
-                conn.disconnect();
+            @Override
+            public void onFailure(Throwable t) {
+                failed(notificationContext, numbersStr, t);
             }
+        });
+    }
+
+    /**
+     * Send notifications held back during a user's quiet period as one {@link NucleusSmsProperties#THROTTLED_MESSAGE}
+     * SMS, under one alarm code covering all of their alarms. It goes to every one of the user's numbers at once.
+     */
+    private ListenableFuture<List<Void>> sendDigest(List<NotificationContext> notifications) {
+        NotificationContext first = notifications.get(0);
+        User user = first.getUser();
+        List<AlarmEvent> events = alarmEventsOf(notifications);
+
+        String message = evaluateMessageExpression(
+                first.getOrDefault(NucleusSmsProperties.THROTTLED_MESSAGE), events);
+        String ackCode = ackManager.registerAlarms(user, events);
+
+        String ackInstruction = ackInstruction(ackCode, events);
+        if (ackInstruction != null) {
+            message = message + ackInstruction;
         }
 
-        if (jsonOut == null) {
-            throw new Exception("No return object");
-        } else {
-            boolean success = false;
-            if(jsonOut.has("success")) {
-                success = jsonOut.getBoolean("success");
-            }
+        NucleusSmsSegmenter.Segments segments =
+                segmenter.segment(message, ackInstruction, settings.isConcatenatedSms());
 
-            if(!success){
-                throw new Exception("Unsuccessful");
-            }
+        List<String> numbers = getSmsNumbers(user);
+        log.debug(String.format("Sending %d held notification(s) about %d alarm event(s) to %s as one.",
+                notifications.size(), events.size(), org.apache.commons.lang3.StringUtils.join(numbers, ',')));
+
+        return send(numbers, ackCode, segments, highestPriority(events));
+    }
+
+    /**
+     * Send a user one SMS counting the alarms held back during a storm, by priority and area, with one alarm code that
+     * acknowledges them all.
+     */
+    private ListenableFuture<?> sendStormNotice(List<NotificationContext> notifications) {
+        NotificationContext first = notifications.get(0);
+        User user = first.getUser();
+        List<AlarmEvent> events = alarmEventsOf(notifications);
+        List<String> numbers = getSmsNumbers(user);
+
+        String message = NucleusSmsStormSummary.describe(events);
+        String ackCode = ackManager.registerAlarms(user, events);
+
+        String ackInstruction = null;
+        if (!allAcknowledged(events)) {
+            ackInstruction = String.format("\nTo acknowledge them all, reply '%s'.", ackCode);
+            message = message + ackInstruction;
         }
+
+        NucleusSmsSegmenter.Segments segments =
+                segmenter.segment(message, ackInstruction, settings.isConcatenatedSms());
+
+        if (first.getOrDefault(NucleusSmsProperties.TEST_MODE)) {
+            log.info("THIS PROFILE IS RUNNING IN TEST MODE. The following storm notice WOULD have been sent:\n" +
+                    "Recipient(s): " + org.apache.commons.lang3.StringUtils.join(numbers, ',') + "\n" +
+                    "Message: " + message);
+            return Futures.immediateFuture(null);
+        }
+
+        log.debug(String.format("Sending a storm notice about %d alarm event(s) to %s.",
+                events.size(), org.apache.commons.lang3.StringUtils.join(numbers, ',')));
+
+        return send(numbers, ackCode, segments, highestPriority(events));
     }
 
-    private void audit(boolean success, String eventDesc, NotificationContext notificationContext) {
-        if (!StringUtils.isBlank(auditProfileName)) {
-            try {
-                AuditProfile p = context.getAuditManager().getProfile(auditProfileName);
-                if (p == null) {
-                    return;
-                }
-                List<AlarmEvent> alarmEvents = notificationContext.getAlarmEvents();
-                for (AlarmEvent event : alarmEvents) {
-                    AuditRecord r = new AuditRecordBuilder()
-                            .setAction(eventDesc)
-                            .setActionTarget(
-                                    event.getSource().extend(WellKnownPathTypes.Event, event.getId().toString())
-                                            .toString())
-                            .setActionValue(success ? "SUCCESS" : "FAILURE")
-                            .setActor(notificationContext.getUser().getPath().toString())
-                            .setActorHost(profileName)
-                            .setOriginatingContext(ApplicationScope.GATEWAY)
-                            .setOriginatingSystem("Alarming")
-                            .setStatusCode(success ? DataQuality.GOOD_DATA.getIntValue() : 0)
-                            .setTimestamp(new Date())
-                            .build();
-                    p.audit(r);
-                }
-            } catch (Exception e) {
-                log.error("Error auditing email event.", e);
+    /**
+     * @return Every alarm event in {@code notifications}, each once.
+     */
+    private static List<AlarmEvent> alarmEventsOf(List<NotificationContext> notifications) {
+        Map<UUID, AlarmEvent> merged = new LinkedHashMap<UUID, AlarmEvent>();
+        for (NotificationContext notification : notifications) {
+            for (AlarmEvent event : notification.getAlarmEvents()) {
+                merged.put(event.getId(), event);
             }
         }
+
+        return new ArrayList<AlarmEvent>(merged.values());
     }
 
-    private String evaluateMessageExpression(NotificationContext notificationContext) {
-        Parser parser = new StringParser();
+    /**
+     * Send notifications about the same alarms as one SMS, to every number of every user, under one alarm code they
+     * share. The message is evaluated once, for the first of them.
+     */
+    private ListenableFuture<List<Void>> sendFannedOut(List<NotificationContext> notifications) {
+        NotificationContext first = notifications.get(0);
+        List<AlarmEvent> events = first.getAlarmEvents();
+
+        List<User> users = new ArrayList<User>(notifications.size());
+        Set<String> numbers = new LinkedHashSet<String>();
+        for (NotificationContext notification : notifications) {
+            users.add(notification.getUser());
+            numbers.addAll(getSmsNumbers(notification.getUser()));
+        }
 
-        FallbackPropertyResolver resolver =
-                new FallbackPropertyResolver(context.getAlarmManager().getPropertyResolver());
+        String message = evaluateMessageExpression(first);
+        String ackCode = ackManager.registerAlarms(users, events);
 
-        FormattedExpressionParseContext parseContext =
-                new FormattedExpressionParseContext(
-                        new AlarmEventCollectionExpressionParseContext(resolver, notificationContext.getAlarmEvents()));
+        String ackInstruction = ackInstruction(ackCode, events);
+        if (ackInstruction != null) {
+            message = message + ackInstruction;
+        }
 
-        String expressionString;
-        String customMessage = notificationContext.getAlarmEvents().get(0).get(NucleusSmsProperties.CUSTOM_MESSAGE);
-        boolean isThrottled = notificationContext.getAlarmEvents().size() > 1;
+        NucleusSmsSegmenter.Segments segments =
+                segmenter.segment(message, ackInstruction, settings.isConcatenatedSms());
 
-        if (isThrottled || StringUtils.isBlank(customMessage)) {
-            expressionString = isThrottled ?
-                    notificationContext.getOrDefault(NucleusSmsProperties.THROTTLED_MESSAGE) :
-                    notificationContext.getOrDefault(NucleusSmsProperties.MESSAGE);
+        metrics.recordFanOut(users.size());
+        log.debug(String.format("Sending one notification to %d user(s) at %s.",
+                users.size(), org.apache.commons.lang3.StringUtils.join(numbers, ',')));
+
+        return send(new ArrayList<String>(numbers), ackCode, segments, highestPriority(events));
+    }
+
+    /**
+     * Queue an SMS, or each of its parts, in the outbox.
+     *
+     * @return A future that completes once every part has been accepted by Nucleus.
+     */
+    private ListenableFuture<List<Void>> send(List<String> numbers,
+                                              String ackCode,
+                                              NucleusSmsSegmenter.Segments segments,
+                                              AlarmPriority priority) {
+        List<ListenableFuture<Void>> sent = new ArrayList<ListenableFuture<Void>>();
+
+        if (segments.isConcatenated()) {
+            sent.add(outbox.send(numbers, ackCode, segments, priority));
         } else {
-            expressionString = customMessage;
+            for (String msg : segments.getParts()) {
+                sent.add(outbox.send(numbers, ackCode, msg, priority));
+            }
+        }
+
+        return Futures.allAsList(sent);
+    }
+
+    private void failed(NotificationContext notificationContext, String numbersStr, Throwable cause) {
+        String errorMessage = "Error sending notification to " + numbersStr + ".";
+        log.error(errorMessage, cause);
+        audit(false, "Send SMS", notificationContext);
+        notificationContext.notificationFailed(LocalizedString.createRaw(errorMessage));
+    }
+
+    /**
+     * @return The line telling recipients how to acknowledge {@code events}, or null if they're all acknowledged
+     * already.
+     */
+    private static String ackInstruction(String ackCode, List<AlarmEvent> events) {
+        if (allAcknowledged(events)) {
+            return null;
+        }
+
+        return String.format("\nTo acknowledge, reply '%s'.", ackCode);
+    }
+
+    private static boolean allAcknowledged(List<AlarmEvent> events) {
+        for (AlarmEvent event : events) {
+            if (!event.isAcked()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The values of the user's SMS contact info.
+     */
+    private static List<String> getSmsNumbers(User user) {
+        List<String> numbers = new ArrayList<String>();
+        for (ContactInfo smsContactInfo : Collections2.filter(user.getContactInfo(), new IsSmsContactInfo())) {
+            numbers.add(smsContactInfo.getValue());
+        }
+
+        return numbers;
+    }
+
+    /**
+     * Queue an audit record for each of the notification's alarm events. They're written by the
+     * {@link NucleusSmsAuditWriter}, so this doesn't wait on the audit profile.
+     */
+    private void audit(boolean success, String eventDesc, NotificationContext notificationContext) {
+        if (auditWriter != null) {
+            auditWriter.audit(
+                    success,
+                    eventDesc,
+                    String.valueOf(notificationContext.getUser().getPath()),
+                    notificationContext.getAlarmEvents());
         }
+    }
 
+    private String evaluateMessageExpression(NotificationContext notificationContext) {
+        return evaluateMessageExpression(messageExpression(notificationContext), notificationContext.getAlarmEvents());
+    }
+
+    private String evaluateMessageExpression(String expressionString, List<AlarmEvent> events) {
         String evaluated = expressionString;
-        AlarmEventCollectionExpressionParseContext ctx = new AlarmEventCollectionExpressionParseContext(
-                new FallbackPropertyResolver(context.getAlarmManager().getPropertyResolver()),
-                notificationContext.getAlarmEvents());
+        long start = System.nanoTime();
         try {
-            QualifiedValue value = parser.parse(ctx.expandCollectionReferences(expressionString), parseContext)
-                    .execute();
+            QualifiedValue value = expressions.evaluate(
+                    expressionString,
+                    new FallbackPropertyResolver(context.getAlarmManager().getPropertyResolver()),
+                    events);
             if (value.getQuality().isGood()) {
                 evaluated = TypeUtilities.toString(value.getValue());
             }
         } catch (Exception e) {
             log.error("Error parsing expression '" + expressionString + "'.", e);
         }
+        metrics.recordExpressionRender(System.nanoTime() - start);
 
         log.trace("Message evaluated to '" + evaluated + "'.");
 
         return evaluated;
     }
 
+    /**
+     * @return The expression the notification's message is evaluated from: the throttled message for several events,
+     * otherwise the alarm's custom message if it has one, or the profile's message.
+     */
+    private String messageExpression(NotificationContext notificationContext) {
+        String expressionString;
+        String customMessage = notificationContext.getAlarmEvents().get(0).get(NucleusSmsProperties.CUSTOM_MESSAGE);
+        boolean isThrottled = notificationContext.getAlarmEvents().size() > 1;
+
+        if (isThrottled || StringUtils.isBlank(customMessage)) {
+            expressionString = isThrottled ?
+                    notificationContext.getOrDefault(NucleusSmsProperties.THROTTLED_MESSAGE) :
+                    notificationContext.getOrDefault(NucleusSmsProperties.MESSAGE);
+        } else {
+            expressionString = customMessage;
+        }
+
+        return expressionString;
+    }
+
     @Override
     public Collection<NotificationProfileProperty<?>> getProperties() {
         return Lists.<NotificationProfileProperty<?>> newArrayList(
                 NucleusSmsProperties.MESSAGE,
                 NucleusSmsProperties.THROTTLED_MESSAGE,
+                NucleusSmsProperties.TIME_BETWEEN_NOTIFICATIONS,
+                NucleusSmsProperties.DELIVERY_METHOD,
+                NucleusSmsProperties.SEQUENTIAL_DELAY,
                 NucleusSmsProperties.TEST_MODE);
     }
 
@@ -322,6 +903,59 @@ public class NucleusSmsNotificationProfile implements AlarmNotificationProfile {
         return Lists.newArrayList(ContactType.SMS);
     }
 
+    /**
+     * @return The most urgent priority among {@code events}.
+     */
+    private static AlarmPriority highestPriority(List<AlarmEvent> events) {
+        AlarmPriority highest = AlarmPriority.Diagnostic;
+
+        for (AlarmEvent event : events) {
+            AlarmPriority priority = event.getPriority();
+            if (priority != null && priority.ordinal() > highest.ordinal()) {
+                highest = priority;
+            }
+        }
+
+        return highest;
+    }
+
+    /**
+     * A queued notification. Keeps {@link #queueSize} in step with what's actually waiting for delivery.
+     */
+    private class DeliveryTask implements Runnable, NucleusSmsPriorityQueue.Prioritized {
+
+        private final NotificationContext notificationContext;
+        private final AlarmPriority priority;
+
+        private DeliveryTask(NotificationContext notificationContext) {
+            this.notificationContext = notificationContext;
+            this.priority = highestPriority(notificationContext.getAlarmEvents());
+        }
+
+        @Override
+        public AlarmPriority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            try {
+                deliver(notificationContext);
+            } catch (Exception e) {
+                log.error("Unexpected error delivering notification.", e);
+                notificationContext.notificationFailed(LocalizedString.createRaw("Unexpected error: " + e.getMessage()));
+            } finally {
+                queueSize.decrementAndGet();
+            }
+        }
+
+        private void abandon(String reason) {
+            queueSize.decrementAndGet();
+            notificationContext.notificationFailed(LocalizedString.createRaw(reason));
+        }
+
+    }
+
     /**
      * A {@link Predicate} that returns true if a {@link ContactInfo}'s {@link ContactType} is SMS.
      */
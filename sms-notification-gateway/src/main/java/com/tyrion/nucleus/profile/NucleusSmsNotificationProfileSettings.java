@@ -1,6 +1,7 @@
 package com.tyrion.nucleus.profile;
 
 import com.inductiveautomation.ignition.alarming.notification.AlarmNotificationProfileRecord;
+import com.inductiveautomation.ignition.common.alarming.config.AlarmPriority;
 import com.inductiveautomation.ignition.gateway.audit.AuditProfileRecord;
 import com.inductiveautomation.ignition.gateway.localdb.persistence.*;
 import simpleorm.dataset.SFieldFlags;
@@ -28,15 +29,119 @@ public class NucleusSmsNotificationProfileSettings extends PersistentRecord {
             META, AuditProfileRecord.META, "AuditProfile", AuditProfileId);
 
     public static final StringField HostURL = new StringField(META, "HostURL", SFieldFlags.SMANDATORY);
+    public static final StringField Endpoints = new StringField(META, "Endpoints");
+
+    public static final IntField MaxConnections = new IntField(META, "MaxConnections", SFieldFlags.SMANDATORY);
+    public static final IntField ConnectTimeout = new IntField(META, "ConnectTimeout", SFieldFlags.SMANDATORY);
+    public static final IntField ReadTimeout = new IntField(META, "ReadTimeout", SFieldFlags.SMANDATORY);
+    public static final EnumField<NucleusSmsEndpoints.Selection> EndpointSelection =
+            new EnumField<NucleusSmsEndpoints.Selection>(
+                    META, "EndpointSelection", NucleusSmsEndpoints.Selection.class, SFieldFlags.SMANDATORY);
+    public static final IntField HealthCheckInterval =
+            new IntField(META, "HealthCheckInterval", SFieldFlags.SMANDATORY);
+    public static final IntField CircuitBreakerThreshold =
+            new IntField(META, "CircuitBreakerThreshold", SFieldFlags.SMANDATORY);
+    public static final IntField CircuitBreakerOpenTime =
+            new IntField(META, "CircuitBreakerOpenTime", SFieldFlags.SMANDATORY);
+
+    public static final EnumField<NucleusSmsAckManager.AckMode> AckMode =
+            new EnumField<NucleusSmsAckManager.AckMode>(
+                    META, "AckMode", NucleusSmsAckManager.AckMode.class, SFieldFlags.SMANDATORY);
+    public static final IntField PollInterval = new IntField(META, "PollInterval", SFieldFlags.SMANDATORY);
+    public static final IntField IdlePollInterval = new IntField(META, "IdlePollInterval", SFieldFlags.SMANDATORY);
+    public static final IntField ErrorPollInterval = new IntField(META, "ErrorPollInterval", SFieldFlags.SMANDATORY);
+    public static final IntField AckCodeTTL = new IntField(META, "AckCodeTTL", SFieldFlags.SMANDATORY);
+    public static final IntField MaxOutstandingCodes =
+            new IntField(META, "MaxOutstandingCodes", SFieldFlags.SMANDATORY);
+    public static final IntField AckCodeLength = new IntField(META, "AckCodeLength", SFieldFlags.SMANDATORY);
+    public static final StringField AckCodeAlphabet = new StringField(META, "AckCodeAlphabet", SFieldFlags.SMANDATORY);
+    public static final StringField PushToken = new StringField(META, "PushToken");
+    public static final IntField FallbackPollInterval =
+            new IntField(META, "FallbackPollInterval", SFieldFlags.SMANDATORY);
+    public static final BooleanField PersistAckCodes = new BooleanField(META, "PersistAckCodes");
+    public static final StringField CountryCode = new StringField(META, "CountryCode", SFieldFlags.SMANDATORY);
+    public static final StringField TrunkPrefix = new StringField(META, "TrunkPrefix");
+
+    public static final IntField DispatchThreads = new IntField(META, "DispatchThreads", SFieldFlags.SMANDATORY);
+    public static final IntField QueueCapacity = new IntField(META, "QueueCapacity", SFieldFlags.SMANDATORY);
+    public static final EnumField<NucleusSmsDispatcher.OverflowPolicy> OverflowPolicy =
+            new EnumField<NucleusSmsDispatcher.OverflowPolicy>(
+                    META, "OverflowPolicy", NucleusSmsDispatcher.OverflowPolicy.class, SFieldFlags.SMANDATORY);
+    public static final IntField OverflowTimeout = new IntField(META, "OverflowTimeout", SFieldFlags.SMANDATORY);
+    public static final IntField BatchWindow = new IntField(META, "BatchWindow", SFieldFlags.SMANDATORY);
+    public static final IntField MaxBatchSize = new IntField(META, "MaxBatchSize", SFieldFlags.SMANDATORY);
+    public static final IntField FanOutWindow = new IntField(META, "FanOutWindow", SFieldFlags.SMANDATORY);
+    public static final BooleanField ConcatenatedSms = new BooleanField(META, "ConcatenatedSms");
+    public static final IntField SendRate = new IntField(META, "SendRate", SFieldFlags.SMANDATORY);
+    public static final IntField SendBurst = new IntField(META, "SendBurst", SFieldFlags.SMANDATORY);
+    public static final IntField SendRetries = new IntField(META, "SendRetries", SFieldFlags.SMANDATORY);
+    public static final IntField RetryDelay = new IntField(META, "RetryDelay", SFieldFlags.SMANDATORY);
+
+    public static final IntField StormThreshold = new IntField(META, "StormThreshold", SFieldFlags.SMANDATORY);
+    public static final EnumField<AlarmPriority> StormMinPriority =
+            new EnumField<AlarmPriority>(META, "StormMinPriority", AlarmPriority.class, SFieldFlags.SMANDATORY);
+    public static final IntField StormNoticeInterval =
+            new IntField(META, "StormNoticeInterval", SFieldFlags.SMANDATORY);
 
     static final Category Settings = new Category("NucleusSmsNotificationProfileSettings.Category.Settings", 1)
-            .include(HostURL);
+            .include(HostURL, Endpoints);
     static final Category Auditing = new Category("NucleusSmsNotificationProfileSettings.Category.Auditing", 2)
             .include(AuditProfile);
+    static final Category Connection = new Category("NucleusSmsNotificationProfileSettings.Category.Connection", 3)
+            .include(MaxConnections, ConnectTimeout, ReadTimeout, EndpointSelection, HealthCheckInterval,
+                    CircuitBreakerThreshold, CircuitBreakerOpenTime);
+    static final Category Acknowledgement =
+            new Category("NucleusSmsNotificationProfileSettings.Category.Acknowledgement", 4)
+                    .include(AckMode, PollInterval, IdlePollInterval, ErrorPollInterval, PushToken,
+                            FallbackPollInterval, AckCodeTTL, MaxOutstandingCodes, AckCodeLength, AckCodeAlphabet,
+                            PersistAckCodes, CountryCode, TrunkPrefix);
+    static final Category Dispatch = new Category("NucleusSmsNotificationProfileSettings.Category.Dispatch", 5)
+            .include(DispatchThreads, QueueCapacity, OverflowPolicy, OverflowTimeout, BatchWindow, MaxBatchSize,
+                    FanOutWindow, ConcatenatedSms, SendRate, SendBurst, SendRetries, RetryDelay);
+    static final Category Storm = new Category("NucleusSmsNotificationProfileSettings.Category.Storm", 6)
+            .include(StormThreshold, StormMinPriority, StormNoticeInterval);
     static {
         Profile.getFormMeta().setVisible(false);
 
         HostURL.setDefault(NucleusSmsNotificationProfile.DEFAULT_URL);
+
+        MaxConnections.setDefault(4);
+        ConnectTimeout.setDefault(5000);
+        ReadTimeout.setDefault(10000);
+        EndpointSelection.setDefault(NucleusSmsEndpoints.Selection.LeastLoaded);
+        HealthCheckInterval.setDefault(0);
+        CircuitBreakerThreshold.setDefault(5);
+        CircuitBreakerOpenTime.setDefault(30);
+
+        AckMode.setDefault(NucleusSmsAckManager.AckMode.Poll);
+        PollInterval.setDefault(1);
+        IdlePollInterval.setDefault(30);
+        ErrorPollInterval.setDefault(60);
+        FallbackPollInterval.setDefault(30);
+        AckCodeTTL.setDefault(60);
+        MaxOutstandingCodes.setDefault(10000);
+        AckCodeLength.setDefault(6);
+        AckCodeAlphabet.setDefault(NucleusSmsCodeAllocator.DIGITS);
+        PersistAckCodes.setDefault(true);
+        CountryCode.setDefault("1");
+        TrunkPrefix.setDefault("");
+
+        DispatchThreads.setDefault(4);
+        QueueCapacity.setDefault(1000);
+        OverflowPolicy.setDefault(NucleusSmsDispatcher.OverflowPolicy.Block);
+        OverflowTimeout.setDefault(30);
+        BatchWindow.setDefault(50);
+        MaxBatchSize.setDefault(1);
+        FanOutWindow.setDefault(0);
+        ConcatenatedSms.setDefault(false);
+        SendRate.setDefault(0);
+        SendBurst.setDefault(5);
+        SendRetries.setDefault(2);
+        RetryDelay.setDefault(1000);
+
+        StormThreshold.setDefault(0);
+        StormMinPriority.setDefault(AlarmPriority.High);
+        StormNoticeInterval.setDefault(60);
     }
 
     @Override
@@ -52,6 +157,234 @@ public class NucleusSmsNotificationProfileSettings extends PersistentRecord {
         return getString(HostURL);
     }
 
+    /**
+     * @return Endpoints to use alongside the host URL, separated by commas or new lines, each optionally followed by a
+     * weight.
+     */
+    public String getEndpoints() {
+        return getString(Endpoints);
+    }
+
+    public int getMaxConnections() {
+        return getInt(MaxConnections);
+    }
+
+    /**
+     * @return The connect timeout for requests to Nucleus, in milliseconds.
+     */
+    public int getConnectTimeout() {
+        return getInt(ConnectTimeout);
+    }
+
+    /**
+     * @return The read timeout for requests to Nucleus, in milliseconds.
+     */
+    public int getReadTimeout() {
+        return getInt(ReadTimeout);
+    }
+
+    public NucleusSmsEndpoints.Selection getEndpointSelection() {
+        return getEnum(EndpointSelection);
+    }
+
+    /**
+     * @return How often, in seconds, every endpoint is checked for health and latency. 0, the default, turns the check
+     * off, since the flow behind each endpoint has to answer a status command without sending anything.
+     */
+    public int getHealthCheckInterval() {
+        return getInt(HealthCheckInterval);
+    }
+
+    /**
+     * @return How many failed requests in a row open an endpoint's circuit breaker. 0 never opens it.
+     */
+    public int getCircuitBreakerThreshold() {
+        return getInt(CircuitBreakerThreshold);
+    }
+
+    /**
+     * @return How long, in seconds, an open circuit breaker refuses requests before letting a trial through.
+     */
+    public int getCircuitBreakerOpenTime() {
+        return getInt(CircuitBreakerOpenTime);
+    }
+
+    public NucleusSmsAckManager.AckMode getAckMode() {
+        return getEnum(AckMode);
+    }
+
+    /**
+     * @return How often, in seconds, to poll Nucleus for replies while any are expected.
+     */
+    public int getPollInterval() {
+        return getInt(PollInterval);
+    }
+
+    /**
+     * @return The longest gap, in seconds, between polls while no replies are expected. 0 stops polling until an SMS
+     * is sent.
+     */
+    public int getIdlePollInterval() {
+        return getInt(IdlePollInterval);
+    }
+
+    /**
+     * @return The longest gap, in seconds, between polls while Nucleus is failing.
+     */
+    public int getErrorPollInterval() {
+        return getInt(ErrorPollInterval);
+    }
+
+    public String getPushToken() {
+        return getString(PushToken);
+    }
+
+    /**
+     * @return How often, in seconds, to poll Nucleus for replies when running in
+     * {@link NucleusSmsAckManager.AckMode#Push} mode. 0 turns polling off completely.
+     */
+    public int getFallbackPollInterval() {
+        return getInt(FallbackPollInterval);
+    }
+
+    /**
+     * @return How long, in minutes, an alarm code can be replied to.
+     */
+    public int getAckCodeTTL() {
+        return getInt(AckCodeTTL);
+    }
+
+    public int getMaxOutstandingCodes() {
+        return getInt(MaxOutstandingCodes);
+    }
+
+    /**
+     * @return How many characters each alarm code has.
+     */
+    public int getAckCodeLength() {
+        return getInt(AckCodeLength);
+    }
+
+    /**
+     * @return The characters alarm codes are made of.
+     */
+    public String getAckCodeAlphabet() {
+        return getString(AckCodeAlphabet);
+    }
+
+    public boolean isPersistAckCodes() {
+        return getBoolean(PersistAckCodes);
+    }
+
+    /**
+     * @return The country code of users' SMS numbers that are written without one.
+     */
+    public String getCountryCode() {
+        return getString(CountryCode);
+    }
+
+    /**
+     * @return The prefix national numbers are written with, which is dropped in favour of the country code. May be
+     * blank.
+     */
+    public String getTrunkPrefix() {
+        return getString(TrunkPrefix);
+    }
+
+    public int getDispatchThreads() {
+        return getInt(DispatchThreads);
+    }
+
+    public int getQueueCapacity() {
+        return getInt(QueueCapacity);
+    }
+
+    public NucleusSmsDispatcher.OverflowPolicy getOverflowPolicy() {
+        return getEnum(OverflowPolicy);
+    }
+
+    /**
+     * @return How long, in seconds, the {@link NucleusSmsDispatcher.OverflowPolicy#Block} policy waits for queue space.
+     */
+    public int getOverflowTimeout() {
+        return getInt(OverflowTimeout);
+    }
+
+    /**
+     * @return How long, in milliseconds, the outbox waits for more SMS to join a batch.
+     */
+    public int getBatchWindow() {
+        return getInt(BatchWindow);
+    }
+
+    public int getMaxBatchSize() {
+        return getInt(MaxBatchSize);
+    }
+
+    /**
+     * @return How long, in milliseconds, to gather notifications about the same alarms into one SMS to all of their
+     * users. 0 sends each user their own SMS.
+     */
+    public int getFanOutWindow() {
+        return getInt(FanOutWindow);
+    }
+
+    /**
+     * @return true if long messages should be handed to Nucleus as the parts of one concatenated SMS, rather than
+     * posted as separate SMS.
+     */
+    public boolean isConcatenatedSms() {
+        return getBoolean(ConcatenatedSms);
+    }
+
+    /**
+     * @return The most SMS per minute to hand to Nucleus, or 0 for no limit.
+     */
+    public int getSendRate() {
+        return getInt(SendRate);
+    }
+
+    public int getSendBurst() {
+        return getInt(SendBurst);
+    }
+
+    /**
+     * @return How many times an SMS that failed for a transient reason is retried.
+     */
+    public int getSendRetries() {
+        return getInt(SendRetries);
+    }
+
+    /**
+     * @return The delay, in milliseconds, before the first retry of an SMS. Later retries wait up to twice as long
+     * each time.
+     */
+    public int getRetryDelay() {
+        return getInt(RetryDelay);
+    }
+
+    /**
+     * @return How many notifications in a minute make an alarm storm. 0 turns storm detection off.
+     */
+    public int getStormThreshold() {
+        return getInt(StormThreshold);
+    }
+
+    /**
+     * @return During a storm, notifications about alarms at or above this priority are still sent; the rest are
+     * summarized.
+     */
+    public AlarmPriority getStormMinPriority() {
+        return getEnum(StormMinPriority);
+    }
+
+    /**
+     * @return How often, in seconds, each user is sent a notice summarizing the alarms held back during a storm.
+     */
+    public int getStormNoticeInterval() {
+        return getInt(StormNoticeInterval);
+    }
+
     public String getAuditProfileName() {
         AuditProfileRecord rec = findReference(AuditProfile);
         return rec == null ? null : rec.getName();
@@ -14,10 +14,16 @@ public class NucleusSmsNotificationProfileType extends AlarmNotificationProfileT
 
     public static final String TYPE_ID = "NucleusSms";
 
-    public NucleusSmsNotificationProfileType() {
+    private final NucleusSmsAckRouter ackRouter;
+
+    /**
+     * @param ackRouter Shared by every profile of this type, so replies reach whichever profile sent their code.
+     */
+    public NucleusSmsNotificationProfileType(NucleusSmsAckRouter ackRouter) {
         super(TYPE_ID,
                 "NucleusSmsNotification." + "SmsNotificationProfileType.Name",
                 "NucleusSmsNotification." + "SmsNotificationProfileType.Description");
+        this.ackRouter = ackRouter;
     }
 
     @Override
@@ -36,7 +42,7 @@ public class NucleusSmsNotificationProfileType extends AlarmNotificationProfileT
                     String.format("Couldn't find settings record for profile '%s'.", profileRecord.getName()));
         }
 
-        return new NucleusSmsNotificationProfile(context, profileRecord, settings);
+        return new NucleusSmsNotificationProfile(context, profileRecord, settings, ackRouter);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,513 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.stream.JsonWriter;
+import com.inductiveautomation.ignition.common.alarming.config.AlarmPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects outbound SMS and posts them to Nucleus. Messages that arrive within a short coalescing window of each other
+ * are packed into a single request, so a flood of notifications costs a handful of round trips rather than one per
+ * SMS.
+ * <p>
+ * A batch of one is posted as the plain {@code {message, numbers, ackCode}} object Nucleus has always accepted. Larger
+ * batches are posted as a JSON array of those objects, and Nucleus is expected to answer with either an array of
+ * {@code {success}} results in the same order, or an object holding that array under {@code results}.
+ * <p>
+ * Waiting SMS are sent highest {@link AlarmPriority} first. Each batch goes to the endpoint
+ * {@link NucleusSmsEndpoints} chooses, no faster than that endpoint's {@link NucleusSmsTokenBucket} allows, and is
+ * moved to another endpoint if the first can't be reached.
+ * <p>
+ * Batches are sent by a pool of flusher threads, as many as there are endpoints, shared by all of them: a flusher
+ * isn't tied to an endpoint, but chooses one for each batch it sends. A slow endpoint only holds up the flushers that
+ * chose it, whether waiting on its response or on its rate limit, while the others keep sending. Selection by least
+ * load counts requests in flight, so it steers them away from an endpoint that's slow to answer.
+ * <p>
+ * SMS that fail for a transient reason, in a way that can't have sent them, are put back in the outbox after a backoff
+ * chosen by the {@link NucleusSmsRetryPolicy}, keeping their place in priority order. While every endpoint's circuit
+ * breaker is open SMS fail at once rather than wait on endpoints that are known to be down.
+ */
+public class NucleusSmsOutbox {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final BlockingQueue<OutboundSms> pending = new PriorityBlockingQueue<OutboundSms>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final ExecutorService flushers;
+
+    /**
+     * SMS waiting out a backoff before going back in {@link #pending}.
+     */
+    private final Set<OutboundSms> retrying =
+            Collections.newSetFromMap(new ConcurrentHashMap<OutboundSms, Boolean>());
+    private final ScheduledExecutorService retryTimer;
+    private final AtomicLong retries = new AtomicLong(0);
+
+    private final NucleusHttpClient client;
+    private final NucleusSmsEndpoints endpoints;
+    private final NucleusSmsRetryPolicy retryPolicy;
+    private final NucleusSmsMetrics metrics;
+    private final long batchWindowMillis;
+    private final int maxBatchSize;
+
+    private volatile boolean running = true;
+
+    public NucleusSmsOutbox(String profileName,
+                            NucleusHttpClient client,
+                            NucleusSmsEndpoints endpoints,
+                            NucleusSmsRetryPolicy retryPolicy,
+                            NucleusSmsMetrics metrics,
+                            long batchWindowMillis,
+                            int maxBatchSize) {
+        this.client = client;
+        this.endpoints = endpoints;
+        this.retryPolicy = retryPolicy;
+        this.metrics = metrics;
+        this.batchWindowMillis = Math.max(0, batchWindowMillis);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+
+        retryTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsOutbox[%s]-retry", profileName))
+                        .setDaemon(true)
+                        .build());
+
+        flushers = Executors.newFixedThreadPool(
+                endpoints.size(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsOutbox[%s]-%%d", profileName))
+                        .setDaemon(true)
+                        .build());
+
+        for (int i = 0; i < endpoints.size(); i++) {
+            flushers.execute(new Flusher());
+        }
+    }
+
+    /**
+     * Queue an SMS for sending.
+     *
+     * @param numbers  The phone numbers to send to.
+     * @param ackCode  The alarm code the recipients can reply with.
+     * @param message  The text of the SMS.
+     * @param priority The highest priority of the alarms the SMS is about.
+     * @return A future that completes once Nucleus has accepted the SMS, or fails if it couldn't be sent even after
+     * any retries.
+     */
+    public ListenableFuture<Void> send(Collection<String> numbers,
+                                       String ackCode,
+                                       String message,
+                                       AlarmPriority priority) {
+        return enqueue(new OutboundSms(numbers, ackCode, message, null, priority, sequence.getAndIncrement()));
+    }
+
+    /**
+     * Queue a message that has been split into parts of a concatenated SMS. Nucleus is sent the whole message along
+     * with each part and its user data header, so the handset can reassemble them.
+     *
+     * @return A future that completes once Nucleus has accepted the SMS, or fails if it couldn't be sent.
+     */
+    public ListenableFuture<Void> send(Collection<String> numbers,
+                                       String ackCode,
+                                       NucleusSmsSegmenter.Segments segments,
+                                       AlarmPriority priority) {
+        StringBuilder message = new StringBuilder();
+        for (String part : segments.getParts()) {
+            message.append(part);
+        }
+
+        return enqueue(new OutboundSms(
+                numbers, ackCode, message.toString(), segments, priority, sequence.getAndIncrement()));
+    }
+
+    private ListenableFuture<Void> enqueue(OutboundSms sms) {
+        if (!running) {
+            sms.result.setException(new IllegalStateException("Outbox is shut down."));
+        } else {
+            pending.add(sms);
+        }
+
+        return sms.result;
+    }
+
+    /**
+     * Stop sending. Anything still waiting in the outbox, or waiting to be retried, is failed.
+     */
+    public void shutdown() {
+        running = false;
+        flushers.shutdownNow();
+        retryTimer.shutdownNow();
+
+        List<OutboundSms> remaining = new ArrayList<OutboundSms>(retrying);
+        retrying.removeAll(remaining);
+        pending.drainTo(remaining);
+        for (OutboundSms sms : remaining) {
+            sms.result.setException(new IllegalStateException("Outbox is shut down."));
+        }
+    }
+
+    /**
+     * Fail {@code sms}, or if {@code e} is transient and it has retries left, put it back in the outbox after a
+     * backoff.
+     */
+    private void fail(final OutboundSms sms, final Throwable e) {
+        if (!running || !retryPolicy.shouldRetry(e, sms.attempts)) {
+            sms.result.setException(e);
+            return;
+        }
+
+        long delay = retryPolicy.getDelayMillis(sms.attempts);
+        log.debug(String.format("SMS to %s failed on attempt %d (%s); retrying in %d ms.",
+                sms.numbers, sms.attempts, e.getMessage(), delay));
+
+        retrying.add(sms);
+        try {
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (retrying.remove(sms)) {
+                        pending.add(sms);
+
+                        // Shut down while this was being put back; shutdown() may already have drained the outbox.
+                        if (!running && pending.remove(sms)) {
+                            sms.result.setException(new IllegalStateException("Outbox is shut down."));
+                        }
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            retries.incrementAndGet();
+        } catch (RejectedExecutionException shutDown) {
+            retrying.remove(sms);
+            sms.result.setException(e);
+        }
+    }
+
+    private void failAll(List<OutboundSms> batch, Throwable e) {
+        for (OutboundSms sms : batch) {
+            fail(sms, e);
+        }
+    }
+
+    /**
+     * Send {@code batch} to {@code endpoint}, falling back to the other endpoints if it can't be reached or its circuit
+     * breaker won't let the request through. Rate limit tokens for {@code endpoint} must already have been taken.
+     * Every SMS in the batch is either completed or scheduled for a retry by the time this returns normally.
+     */
+    private void sendBatch(List<OutboundSms> batch,
+                           NucleusSmsEndpoint endpoint,
+                           NucleusSmsJsonCodec.PayloadWriter payloadWriter) throws InterruptedException {
+        byte[] body;
+        try {
+            JsonWriter writer = payloadWriter.begin();
+
+            if (batch.size() == 1) {
+                batch.get(0).write(writer);
+            } else {
+                writer.beginArray();
+                for (OutboundSms sms : batch) {
+                    sms.write(writer);
+                }
+                writer.endArray();
+
+                log.trace("Posting batch of " + batch.size() + " SMS.");
+            }
+
+            body = payloadWriter.finish(writer);
+        } catch (Exception e) {
+            for (OutboundSms sms : batch) {
+                sms.result.setException(e);
+            }
+            return;
+        }
+
+        int cost = 0;
+        for (OutboundSms sms : batch) {
+            cost += sms.cost();
+            sms.attempts++;
+        }
+
+        List<NucleusSmsEndpoint> tried = new ArrayList<NucleusSmsEndpoint>();
+
+        while (true) {
+            tried.add(endpoint);
+
+            long permit = endpoint.tryStart();
+            if (permit == NucleusSmsCircuitBreaker.REFUSED) {
+                // Its breaker opened, or another request took its half-open trial, since it was selected.
+                NucleusSmsEndpoint next = endpoints.select(tried);
+                if (next == null) {
+                    failAll(batch, new NucleusSmsCircuitBreaker.OpenException(
+                            "Circuit breaker open for every Nucleus endpoint."));
+                    return;
+                }
+
+                endpoint = next;
+                endpoint.getRateLimit().acquire(cost);
+                continue;
+            }
+
+            long start = System.nanoTime();
+
+            try {
+                NucleusSmsJsonCodec.Results results = client.post(endpoint.getUrl(), body,
+                        new NucleusHttpClient.ResponseHandler<NucleusSmsJsonCodec.Results>() {
+                            @Override
+                            public NucleusSmsJsonCodec.Results handle(InputStream body) throws IOException {
+                                return NucleusSmsJsonCodec.readResults(body);
+                            }
+                        });
+
+                long elapsed = System.nanoTime() - start;
+                endpoint.succeeded(permit, elapsed, cost);
+                metrics.recordSend(elapsed, batch.size());
+                completeBatch(batch, results);
+                return;
+            } catch (Exception e) {
+                endpoint.failed(permit);
+
+                NucleusSmsEndpoint next = NucleusSmsEndpoints.isUnreachable(e) ? endpoints.select(tried) : null;
+                if (next == null) {
+                    failAll(batch, e);
+                    return;
+                }
+
+                log.debug("Nucleus endpoint '" + endpoint + "' unreachable, failing over to '" + next + "'.", e);
+                endpoint = next;
+                endpoint.getRateLimit().acquire(cost);
+            }
+        }
+    }
+
+    /**
+     * Map the per-item results Nucleus returned for a batch back onto each {@link OutboundSms}.
+     */
+    private void completeBatch(List<OutboundSms> batch, NucleusSmsJsonCodec.Results results) {
+        List<Boolean> items = results.getItems();
+
+        if (items == null) {
+            // A single SMS, or an older flow that only reports overall success.
+            for (OutboundSms sms : batch) {
+                if (results.isSuccess()) {
+                    sms.result.set(null);
+                } else {
+                    fail(sms, new UnsuccessfulException("Unsuccessful"));
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            OutboundSms sms = batch.get(i);
+
+            if (i >= items.size()) {
+                fail(sms, new UnsuccessfulException("No result returned for batch item " + i));
+            } else if (items.get(i)) {
+                sms.result.set(null);
+            } else {
+                fail(sms, new UnsuccessfulException("Unsuccessful"));
+            }
+        }
+    }
+
+    private class Flusher implements Runnable {
+
+        private final NucleusSmsJsonCodec.PayloadWriter payloadWriter = new NucleusSmsJsonCodec.PayloadWriter();
+
+        @Override
+        public void run() {
+            List<OutboundSms> batch = new ArrayList<OutboundSms>(maxBatchSize);
+
+            while (running) {
+                boolean sent = false;
+
+                try {
+                    OutboundSms first = pending.take();
+                    batch.add(first);
+
+                    NucleusSmsEndpoint endpoint = endpoints.select(Collections.<NucleusSmsEndpoint>emptyList());
+                    if (endpoint == null) {
+                        first.result.setException(new NucleusSmsCircuitBreaker.OpenException(
+                                "Circuit breaker open for every Nucleus endpoint."));
+                        continue;
+                    }
+
+                    NucleusSmsTokenBucket rateLimit = endpoint.getRateLimit();
+                    rateLimit.acquire(first.cost());
+
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+                    while (batch.size() < maxBatchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        OutboundSms next = remaining > 0 ?
+                                pending.poll(remaining, TimeUnit.NANOSECONDS) :
+                                pending.poll();
+
+                        if (next == null) {
+                            break;
+                        }
+                        if (!rateLimit.tryAcquire(next.cost())) {
+                            // Over the rate; leave it for the next batch, still in priority order.
+                            pending.add(next);
+                            break;
+                        }
+                        batch.add(next);
+                    }
+
+                    sendBatch(batch, endpoint, payloadWriter);
+                    sent = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    log.error("Unexpected error sending SMS batch.", e);
+                } finally {
+                    if (!sent) {
+                        for (OutboundSms sms : batch) {
+                            sms.result.setException(new IllegalStateException("SMS was not sent."));
+                        }
+                    }
+                    batch.clear();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * @return How many times sending had to wait for an endpoint's rate limit.
+     */
+    public long getThrottledCount() {
+        long throttled = 0;
+        for (NucleusSmsEndpoint endpoint : endpoints.getAll()) {
+            throttled += endpoint.getRateLimit().getThrottledCount();
+        }
+        return throttled;
+    }
+
+    /**
+     * @return How many SMS are waiting to be sent, including those waiting to be retried.
+     */
+    public int getPendingCount() {
+        return pending.size() + retrying.size();
+    }
+
+    /**
+     * @return How many times an SMS has been put back in the outbox to be retried.
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Nucleus answered, but reported that it didn't send the SMS.
+     */
+    public static class UnsuccessfulException extends Exception {
+
+        public UnsuccessfulException(String message) {
+            super(message);
+        }
+
+    }
+
+    private static class OutboundSms implements Comparable<OutboundSms> {
+
+        private final SettableFuture<Void> result = SettableFuture.create();
+
+        private final Collection<String> numbers;
+        private final String ackCode;
+        private final String message;
+        private final NucleusSmsSegmenter.Segments segments;
+        private final int priority;
+        private final long sequence;
+
+        /**
+         * How many times the SMS has been posted. Only changed by the flusher sending it; it passes between threads
+         * through {@link #pending}, which makes the change visible to the next one.
+         */
+        private int attempts = 0;
+
+        private OutboundSms(Collection<String> numbers,
+                            String ackCode,
+                            String message,
+                            NucleusSmsSegmenter.Segments segments,
+                            AlarmPriority priority,
+                            long sequence) {
+            this.numbers = numbers;
+            this.ackCode = ackCode;
+            this.message = message;
+            this.segments = segments;
+            this.priority = priority == null ? 0 : priority.ordinal();
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return The SMS the modem will actually have to transmit: one per recipient per segment.
+         */
+        private int cost() {
+            int parts = segments != null && segments.isConcatenated() ? segments.getParts().size() : 1;
+            return Math.max(1, numbers.size()) * parts;
+        }
+
+        /**
+         * Highest priority first, then oldest first.
+         */
+        @Override
+        public int compareTo(OutboundSms other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        private void write(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("message").value(message);
+
+            writer.name("numbers").beginArray();
+            for (String number : numbers) {
+                writer.value(number);
+            }
+            writer.endArray();
+
+            writer.name("ackCode").value(ackCode);
+
+            if (segments != null && segments.isConcatenated()) {
+                writer.name("encoding").value(
+                        segments.getEncoding() == NucleusSmsSegmenter.Encoding.Gsm7 ? "GSM7" : "UCS2");
+
+                writer.name("parts").beginArray();
+                for (int i = 0; i < segments.getParts().size(); i++) {
+                    writer.beginObject();
+                    writer.name("udh").value(segments.getUserDataHeader(i));
+                    writer.name("text").value(segments.getParts().get(i));
+                    writer.endObject();
+                }
+                writer.endArray();
+            }
+
+            writer.endObject();
+        }
+
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.tyrion.nucleus.profile;
+
+/**
+ * Puts phone numbers into the one form they're compared in: E.164 digits without the leading '+', e.g. 15551234567 or
+ * 447700900123. This is how Nucleus reports the number a reply came from.
+ * <p>
+ * A number written with a '+' or an international call prefix (00, or 011 in North America) already carries its
+ * country code. Anything else is taken as a national number: a trunk prefix, like the 0 of 07700 900123, is replaced
+ * by the default country code, and a number that doesn't already start with the country code has it added. A national
+ * number that happens to start with the country code's digits can't be told apart from an international one, so such
+ * numbers should be written with a '+'.
+ */
+public class NucleusSmsPhoneNumbers {
+
+    /**
+     * The longest number E.164 allows, country code included.
+     */
+    private static final int MAX_DIGITS = 15;
+
+    private final String countryCode;
+    private final String trunkPrefix;
+
+    /**
+     * @param countryCode The country code of numbers written without one, e.g. "1" or "44".
+     * @param trunkPrefix The prefix national numbers are dialed with, e.g. "0" in the UK. May be blank if there isn't
+     *                    one.
+     */
+    public NucleusSmsPhoneNumbers(String countryCode, String trunkPrefix) {
+        this.countryCode = prefixOf(countryCode);
+        this.trunkPrefix = prefixOf(trunkPrefix);
+    }
+
+    /**
+     * @return {@code number} in canonical form, or null if it isn't recognizable as a phone number.
+     */
+    public String normalize(String number) {
+        if (number == null) {
+            return null;
+        }
+
+        String trimmed = number.trim();
+        boolean international = trimmed.startsWith("+");
+
+        String digits = digitsOf(international ? trimmed.substring(1) : trimmed);
+        if (digits == null || digits.isEmpty()) {
+            return null;
+        }
+
+        if (!international) {
+            if (digits.startsWith("00")) {
+                digits = digits.substring(2);
+            } else if ("1".equals(countryCode) && digits.startsWith("011")) {
+                digits = digits.substring(3);
+            } else if (!trunkPrefix.isEmpty() && digits.startsWith(trunkPrefix)) {
+                digits = countryCode + digits.substring(trunkPrefix.length());
+            } else if (!digits.startsWith(countryCode)) {
+                digits = countryCode + digits;
+            }
+        }
+
+        if (digits.isEmpty() || digits.length() > MAX_DIGITS) {
+            return null;
+        }
+
+        return digits;
+    }
+
+    /**
+     * @return The digits of a configured prefix, ignoring a '+' written before a country code, or "" if it has none.
+     */
+    private static String prefixOf(String prefix) {
+        String digits = prefix == null ? null : digitsOf(prefix.replace("+", ""));
+        return digits == null ? "" : digits;
+    }
+
+    /**
+     * @return The digits of {@code number}, without the spaces, dashes, dots, slashes and parentheses it may be written
+     * with, or null if it contains anything else.
+     */
+    private static String digitsOf(String number) {
+        StringBuilder digits = new StringBuilder(number.length());
+
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (c != ' ' && c != '-' && c != '.' && c != '/' && c != '(' && c != ')') {
+                return null;
+            }
+        }
+
+        return digits.toString();
+    }
+
+}
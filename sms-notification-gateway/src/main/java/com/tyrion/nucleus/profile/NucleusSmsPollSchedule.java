@@ -0,0 +1,171 @@
+package com.tyrion.nucleus.profile;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the acknowledgement buffer should next be read from Nucleus.
+ * <p>
+ * While replies are expected (there are outstanding alarm codes) the buffer is read every {@code fastInterval}. Once
+ * nothing is outstanding the interval doubles on each poll up to {@code idleInterval}, or polling stops altogether if
+ * {@code idleInterval} is 0, until {@link #wake()} is called. Failed polls back off exponentially with jitter, up to
+ * {@code errorInterval}.
+ * <p>
+ * The owner calls {@link #isDue(long, boolean)} from a frequent tick and reports the outcome of each poll it makes.
+ */
+public class NucleusSmsPollSchedule {
+
+    public enum State {
+        /**
+         * Replies are expected; polling at the fast interval.
+         */
+        Fast,
+        /**
+         * Nothing outstanding; polling less and less often.
+         */
+        Idle,
+        /**
+         * Nothing outstanding and idle polling is turned off.
+         */
+        Stopped,
+        /**
+         * The last poll failed; waiting before trying again.
+         */
+        Backoff
+    }
+
+    private final long fastIntervalNanos;
+    private final long idleIntervalNanos;
+    private final long errorIntervalNanos;
+
+    private final AtomicLong polls = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+    private final AtomicLong idleBackoffs = new AtomicLong(0);
+
+    private volatile State state = State.Fast;
+    private volatile long nextPollNanos = System.nanoTime();
+    private volatile long currentIntervalNanos;
+    private volatile int consecutiveErrors = 0;
+
+    /**
+     * @param fastInterval  How often to poll while replies are expected.
+     * @param idleInterval  The longest gap between polls while nothing is outstanding. 0 stops polling when idle.
+     * @param errorInterval The longest gap between polls while Nucleus is failing.
+     */
+    public NucleusSmsPollSchedule(long fastInterval, long idleInterval, long errorInterval, TimeUnit unit) {
+        this.fastIntervalNanos = Math.max(1, unit.toNanos(fastInterval));
+        this.idleIntervalNanos = Math.max(0, unit.toNanos(idleInterval));
+        this.errorIntervalNanos = Math.max(fastIntervalNanos, unit.toNanos(errorInterval));
+        this.currentIntervalNanos = fastIntervalNanos;
+    }
+
+    /**
+     * @param now         {@link System#nanoTime()}.
+     * @param outstanding true if there are alarm codes waiting for a reply.
+     * @return true if it's time to poll.
+     */
+    public synchronized boolean isDue(long now, boolean outstanding) {
+        if (outstanding && (state == State.Idle || state == State.Stopped)) {
+            // Something was registered since we backed off; get back to polling quickly.
+            toFast(now);
+        }
+
+        return state != State.Stopped && now - nextPollNanos >= 0;
+    }
+
+    /**
+     * Poll on the next tick, unless Nucleus is currently failing.
+     */
+    public synchronized void wake() {
+        if (state == State.Idle || state == State.Stopped) {
+            toFast(System.nanoTime());
+        }
+    }
+
+    /**
+     * Record a successful poll.
+     *
+     * @param outstanding true if there are still alarm codes waiting for a reply.
+     */
+    public synchronized void onSuccess(long now, boolean outstanding) {
+        polls.incrementAndGet();
+        consecutiveErrors = 0;
+
+        if (outstanding) {
+            state = State.Fast;
+            currentIntervalNanos = fastIntervalNanos;
+        } else if (idleIntervalNanos == 0) {
+            if (state != State.Stopped) {
+                idleBackoffs.incrementAndGet();
+            }
+            state = State.Stopped;
+            currentIntervalNanos = 0;
+        } else {
+            long base = state == State.Idle ? currentIntervalNanos : fastIntervalNanos;
+            if (state != State.Idle) {
+                idleBackoffs.incrementAndGet();
+            }
+            state = State.Idle;
+            currentIntervalNanos = Math.min(base * 2, Math.max(idleIntervalNanos, fastIntervalNanos));
+        }
+
+        nextPollNanos = now + currentIntervalNanos;
+    }
+
+    /**
+     * Record a failed poll and back off.
+     */
+    public synchronized void onError(long now) {
+        polls.incrementAndGet();
+        errors.incrementAndGet();
+
+        int attempt = Math.min(++consecutiveErrors, 30);
+        long ceiling = Math.min(errorIntervalNanos, fastIntervalNanos << Math.min(attempt, 20));
+
+        // "Equal jitter": half the ceiling, plus a random share of the other half.
+        long half = ceiling / 2;
+        long delay = half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+
+        state = State.Backoff;
+        currentIntervalNanos = delay;
+        nextPollNanos = now + delay;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The gap, in milliseconds, between the last poll and the next one. 0 when stopped.
+     */
+    public long getCurrentIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(currentIntervalNanos);
+    }
+
+    public int getConsecutiveErrors() {
+        return consecutiveErrors;
+    }
+
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return How many times polling has slowed down (or stopped) because nothing was outstanding.
+     */
+    public long getIdleBackoffCount() {
+        return idleBackoffs.get();
+    }
+
+    private void toFast(long now) {
+        state = State.Fast;
+        currentIntervalNanos = fastIntervalNanos;
+        nextPollNanos = now;
+    }
+
+}
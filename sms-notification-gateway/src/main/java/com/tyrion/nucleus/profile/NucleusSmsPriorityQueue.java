@@ -0,0 +1,310 @@
+package com.tyrion.nucleus.profile;
+
+import com.inductiveautomation.ignition.common.alarming.config.AlarmPriority;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking queue of tasks that hands out the highest {@link AlarmPriority} first, and tasks of equal priority
+ * in the order they arrived. Tasks that don't implement {@link Prioritized} are treated as
+ * {@link AlarmPriority#Diagnostic}.
+ * <p>
+ * {@link java.util.concurrent.PriorityBlockingQueue} is unbounded, which would make the dispatcher's
+ * {@link NucleusSmsDispatcher.OverflowPolicy} meaningless; this queue refuses offers once it holds {@code capacity}
+ * tasks.
+ */
+public class NucleusSmsPriorityQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    public interface Prioritized {
+        AlarmPriority getPriority();
+    }
+
+    private final int capacity;
+    private final PriorityQueue<Slot> slots;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private long sequence = 0;
+
+    public NucleusSmsPriorityQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.slots = new PriorityQueue<Slot>(Math.min(this.capacity, 64));
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        lock.lock();
+        try {
+            if (slots.size() >= capacity) {
+                return false;
+            }
+
+            insert(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            while (slots.size() >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+
+            insert(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        lock.lockInterruptibly();
+        try {
+            while (slots.size() >= capacity) {
+                notFull.await();
+            }
+
+            insert(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return slots.isEmpty() ? null : extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            while (slots.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (slots.isEmpty()) {
+                notEmpty.await();
+            }
+
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Slot head = slots.peek();
+            return head == null ? null : head.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            Iterator<Slot> iterator = slots.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().task.equals(o)) {
+                    iterator.remove();
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && !slots.isEmpty()) {
+                c.add(extract());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return An iterator over a snapshot of the queue, in no particular order. Removing through it removes the task
+     * from the queue.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<Runnable>();
+
+        lock.lock();
+        try {
+            for (Slot slot : slots) {
+                snapshot.add(slot.task);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return new Iterator<Runnable>() {
+            private final Iterator<Runnable> delegate = snapshot.iterator();
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return delegate.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                last = delegate.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                NucleusSmsPriorityQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private void insert(Runnable task) {
+        slots.add(new Slot(task, priorityOf(task), sequence++));
+        notEmpty.signal();
+    }
+
+    private Runnable extract() {
+        Runnable task = slots.poll().task;
+        notFull.signal();
+        return task;
+    }
+
+    private static int priorityOf(Runnable task) {
+        if (task instanceof Prioritized) {
+            AlarmPriority priority = ((Prioritized) task).getPriority();
+            if (priority != null) {
+                return priority.ordinal();
+            }
+        }
+
+        return AlarmPriority.Diagnostic.ordinal();
+    }
+
+    private static class Slot implements Comparable<Slot> {
+
+        private final Runnable task;
+        private final int priority;
+        private final long sequence;
+
+        private Slot(Runnable task, int priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Slot other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+    }
+
+}
@@ -17,6 +17,20 @@ import java.util.List;
  */
 public class NucleusSmsProperties {
 
+    /**
+     * How a notification reaches a user with several SMS numbers.
+     */
+    public enum DeliveryMethod {
+        /**
+         * One number at a time, {@link #SEQUENTIAL_DELAY} apart, until the alarms are acknowledged.
+         */
+        Sequential,
+        /**
+         * Every number at once.
+         */
+        Parallel
+    }
+
     public static final BasicNotificationProfileProperty<String> MESSAGE = new BasicNotificationProfileProperty<String>(
             "message",
             "NucleusSmsNotification." + "Properties.Message.DisplayName",
@@ -29,10 +43,28 @@ public class NucleusSmsProperties {
             null,
             String.class);
 
+    /**
+     * Seconds after an SMS to a user during which further notifications to them are held back, then sent together.
+     */
     public static final BasicNotificationProfileProperty<Long> TIME_BETWEEN_NOTIFICATIONS = new BasicNotificationProfileProperty<Long>(
             "delayBetweenContact",
             "NucleusSmsNotification." + "Properties.TimeBetweenNotifications.DisplayName",
+            "NucleusSmsNotification." + "Properties.TimeBetweenNotifications.Desc",
+            Long.class);
+
+    public static final BasicNotificationProfileProperty<DeliveryMethod> DELIVERY_METHOD = new BasicNotificationProfileProperty<DeliveryMethod>(
+            "deliveryMethod",
+            "NucleusSmsNotification." + "Properties.DeliveryMethod.DisplayName",
             null,
+            DeliveryMethod.class);
+
+    /**
+     * Seconds between each number when delivering {@link DeliveryMethod#Sequential}ly.
+     */
+    public static final BasicNotificationProfileProperty<Long> SEQUENTIAL_DELAY = new BasicNotificationProfileProperty<Long>(
+            "sequentialDelay",
+            "NucleusSmsNotification." + "Properties.SequentialDelay.DisplayName",
+            "NucleusSmsNotification." + "Properties.SequentialDelay.Desc",
             Long.class);
 
     public static final BasicNotificationProfileProperty<Boolean> TEST_MODE = new BasicNotificationProfileProperty<Boolean>(
@@ -58,8 +90,17 @@ public class NucleusSmsProperties {
         THROTTLED_MESSAGE.setExpressionSource(true);
         THROTTLED_MESSAGE.setDefaultValue(i18n("NucleusSmsNotification." + "Properties.ThrottledMessage.DefaultValue"));
 
-        TIME_BETWEEN_NOTIFICATIONS.setExpressionSource(true);
-        TIME_BETWEEN_NOTIFICATIONS.setDefaultValue(i18n("NucleusSmsNotification." + "Properties.TimeBetweenNotifications.DefaultValue"));
+        TIME_BETWEEN_NOTIFICATIONS.setDefaultValue(0L);
+
+        DELIVERY_METHOD.setDefaultValue(DeliveryMethod.Parallel);
+        List<Option<DeliveryMethod>> deliveryMethods = new ArrayList<Option<DeliveryMethod>>();
+        deliveryMethods.add(new CategorizedProperty.Option<DeliveryMethod>(DeliveryMethod.Sequential,
+                new LocalizedString("NucleusSmsNotification." + "Properties.DeliveryMethod.Sequential")));
+        deliveryMethods.add(new CategorizedProperty.Option<DeliveryMethod>(DeliveryMethod.Parallel,
+                new LocalizedString("NucleusSmsNotification." + "Properties.DeliveryMethod.Parallel")));
+        DELIVERY_METHOD.setOptions(deliveryMethods);
+
+        SEQUENTIAL_DELAY.setDefaultValue(60L);
 
         TEST_MODE.setDefaultValue(false);
         List<Option<Boolean>> options = new ArrayList<Option<Boolean>>();
@@ -0,0 +1,71 @@
+package com.tyrion.nucleus.profile;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether an SMS that Nucleus failed to send is worth trying again, and how long to wait first.
+ * <p>
+ * Only failures that can't have sent the SMS are retried: a request that never left the gateway (connection refused
+ * or timed out, see {@link NucleusHttpClient.NotSentException}), a 5xx, 408 or 429 answer, or Nucleus reporting
+ * {@code success: false}. A read timeout, a dropped connection or a response that can't be parsed all happen after
+ * Nucleus has the request, and it may well have sent the SMS; retrying would send it twice, so these fail at once, as
+ * do other 4xx answers and an endpoint whose {@link NucleusSmsCircuitBreaker} is open. Retries back off exponentially
+ * with jitter, so SMS that failed together don't all come back at the same moment.
+ */
+public class NucleusSmsRetryPolicy {
+
+    private final int maxRetries;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+
+    /**
+     * @param maxRetries The most times to retry an SMS after its first attempt. 0 turns retries off.
+     * @param baseDelay  The delay before the first retry; each further retry waits up to twice as long.
+     * @param maxDelay   The longest delay before any retry.
+     */
+    public NucleusSmsRetryPolicy(int maxRetries, long baseDelay, long maxDelay, TimeUnit unit) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayNanos = Math.max(1, unit.toNanos(baseDelay));
+        this.maxDelayNanos = Math.max(baseDelayNanos, unit.toNanos(maxDelay));
+    }
+
+    /**
+     * @param attempts How many times the SMS has been tried so far.
+     */
+    public boolean shouldRetry(Throwable e, int attempts) {
+        return attempts <= maxRetries && isTransient(e);
+    }
+
+    /**
+     * @param attempts How many times the SMS has been tried so far.
+     * @return How long, in milliseconds, to wait before the next attempt.
+     */
+    public long getDelayMillis(int attempts) {
+        int doublings = Math.min(Math.max(attempts - 1, 0), 20);
+        long ceiling = Math.min(maxDelayNanos, baseDelayNanos << doublings);
+
+        // "Equal jitter", as the poll schedule uses: half the ceiling, plus a random share of the other half.
+        long half = ceiling / 2;
+        long delay = half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+
+        return TimeUnit.NANOSECONDS.toMillis(delay);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @return true if {@code e} is a failure that might not happen on another attempt, and that can't have sent the SMS.
+     */
+    public static boolean isTransient(Throwable e) {
+        if (e instanceof NucleusHttpClient.HttpStatusException) {
+            int status = ((NucleusHttpClient.HttpStatusException) e).getStatus();
+            return status >= 500 || status == 408 || status == 429;
+        }
+
+        return e instanceof NucleusHttpClient.NotSentException || e instanceof NucleusSmsOutbox.UnsuccessfulException;
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.tyrion.nucleus.profile;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a message into SMS segments the way a carrier will actually count them.
+ * <p>
+ * A message made up entirely of GSM 03.38 characters is sent as GSM-7: 160 septets in one SMS, with characters from
+ * the extension table (brackets, braces, the euro sign and so on) costing two. Anything else forces UCS-2 for the whole
+ * message: 70 UTF-16 code units in one SMS. When a message is sent as a concatenated SMS each part loses room to the
+ * user data header, leaving 153 septets or 67 code units.
+ * <p>
+ * Segments break after whitespace where possible, never split a surrogate pair, and never split the part of the
+ * message the caller asks to be kept together (the acknowledgement instruction, so the code arrives whole).
+ */
+public class NucleusSmsSegmenter {
+
+    public enum Encoding {
+        Gsm7(160, 153),
+        Ucs2(70, 67);
+
+        private final int singleLimit;
+        private final int concatenatedLimit;
+
+        Encoding(int singleLimit, int concatenatedLimit) {
+            this.singleLimit = singleLimit;
+            this.concatenatedLimit = concatenatedLimit;
+        }
+
+        /**
+         * @return How many septets (GSM-7) or code units (UCS-2) fit in a single, unconcatenated SMS.
+         */
+        public int getSingleLimit() {
+            return singleLimit;
+        }
+
+        /**
+         * @return How many septets (GSM-7) or code units (UCS-2) fit in each part of a concatenated SMS.
+         */
+        public int getConcatenatedLimit() {
+            return concatenatedLimit;
+        }
+    }
+
+    private static final String GSM7_BASIC =
+            "@\u00A3$\u00A5\u00E8\u00E9\u00F9\u00EC\u00F2\u00C7\n\u00D8\u00F8\r\u00C5\u00E5" +
+            "\u0394_\u03A6\u0393\u039B\u03A9\u03A0\u03A8\u03A3\u0398\u039E\u00C6\u00E6\u00DF\u00C9" +
+            " !\"#\u00A4%&'()*+,-./0123456789:;<=>?" +
+            "\u00A1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00C4\u00D6\u00D1\u00DC\u00A7" +
+            "\u00BFabcdefghijklmnopqrstuvwxyz\u00E4\u00F6\u00F1\u00FC\u00E0";
+
+    private static final String GSM7_EXTENSION = "\f^{}\\[~]|\u20AC";
+
+    private static final BitSet GSM7_BASIC_CHARS = toBitSet(GSM7_BASIC);
+    private static final BitSet GSM7_EXTENSION_CHARS = toBitSet(GSM7_EXTENSION);
+
+    private final AtomicInteger nextReference = new AtomicInteger(0);
+
+    /**
+     * @return The encoding a carrier will use for {@code text}.
+     */
+    public static Encoding encodingFor(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!GSM7_BASIC_CHARS.get(c) && !GSM7_EXTENSION_CHARS.get(c)) {
+                return Encoding.Ucs2;
+            }
+        }
+
+        return Encoding.Gsm7;
+    }
+
+    /**
+     * @return What {@code c} costs in {@code encoding}: septets for GSM-7, UTF-16 code units for UCS-2.
+     */
+    public static int cost(char c, Encoding encoding) {
+        return encoding == Encoding.Gsm7 && GSM7_EXTENSION_CHARS.get(c) ? 2 : 1;
+    }
+
+    /**
+     * @return The septets (GSM-7) or code units (UCS-2) {@code text} takes up.
+     */
+    public static int length(CharSequence text, Encoding encoding) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            length += cost(text.charAt(i), encoding);
+        }
+        return length;
+    }
+
+    /**
+     * Split {@code text} into segments.
+     *
+     * @param text         The whole message.
+     * @param keepTogether A suffix of {@code text} that mustn't be split across segments, or null.
+     * @param concatenated true if the segments will be sent as one concatenated SMS, false if each will be sent as an
+     *                     SMS of its own.
+     */
+    public Segments segment(String text, String keepTogether, boolean concatenated) {
+        Encoding encoding = encodingFor(text);
+
+        if (length(text, encoding) <= encoding.getSingleLimit()) {
+            return new Segments(encoding, Collections.singletonList(text), false, 0);
+        }
+
+        int limit = concatenated ? encoding.getConcatenatedLimit() : encoding.getSingleLimit();
+
+        int protectedStart = text.length();
+        if (keepTogether != null && !keepTogether.isEmpty() && text.endsWith(keepTogether)
+                && length(keepTogether, encoding) <= limit) {
+            protectedStart = text.length() - keepTogether.length();
+        }
+
+        List<String> parts = new ArrayList<String>();
+        int start = 0;
+
+        while (start < text.length()) {
+            int end = start;
+            int used = 0;
+
+            while (end < text.length()) {
+                int cost = cost(text.charAt(end), encoding);
+                if (used + cost > limit) {
+                    break;
+                }
+                used += cost;
+                end++;
+            }
+
+            if (end < text.length()) {
+                end = breakPoint(text, start, end, protectedStart);
+            }
+
+            parts.add(text.substring(start, end));
+            start = end;
+        }
+
+        int reference = concatenated && parts.size() > 1 ? nextReference.getAndIncrement() & 0xFF : 0;
+
+        return new Segments(encoding, parts, concatenated && parts.size() > 1, reference);
+    }
+
+    /**
+     * @return Where to end a segment starting at {@code start} that can hold at most up to {@code end}.
+     */
+    private static int breakPoint(String text, int start, int end, int protectedStart) {
+        if (end > protectedStart && protectedStart > start) {
+            // The instruction would be split; move all of it to the next segment.
+            return protectedStart;
+        }
+
+        for (int i = end; i > start; i--) {
+            if (Character.isWhitespace(text.charAt(i - 1))) {
+                return i;
+            }
+        }
+
+        // One word longer than a segment; split it, but not in the middle of a surrogate pair.
+        if (end - 1 > start && Character.isHighSurrogate(text.charAt(end - 1))) {
+            return end - 1;
+        }
+
+        return end;
+    }
+
+    private static BitSet toBitSet(String chars) {
+        BitSet bits = new BitSet();
+        for (int i = 0; i < chars.length(); i++) {
+            bits.set(chars.charAt(i));
+        }
+        return bits;
+    }
+
+    /**
+     * A message split into segments.
+     */
+    public static class Segments {
+
+        private final Encoding encoding;
+        private final List<String> parts;
+        private final boolean concatenated;
+        private final int reference;
+
+        private Segments(Encoding encoding, List<String> parts, boolean concatenated, int reference) {
+            this.encoding = encoding;
+            this.parts = Collections.unmodifiableList(parts);
+            this.concatenated = concatenated;
+            this.reference = reference;
+        }
+
+        public Encoding getEncoding() {
+            return encoding;
+        }
+
+        public List<String> getParts() {
+            return parts;
+        }
+
+        /**
+         * @return true if the parts are to be sent as a single concatenated SMS.
+         */
+        public boolean isConcatenated() {
+            return concatenated;
+        }
+
+        /**
+         * @return The user data header for part {@code index}: an 8-bit concatenation reference, the part count and
+         * the (one-based) part number, as hex.
+         */
+        public String getUserDataHeader(int index) {
+            return String.format("050003%02X%02X%02X", reference, parts.size(), index + 1);
+        }
+
+    }
+
+}
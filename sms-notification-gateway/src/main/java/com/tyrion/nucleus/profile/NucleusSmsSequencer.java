@@ -0,0 +1,169 @@
+package com.tyrion.nucleus.profile;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a notification to a user's numbers one at a time, waiting between each, and stops as soon as the alarms have
+ * been acknowledged; the user's other phones are only texted if nobody answered the first.
+ * <p>
+ * The wait happens on a timer rather than a dispatcher worker, so a sequence costs nothing while it's waiting. A
+ * number that couldn't be sent to is skipped without waiting, since nobody received anything from it.
+ */
+public class NucleusSmsSequencer {
+
+    /**
+     * One notification's sends.
+     */
+    public interface Steps {
+        /**
+         * Called before each number after the first.
+         *
+         * @return false to stop, e.g. because the alarms have been acknowledged.
+         */
+        boolean shouldContinue();
+
+        /**
+         * @return A future that completes once the SMS has been accepted, or fails if it couldn't be.
+         */
+        ListenableFuture<?> send(String number) throws Exception;
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ScheduledExecutorService timer;
+    private final AtomicInteger active = new AtomicInteger(0);
+
+    public NucleusSmsSequencer(String profileName) {
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("NucleusSmsSequencer[%s]", profileName))
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Send to the first of {@code numbers} now, and to each of the others after {@code delay}, until
+     * {@link Steps#shouldContinue()} says to stop.
+     *
+     * @return A future that completes once any number has been sent to, or fails if none of them could be.
+     */
+    public ListenableFuture<Void> start(List<String> numbers, long delay, TimeUnit unit, Steps steps) {
+        Sequence sequence = new Sequence(numbers, unit.toMillis(delay), steps);
+
+        if (numbers.isEmpty()) {
+            sequence.reached.setException(new IllegalArgumentException("No numbers to send to."));
+        } else {
+            active.incrementAndGet();
+            sequence.step(0);
+        }
+
+        return sequence.reached;
+    }
+
+    /**
+     * @return The number of sequences that haven't yet finished or stopped.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Abandon the numbers still waiting to be sent to.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private class Sequence {
+
+        private final List<String> numbers;
+        private final long delayMillis;
+        private final Steps steps;
+        private final SettableFuture<Void> reached = SettableFuture.create();
+
+        private Sequence(List<String> numbers, long delayMillis, Steps steps) {
+            this.numbers = numbers;
+            this.delayMillis = delayMillis;
+            this.steps = steps;
+        }
+
+        private void step(final int index) {
+            if (index >= numbers.size()) {
+                finish();
+                return;
+            }
+
+            if (index > 0 && !steps.shouldContinue()) {
+                log.debug(String.format("Stopped after %d of %d number(s).", index, numbers.size()));
+                finish();
+                return;
+            }
+
+            final String number = numbers.get(index);
+
+            ListenableFuture<?> sent;
+            try {
+                sent = steps.send(number);
+            } catch (Exception e) {
+                sent = Futures.immediateFailedFuture(e);
+            }
+
+            Futures.addCallback(sent, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    reached.set(null);
+                    schedule(index + 1);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.debug("Error sending to " + number + "; moving on to the next number.", t);
+
+                    if (index + 1 >= numbers.size()) {
+                        // Does nothing if an earlier number was reached.
+                        reached.setException(t);
+                    }
+                    step(index + 1);
+                }
+            });
+        }
+
+        private void schedule(final int index) {
+            if (index >= numbers.size()) {
+                finish();
+                return;
+            }
+
+            try {
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        step(index);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                finish();
+            }
+        }
+
+        private void finish() {
+            active.decrementAndGet();
+        }
+
+    }
+
+}
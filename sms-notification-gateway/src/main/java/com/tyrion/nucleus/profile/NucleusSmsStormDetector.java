@@ -0,0 +1,116 @@
+package com.tyrion.nucleus.profile;
+
+/**
+ * Watches how many notifications a profile is asked to send per minute, and decides when that amounts to an alarm
+ * storm.
+ * <p>
+ * Notifications are counted in one-second buckets over a sliding minute. A storm starts as soon as the count reaches
+ * the threshold, and ends once it has fallen below half of it, so a rate hovering around the threshold doesn't flap
+ * in and out of storm mode.
+ */
+public class NucleusSmsStormDetector {
+
+    /**
+     * Told when a storm starts and ends. Called outside the detector's lock, on whichever thread noticed.
+     */
+    public interface Listener {
+        void stormStarted(int rate);
+
+        void stormEnded(int rate);
+    }
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final int[] counts = new int[WINDOW_SECONDS];
+    private final long[] seconds = new long[WINDOW_SECONDS];
+
+    private final int threshold;
+    private final Listener listener;
+
+    private boolean storm = false;
+
+    /**
+     * @param threshold Notifications per minute that make a storm.
+     */
+    public NucleusSmsStormDetector(int threshold, Listener listener) {
+        this.threshold = Math.max(1, threshold);
+        this.listener = listener;
+    }
+
+    /**
+     * Count a notification.
+     *
+     * @return true if a storm is in progress, this notification included.
+     */
+    public boolean record(long nowMillis) {
+        return update(nowMillis, 1);
+    }
+
+    /**
+     * Let the window slide on, so a storm can end even if notifications stop altogether. Called once a second.
+     *
+     * @return true if a storm is in progress.
+     */
+    public boolean update(long nowMillis) {
+        return update(nowMillis, 0);
+    }
+
+    public synchronized boolean isStorm() {
+        return storm;
+    }
+
+    /**
+     * @return The number of notifications in the last minute.
+     */
+    public synchronized int getRate() {
+        return rate(System.currentTimeMillis() / 1000);
+    }
+
+    private boolean update(long nowMillis, int notifications) {
+        boolean started;
+        boolean ended;
+        boolean current;
+        int rate;
+
+        synchronized (this) {
+            long second = nowMillis / 1000;
+            int bucket = (int) (second % WINDOW_SECONDS);
+
+            if (seconds[bucket] != second) {
+                seconds[bucket] = second;
+                counts[bucket] = 0;
+            }
+            counts[bucket] += notifications;
+
+            rate = rate(second);
+            started = !storm && rate >= threshold;
+            ended = storm && rate * 2 < threshold;
+
+            if (started || ended) {
+                storm = started;
+            }
+            current = storm;
+        }
+
+        if (started) {
+            listener.stormStarted(rate);
+        } else if (ended) {
+            listener.stormEnded(rate);
+        }
+
+        return current;
+    }
+
+    private int rate(long second) {
+        int rate = 0;
+
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (second - seconds[i] < WINDOW_SECONDS) {
+                rate += counts[i];
+            }
+        }
+
+        return rate;
+    }
+
+}
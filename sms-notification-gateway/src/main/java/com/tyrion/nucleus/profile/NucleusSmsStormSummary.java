@@ -0,0 +1,118 @@
+package com.tyrion.nucleus.profile;
+
+import com.inductiveautomation.ignition.common.alarming.AlarmEvent;
+import com.inductiveautomation.ignition.common.alarming.config.AlarmPriority;
+import com.inductiveautomation.metro.utils.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes the alarms held back during an alarm storm in one short line, counting them by priority and by area, for
+ * the storm notice sent in their place.
+ */
+final class NucleusSmsStormSummary {
+
+    /**
+     * The most areas named; the rest are counted together.
+     */
+    private static final int MAX_AREAS = 3;
+
+    private NucleusSmsStormSummary() {
+    }
+
+    /**
+     * @return e.g. "Alarm storm: 312 alarms. By priority: 12 High, 300 Low. By area: Tanks 200, Pumps 100, 12
+     * elsewhere."
+     */
+    static String describe(List<AlarmEvent> events) {
+        Map<AlarmPriority, Integer> byPriority = new EnumMap<AlarmPriority, Integer>(AlarmPriority.class);
+        final Map<String, Integer> byArea = new HashMap<String, Integer>();
+
+        for (AlarmEvent event : events) {
+            AlarmPriority priority = event.getPriority() == null ? AlarmPriority.Diagnostic : event.getPriority();
+            increment(byPriority, priority);
+            increment(byArea, areaOf(event));
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Alarm storm: %d alarm%s.", events.size(), events.size() == 1 ? "" : "s"));
+
+        summary.append(" By priority: ");
+        AlarmPriority[] priorities = AlarmPriority.values();
+        boolean first = true;
+        for (int i = priorities.length - 1; i >= 0; i--) {
+            Integer count = byPriority.get(priorities[i]);
+            if (count != null) {
+                summary.append(first ? "" : ", ").append(count).append(' ').append(priorities[i]);
+                first = false;
+            }
+        }
+        summary.append('.');
+
+        List<String> areas = new ArrayList<String>(byArea.keySet());
+        Collections.sort(areas, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int byCount = byArea.get(b).compareTo(byArea.get(a));
+                return byCount != 0 ? byCount : a.compareTo(b);
+            }
+        });
+
+        summary.append(" By area: ");
+        int elsewhere = 0;
+        for (int i = 0; i < areas.size(); i++) {
+            if (i < MAX_AREAS) {
+                summary.append(i == 0 ? "" : ", ").append(areas.get(i)).append(' ').append(byArea.get(areas.get(i)));
+            } else {
+                elsewhere += byArea.get(areas.get(i));
+            }
+        }
+        if (elsewhere > 0) {
+            summary.append(", ").append(elsewhere).append(" elsewhere");
+        }
+        summary.append('.');
+
+        return summary.toString();
+    }
+
+    /**
+     * @return The first folder of the alarm's display path, or of its source tag's path if it has no display path.
+     */
+    static String areaOf(AlarmEvent event) {
+        String path = event.getDisplayPath();
+        String separators = "/";
+
+        if (StringUtils.isBlank(path)) {
+            // e.g. prov:default:/tag:Tanks/Tank 12:/alm:High Temperature
+            path = String.valueOf(event.getSource());
+            int tag = path.indexOf(":/tag:");
+            if (tag >= 0) {
+                path = path.substring(tag + ":/tag:".length());
+            }
+            separators = "/:";
+        }
+
+        int end = path.length();
+        for (int i = 0; i < path.length(); i++) {
+            if (separators.indexOf(path.charAt(i)) >= 0) {
+                end = i;
+                break;
+            }
+        }
+
+        String area = path.substring(0, end).trim();
+        return area.isEmpty() ? "(none)" : area;
+    }
+
+    private static <K> void increment(Map<K, Integer> counts, K key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.tyrion.nucleus.profile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast SMS are handed to a Nucleus endpoint, so the modem behind it isn't sent more than it can transmit.
+ * <p>
+ * Tokens refill continuously at {@code ratePerMinute} up to {@code burst}. Each SMS costs one token per recipient per
+ * segment. A request costing more than the bucket can hold waits until the bucket is full and then takes the bucket
+ * into debt, so large messages are slowed down rather than stuck forever.
+ */
+public class NucleusSmsTokenBucket {
+
+    private final boolean unlimited;
+    private final double tokensPerNano;
+    private final double capacity;
+
+    private final AtomicLong throttled = new AtomicLong(0);
+
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param ratePerMinute SMS per minute; 0 or less for no limit.
+     * @param burst         How many SMS may be sent back to back after a quiet spell.
+     */
+    public NucleusSmsTokenBucket(int ratePerMinute, int burst) {
+        this.unlimited = ratePerMinute <= 0;
+        this.tokensPerNano = ratePerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Take {@code permits} tokens, waiting for them if necessary.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        if (unlimited) {
+            return;
+        }
+
+        boolean waited = false;
+
+        while (true) {
+            long waitNanos;
+
+            synchronized (this) {
+                refill();
+
+                double needed = Math.min(permits, capacity);
+                if (tokens >= needed) {
+                    tokens -= permits;
+                    if (waited) {
+                        throttled.incrementAndGet();
+                    }
+                    return;
+                }
+
+                waitNanos = (long) Math.ceil((needed - tokens) / tokensPerNano);
+            }
+
+            waited = true;
+            TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+
+    /**
+     * Take {@code permits} tokens if they're available right now.
+     */
+    public synchronized boolean tryAcquire(int permits) {
+        if (unlimited) {
+            return true;
+        }
+
+        refill();
+
+        if (tokens >= Math.min(permits, capacity)) {
+            tokens -= permits;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return How many times a send had to wait for tokens.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public boolean isUnlimited() {
+        return unlimited;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+
+}
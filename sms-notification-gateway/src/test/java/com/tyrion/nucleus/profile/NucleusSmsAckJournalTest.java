@@ -0,0 +1,295 @@
+package com.tyrion.nucleus.profile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NucleusSmsAckJournalTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ack-journal").toFile();
+        file = new File(dir, "journal.bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void replayRestoresOutstandingCodes() {
+        NucleusSmsAckJournal journal = open();
+        NucleusSmsAckRegistry.Entry first = entry("111111", "15551230001");
+        NucleusSmsAckRegistry.Entry second = entry("222222", "15551230002");
+        journal.registered(first);
+        journal.registered(second);
+        journal.removed(first);
+        journal.close();
+
+        List<NucleusSmsAckRegistry.Entry> replayed = replay();
+
+        assertEquals(1, replayed.size());
+        NucleusSmsAckRegistry.Entry entry = replayed.get(0);
+        assertEquals("222222", entry.getCode());
+        assertEquals(second.getCreatedAtMillis(), entry.getCreatedAtMillis());
+        assertEquals(second.getExpiresAtMillis(), entry.getExpiresAtMillis());
+        assertEquals(second.getAlarmEventIds(), entry.getAlarmEventIds());
+        assertEquals(Collections.singletonList("15551230002"), entry.getNumbers());
+        assertEquals("operator", entry.getRecipients().get(0).getUsername());
+        assertNull(entry.getRecipients().get(0).getUserPath());
+        assertNull(entry.getAlarmEvents());
+    }
+
+    @Test
+    public void replayRestoresSharedCodes() {
+        NucleusSmsAckJournal journal = open();
+        journal.registered(new NucleusSmsAckRegistry.Entry("333333", now(), now() + 60000,
+                Arrays.asList(
+                        new NucleusSmsAckRegistry.Recipient(null, "alice", Arrays.asList("15550000001")),
+                        new NucleusSmsAckRegistry.Recipient(null, "bob", Arrays.asList("15550000002", "15550000003"))),
+                Collections.singletonList(UUID.randomUUID()), null));
+        journal.close();
+
+        NucleusSmsAckRegistry.Entry entry = replay().get(0);
+
+        assertEquals(2, entry.getRecipients().size());
+        assertEquals("bob", entry.getRecipient("15550000003").getUsername());
+        assertEquals(Arrays.asList("15550000001", "15550000002", "15550000003"), entry.getNumbers());
+    }
+
+    @Test
+    public void replaySkipsExpiredCodes() {
+        NucleusSmsAckJournal journal = open();
+        journal.registered(new NucleusSmsAckRegistry.Entry("444444", now() - 120000, now() - 60000,
+                Collections.singletonList(recipient("15551230004")),
+                Collections.singletonList(UUID.randomUUID()), null));
+        journal.close();
+
+        assertTrue(replay().isEmpty());
+    }
+
+    @Test
+    public void tornFinalRecordEndsTheFile() throws IOException {
+        NucleusSmsAckJournal journal = open();
+        journal.registered(entry("555555", "15551230005"));
+        journal.registered(entry("666666", "15551230006"));
+        journal.close();
+
+        // Cut the last record off part way through its payload, as a crash mid-write would.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        List<NucleusSmsAckRegistry.Entry> replayed = replay();
+        assertEquals(1, replayed.size());
+        assertEquals("555555", replayed.get(0).getCode());
+    }
+
+    @Test
+    public void tornFrameHeaderEndsTheFile() throws IOException {
+        NucleusSmsAckJournal journal = open();
+        journal.registered(entry("555555", "15551230005"));
+        journal.close();
+
+        // Half of the next record's length and checksum.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 40, 1, 2});
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(1, replay().size());
+    }
+
+    @Test
+    public void corruptRecordIgnoresTheRestOfTheFile() throws IOException {
+        NucleusSmsAckJournal journal = open();
+        journal.registered(entry("111111", "15551230001"));
+        journal.registered(entry("222222", "15551230002"));
+        journal.registered(entry("333333", "15551230003"));
+        journal.close();
+        long firstEnd = firstEndOf(file);
+
+        // Flip a byte in the second record's payload.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(firstEnd + 12);
+            int b = raf.read();
+            raf.seek(firstEnd + 12);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        List<NucleusSmsAckRegistry.Entry> replayed = replay();
+        assertEquals(1, replayed.size());
+        assertEquals("111111", replayed.get(0).getCode());
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveCodes() {
+        NucleusSmsAckJournal journal = open();
+        List<NucleusSmsAckRegistry.Entry> entries = new ArrayList<NucleusSmsAckRegistry.Entry>();
+        for (int i = 0; i < 3000; i++) {
+            NucleusSmsAckRegistry.Entry entry = entry(String.format("%06d", i), "15551230000");
+            entries.add(entry);
+            journal.registered(entry);
+        }
+        for (int i = 10; i < 3000; i++) {
+            journal.removed(entries.get(i));
+        }
+        journal.close();
+
+        // Once on opening, and at least once more as removals outnumbered the live codes.
+        assertTrue(journal.getCompactionCount() >= 2);
+
+        List<NucleusSmsAckRegistry.Entry> replayed = replay();
+        assertEquals(10, replayed.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(entries.get(i).getCode(), replayed.get(i).getCode());
+        }
+    }
+
+    @Test
+    public void removalsAreNeverDropped() {
+        NucleusSmsAckJournal journal = new NucleusSmsAckJournal("test", file, 1);
+        journal.replay();
+
+        for (int i = 0; i < 500; i++) {
+            NucleusSmsAckRegistry.Entry entry = entry(String.format("%06d", i), "15551230000");
+            journal.registered(entry);
+            journal.removed(entry);
+        }
+        journal.close();
+
+        assertTrue(replay().isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void removalsNeverWaitForTheWriter() {
+        // The writer isn't started until replay(), so nothing drains the queue meanwhile.
+        NucleusSmsAckJournal journal = new NucleusSmsAckJournal("test", file, 1);
+        List<NucleusSmsAckRegistry.Entry> entries = new ArrayList<NucleusSmsAckRegistry.Entry>();
+        for (int i = 0; i < 100; i++) {
+            NucleusSmsAckRegistry.Entry entry = entry(String.format("%06d", i), "15551230000");
+            entries.add(entry);
+            journal.registered(entry);
+        }
+        for (NucleusSmsAckRegistry.Entry entry : entries) {
+            journal.removed(entry);
+        }
+        assertEquals(99, journal.getDroppedCount());
+
+        journal.replay();
+        journal.close();
+
+        assertTrue(replay().isEmpty());
+    }
+
+    @Test
+    public void removalIsWrittenAfterItsRegistration() {
+        NucleusSmsAckJournal journal = new NucleusSmsAckJournal("test", file);
+        NucleusSmsAckRegistry.Entry kept = entry("111111", "15551230001");
+        NucleusSmsAckRegistry.Entry acked = entry("222222", "15551230002");
+
+        // The writer takes the removal before it drains the second registration from the queue.
+        journal.registered(kept);
+        journal.registered(acked);
+        journal.removed(acked);
+        journal.replay();
+        journal.close();
+
+        List<NucleusSmsAckRegistry.Entry> replayed = replay();
+        assertEquals(1, replayed.size());
+        assertEquals("111111", replayed.get(0).getCode());
+    }
+
+    @Test
+    public void reusedCodeKeepsItsLatestRegistration() {
+        NucleusSmsAckJournal journal = new NucleusSmsAckJournal("test", file);
+        NucleusSmsAckRegistry.Entry first = entry("777777", "15551230001");
+        NucleusSmsAckRegistry.Entry second = entry("777777", "15551230002");
+
+        // Queued before the writer starts, so they're all written in one batch.
+        journal.registered(first);
+        journal.removed(first);
+        journal.registered(second);
+        journal.replay();
+        journal.close();
+
+        List<NucleusSmsAckRegistry.Entry> replayed = replay();
+        assertEquals(1, replayed.size());
+        assertEquals(Collections.singletonList("15551230002"), replayed.get(0).getNumbers());
+    }
+
+    private NucleusSmsAckJournal open() {
+        NucleusSmsAckJournal journal = new NucleusSmsAckJournal("test", file);
+        journal.replay();
+        return journal;
+    }
+
+    private List<NucleusSmsAckRegistry.Entry> replay() {
+        NucleusSmsAckJournal journal = new NucleusSmsAckJournal("test", file);
+        try {
+            return journal.replay();
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * @return Where the first record in {@code file} ends.
+     */
+    private static long firstEndOf(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return 8 + raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static NucleusSmsAckRegistry.Entry entry(String code, String number) {
+        return new NucleusSmsAckRegistry.Entry(code, now(), now() + 60000,
+                Collections.singletonList(recipient(number)),
+                Arrays.asList(UUID.randomUUID(), UUID.randomUUID()), null);
+    }
+
+    private static NucleusSmsAckRegistry.Recipient recipient(String number) {
+        return new NucleusSmsAckRegistry.Recipient(null, "operator", Collections.singletonList(number));
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.tyrion.nucleus.profile;
+
+import com.tyrion.nucleus.profile.NucleusSmsCircuitBreaker.State;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class NucleusSmsCircuitBreakerTest {
+
+    private static final long REFUSED = NucleusSmsCircuitBreaker.REFUSED;
+
+    @Test
+    public void opensAfterThresholdAndClosesOnTrialSuccess() {
+        NucleusSmsCircuitBreaker breaker = new NucleusSmsCircuitBreaker(2, 0, TimeUnit.MILLISECONDS);
+
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(State.Closed, breaker.getState());
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(1, breaker.getTripCount());
+
+        // No open time, so the next request is the trial at once, and no other may join it.
+        long trial = breaker.tryAcquire();
+        assertNotEquals(REFUSED, trial);
+        assertEquals(REFUSED, breaker.tryAcquire());
+
+        breaker.onSuccess(trial);
+        assertEquals(State.Closed, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void refusesWhileOpen() {
+        NucleusSmsCircuitBreaker breaker = new NucleusSmsCircuitBreaker(1, 1, TimeUnit.HOURS);
+
+        breaker.onFailure(breaker.tryAcquire());
+
+        assertEquals(State.Open, breaker.getState());
+        assertEquals(REFUSED, breaker.tryAcquire());
+        assertEquals(1, breaker.getRefusedCount());
+    }
+
+    @Test
+    public void failedTrialReopens() {
+        NucleusSmsCircuitBreaker breaker = new NucleusSmsCircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+        breaker.onFailure(breaker.tryAcquire());
+
+        breaker.onFailure(breaker.tryAcquire());
+
+        // Reopened rather than tripped again, and the next trial may go.
+        assertEquals(1, breaker.getTripCount());
+        assertNotEquals(REFUSED, breaker.tryAcquire());
+    }
+
+    @Test
+    public void staleOutcomesDontDecideTheTrial() {
+        NucleusSmsCircuitBreaker breaker = new NucleusSmsCircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+        long slow = breaker.tryAcquire();
+        breaker.onFailure(breaker.tryAcquire());
+
+        long trial = breaker.tryAcquire();
+
+        // A request from before the breaker opened finishes while the trial is still in flight.
+        breaker.onFailure(slow);
+        assertEquals(State.HalfOpen, breaker.getState());
+        assertEquals(REFUSED, breaker.tryAcquire());
+
+        breaker.onSuccess(slow);
+        assertEquals(State.HalfOpen, breaker.getState());
+
+        breaker.onSuccess(trial);
+        assertEquals(State.Closed, breaker.getState());
+
+        // Nor does it count against the breaker once closed again.
+        breaker.onFailure(slow);
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void unconditionalRequests() {
+        NucleusSmsCircuitBreaker breaker = new NucleusSmsCircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+
+        breaker.onFailure(NucleusSmsCircuitBreaker.UNCONDITIONAL);
+        assertEquals(1, breaker.getTripCount());
+
+        long trial = breaker.tryAcquire();
+        breaker.onSuccess(NucleusSmsCircuitBreaker.UNCONDITIONAL);
+        assertEquals(State.Closed, breaker.getState());
+
+        // The trial was overtaken by the health check; its failure no longer matters.
+        breaker.onFailure(trial);
+        assertEquals(State.Closed, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+}
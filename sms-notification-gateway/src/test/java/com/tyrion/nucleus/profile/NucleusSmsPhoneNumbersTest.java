@@ -0,0 +1,84 @@
+package com.tyrion.nucleus.profile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class NucleusSmsPhoneNumbersTest {
+
+    @Test
+    public void northAmerica() {
+        check(new NucleusSmsPhoneNumbers("1", ""), new String[][]{
+                // number, normalized
+                {"+1 (555) 123-4567", "15551234567"},
+                {"+15551234567", "15551234567"},
+                {"+44 7700 900123", "447700900123"},
+                {"0044 7700 900123", "447700900123"},
+                {"011 44 7700 900123", "447700900123"},
+                {"011-1-555-123-4567", "15551234567"},
+                {"555.123.4567", "15551234567"},
+                {"15551234567", "15551234567"},
+                {" 555 123 4567 ", "15551234567"},
+        });
+    }
+
+    @Test
+    public void trunkPrefix() {
+        check(new NucleusSmsPhoneNumbers("44", "0"), new String[][]{
+                {"07700 900123", "447700900123"},
+                {"(0)7700 900123", "447700900123"},
+                {"7700 900123", "447700900123"},
+                {"447700900123", "447700900123"},
+                {"+44 7700 900123", "447700900123"},
+                {"00 1 555 123 4567", "15551234567"},
+                // 011 is only an international prefix in North America; elsewhere it's a national number.
+                {"011 555 1234", "44115551234"},
+        });
+    }
+
+    @Test
+    public void configuredPrefixesMayBeWrittenLikeNumbers() {
+        check(new NucleusSmsPhoneNumbers(" +44 ", " 0 "), new String[][]{
+                {"07700 900123", "447700900123"},
+        });
+        check(new NucleusSmsPhoneNumbers(null, null), new String[][]{
+                {"07700 900123", "07700900123"},
+                {"+44 7700 900123", "447700900123"},
+        });
+    }
+
+    @Test
+    public void lengthLimit() {
+        check(new NucleusSmsPhoneNumbers("44", "0"), new String[][]{
+                {"+123456789012345", "123456789012345"},
+                {"+1234567890123456", null},
+                {"00 1234567890123456", null},
+                {"0123 4567 89012", "44123456789012"},
+                {"0123 4567 890123", "441234567890123"},
+                {"0123 4567 8901234", null},
+                {"1234 5678 9012 3", "441234567890123"},
+                {"1234 5678 9012 34", null},
+        });
+    }
+
+    @Test
+    public void notPhoneNumbers() {
+        check(new NucleusSmsPhoneNumbers("1", ""), new String[][]{
+                {null, null},
+                {"", null},
+                {"   ", null},
+                {"+", null},
+                {"+()", null},
+                {"555-CALL-NOW", null},
+                {"555 123 4567 x12", null},
+                {"+1 555 123 4567+", null},
+        });
+    }
+
+    private static void check(NucleusSmsPhoneNumbers phoneNumbers, String[][] cases) {
+        for (String[] c : cases) {
+            assertEquals("'" + c[0] + "'", c[1], phoneNumbers.normalize(c[0]));
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.tyrion.nucleus.profile;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NucleusSmsRetryPolicyTest {
+
+    @Test
+    public void retriesOnlyWhatCannotHaveBeenSent() {
+        Object[][] cases = {
+                // failure, transient, unreachable
+                {new NucleusHttpClient.NotSentException("refused", new ConnectException()), true, true},
+                {new NucleusHttpClient.NotSentException("timed out", new SocketTimeoutException()), true, true},
+                {new NucleusHttpClient.NotSentException("no free connection", null), true, true},
+                {new NucleusHttpClient.HttpStatusException(503), true, true},
+                {new NucleusHttpClient.HttpStatusException(500), true, false},
+                {new NucleusHttpClient.HttpStatusException(408), true, false},
+                {new NucleusHttpClient.HttpStatusException(429), true, false},
+                {new NucleusSmsOutbox.UnsuccessfulException("Unsuccessful"), true, false},
+                {new SocketTimeoutException("Read timed out"), false, false},
+                {new SocketException("Connection reset"), false, false},
+                {new EOFException(), false, false},
+                {new IOException("Malformed JSON"), false, false},
+                {new NucleusHttpClient.HttpStatusException(400), false, false},
+                {new NucleusHttpClient.HttpStatusException(404), false, false},
+                {new NucleusSmsCircuitBreaker.OpenException("open"), false, false},
+        };
+
+        for (Object[] c : cases) {
+            Throwable e = (Throwable) c[0];
+            String name = e.getClass().getSimpleName() + ": " + e.getMessage();
+            assertEquals(name, c[1], NucleusSmsRetryPolicy.isTransient(e));
+            assertEquals(name, c[2], NucleusSmsEndpoints.isUnreachable(e));
+        }
+    }
+
+    @Test
+    public void stopsAfterMaxRetries() {
+        NucleusSmsRetryPolicy policy = new NucleusSmsRetryPolicy(2, 100, 1000, TimeUnit.MILLISECONDS);
+        NucleusHttpClient.HttpStatusException busy = new NucleusHttpClient.HttpStatusException(503);
+
+        assertTrue(policy.shouldRetry(busy, 1));
+        assertTrue(policy.shouldRetry(busy, 2));
+        assertFalse(policy.shouldRetry(busy, 3));
+    }
+
+    @Test
+    public void delaysGrowWithinBounds() {
+        NucleusSmsRetryPolicy policy = new NucleusSmsRetryPolicy(10, 100, 1000, TimeUnit.MILLISECONDS);
+
+        for (int attempts = 1; attempts <= 10; attempts++) {
+            long ceiling = Math.min(1000, 100L << (attempts - 1));
+            long delay = policy.getDelayMillis(attempts);
+            assertTrue("attempt " + attempts + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.tyrion.nucleus.profile;
+
+import com.tyrion.nucleus.profile.NucleusSmsSegmenter.Encoding;
+import com.tyrion.nucleus.profile.NucleusSmsSegmenter.Segments;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NucleusSmsSegmenterTest {
+
+    private static final String EMOJI = "\uD83D\uDE00";
+
+    private final NucleusSmsSegmenter segmenter = new NucleusSmsSegmenter();
+
+    @Test
+    public void encodingAndLength() {
+        Object[][] cases = {
+                // text, encoding, length
+                {"Hello", Encoding.Gsm7, 5},
+                {"caf\u00E9 \u00A3 \u00DF", Encoding.Gsm7, 8},
+                {"\u20AC5", Encoding.Gsm7, 3},
+                {"[x]", Encoding.Gsm7, 5},
+                {"{^~|\\}", Encoding.Gsm7, 12},
+                {"gar\u00E7on", Encoding.Ucs2, 6},
+                {"\u65E5\u672C", Encoding.Ucs2, 2},
+                {"[" + EMOJI + "]", Encoding.Ucs2, 4},
+        };
+
+        for (Object[] c : cases) {
+            String text = (String) c[0];
+            Encoding encoding = NucleusSmsSegmenter.encodingFor(text);
+            assertEquals(text, c[1], encoding);
+            assertEquals(text, ((Integer) c[2]).longValue(), NucleusSmsSegmenter.length(text, encoding));
+        }
+    }
+
+    @Test
+    public void limits() {
+        Object[][] cases = {
+                // text, concatenated, expected part lengths (septets or code units)
+                {repeat("a", 160), true, new int[]{160}},
+                {repeat("a", 161), true, new int[]{153, 8}},
+                {repeat("a", 161), false, new int[]{160, 1}},
+                {repeat("a", 306), true, new int[]{153, 153}},
+                {repeat("a", 307), true, new int[]{153, 153, 1}},
+                {repeat("\u20AC", 80), true, new int[]{160}},
+                {repeat("\u20AC", 81), true, new int[]{152, 10}},
+                {repeat("a", 152) + "\u20AC" + repeat("a", 10), true, new int[]{152, 12}},
+                {repeat("\u65E5", 70), true, new int[]{70}},
+                {repeat("\u65E5", 71), true, new int[]{67, 4}},
+                {repeat("\u65E5", 71), false, new int[]{70, 1}},
+                {repeat("a", 159) + "\u65E5", true, new int[]{67, 67, 26}},
+        };
+
+        for (Object[] c : cases) {
+            String text = (String) c[0];
+            boolean concatenated = (Boolean) c[1];
+            int[] expected = (int[]) c[2];
+
+            Segments segments = segmenter.segment(text, null, concatenated);
+            List<String> parts = segments.getParts();
+
+            String name = text.length() + " chars, concatenated=" + concatenated;
+            assertEquals(name, expected.length, parts.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(name + ", part " + i, expected[i],
+                        NucleusSmsSegmenter.length(parts.get(i), segments.getEncoding()));
+            }
+            assertEquals(name, text, join(parts));
+            assertEquals(name, concatenated && parts.size() > 1, segments.isConcatenated());
+        }
+    }
+
+    @Test
+    public void breaksAfterWhitespace() {
+        String text = repeat("alarm ", 30);
+
+        List<String> parts = segmenter.segment(text, null, true).getParts();
+
+        assertEquals(2, parts.size());
+        assertEquals(repeat("alarm ", 25), parts.get(0));
+        assertEquals(text, join(parts));
+    }
+
+    @Test
+    public void neverSplitsSurrogatePairs() {
+        Object[][] cases = {
+                // text, concatenated
+                {repeat(EMOJI, 36), true},
+                {repeat(EMOJI, 36), false},
+                {"a" + repeat(EMOJI, 40), true},
+                {"a" + repeat(EMOJI, 40), false},
+        };
+
+        for (Object[] c : cases) {
+            String text = (String) c[0];
+            List<String> parts = segmenter.segment(text, null, (Boolean) c[1]).getParts();
+
+            assertTrue(text.length() + " chars", parts.size() > 1);
+            for (String part : parts) {
+                assertFalse(Character.isHighSurrogate(part.charAt(part.length() - 1)));
+                assertFalse(Character.isLowSurrogate(part.charAt(0)));
+            }
+            assertEquals(text, join(parts));
+        }
+    }
+
+    @Test
+    public void keepsTheInstructionTogether() {
+        String instruction = " Reply 123456 to acknowledge.";
+
+        Object[][] cases = {
+                // message, concatenated
+                {repeat("x", 140), true},
+                {repeat("x", 140), false},
+                {repeat("tank level high ", 9), true},
+                {repeat("\u65E5", 60), true},
+                {repeat("\u20AC", 70), true},
+        };
+
+        for (Object[] c : cases) {
+            String text = c[0] + instruction;
+            List<String> parts = segmenter.segment(text, instruction, (Boolean) c[1]).getParts();
+
+            assertTrue(text, parts.size() > 1);
+            assertEquals(text, instruction, parts.get(parts.size() - 1));
+            assertEquals(text, join(parts));
+        }
+    }
+
+    @Test
+    public void splitsAnInstructionThatCannotFit() {
+        String instruction = " Reply " + repeat("1", 200);
+        String text = "Alarm" + instruction;
+
+        List<String> parts = segmenter.segment(text, instruction, true).getParts();
+
+        assertEquals(3, parts.size());
+        assertEquals("Alarm Reply ", parts.get(0));
+        assertEquals(153, parts.get(1).length());
+        assertEquals(text, join(parts));
+    }
+
+    @Test
+    public void userDataHeaders() {
+        Segments first = segmenter.segment(repeat("a", 200), null, true);
+        Segments second = segmenter.segment(repeat("a", 400), null, true);
+
+        assertEquals("050003000201", first.getUserDataHeader(0));
+        assertEquals("050003000202", first.getUserDataHeader(1));
+        assertEquals("050003010303", second.getUserDataHeader(2));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static String join(List<String> parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+}